@@ -0,0 +1,221 @@
+import java.io.IOException;
+
+/**
+ * AdaptiveHuffmanTree is a Huffman tree that is built while the data flows,
+ * using the FGK algorithm, so no codebook is needed in advance. The encoder and
+ * the decoder start from the same tree, a single NYT ("not yet transmitted")
+ * node, and update it in the same way after every character, so they always
+ * agree on the codes.
+ *
+ * A character seen for the first time is sent as the code of the NYT node
+ * followed by the character in SYMBOL_BITS raw bits; the NYT node then splits
+ * into a new NYT node and a leaf for the character. Every node has an order
+ * number, and the tree keeps the sibling property: ordered by number, the
+ * weights never decrease. Before a weight is incremented, its node is swapped
+ * with the highest-numbered node of the same weight, which keeps the property.
+ * The tree has at most 2 * ALPHABET_SIZE + 1 nodes, so memory use is constant.
+ */
+class AdaptiveHuffmanTree implements HuffmanDecoder {
+    static final int SYMBOL_BITS = 8;
+    private static final int ALPHABET_SIZE = 1 << SYMBOL_BITS;
+    private static final int NO_SYMBOL = -1; // internal and NYT nodes
+
+    /**
+     * Node is a class that represents a node in the adaptive Huffman tree.
+     */
+    private static class Node {
+        private int symbol;
+        private long weight;
+        private int order;
+        private Node parent;
+        private Node left;
+        private Node right;
+
+        /**
+         * Constructor for creating a new Node without a symbol.
+         *
+         * @param order  the order number of the node
+         * @param parent the parent of the node, or null for the root
+         */
+        Node(int order, Node parent) {
+            this.symbol = NO_SYMBOL;
+            this.weight = 0;
+            this.order = order;
+            this.parent = parent;
+            this.left = null;
+            this.right = null;
+        }
+    }
+
+    private final Node[] nodes; // indexed by order number
+    private final Node[] leaves; // indexed by symbol, null until the symbol is seen
+    private final byte[] path; // bits of the code being written, leaf first
+    private final Node root;
+    private Node nyt;
+
+    /**
+     * Constructor for creating a new AdaptiveHuffmanTree that holds only the NYT
+     * node.
+     */
+    AdaptiveHuffmanTree() {
+        nodes = new Node[2 * ALPHABET_SIZE + 1];
+        leaves = new Node[ALPHABET_SIZE];
+        path = new byte[nodes.length];
+        root = new Node(nodes.length - 1, null);
+        nodes[root.order] = root;
+        nyt = root;
+    }
+
+    /**
+     * Encodes a character with the current tree and then updates the tree.
+     *
+     * @param character the character to encode, below ALPHABET_SIZE
+     * @param writer    the BitWriter that receives the code
+     * @throws IOException if an I/O error occurs while writing
+     */
+    void encode(char character, BitWriter writer) throws IOException {
+        Node leaf = leaves[character];
+        if (leaf != null) {
+            writeCode(leaf, writer);
+        } else {
+            writeCode(nyt, writer);
+            writer.writeBits(character, SYMBOL_BITS);
+        }
+        update(character);
+    }
+
+    /**
+     * Decodes the next character by walking the current tree, and then updates
+     * the tree.
+     *
+     * @param reader the BitReader used to read the packed bits
+     * @return the decoded character
+     * @throws IOException if an I/O error occurs or the bits are not a valid code
+     */
+    @Override
+    public char decodeNextCharacter(BitReader reader) throws IOException {
+        Node node = root;
+        while (node.left != null) {
+            node = reader.readBit() == 0 ? node.left : node.right;
+        }
+
+        int symbol = node.symbol;
+        if (node == nyt) {
+            symbol = 0;
+            for (int i = 0; i < SYMBOL_BITS; i++) {
+                symbol = (symbol << 1) | reader.readBit();
+            }
+            if (leaves[symbol] != null) {
+                throw new IOException("Invalid adaptive Huffman code in encoded file");
+            }
+        }
+        update(symbol);
+        return (char) symbol;
+    }
+
+    /**
+     * Writes the code of a node, which is the path from the root down to it.
+     *
+     * @param node   the node whose code to write
+     * @param writer the BitWriter that receives the code
+     * @throws IOException if an I/O error occurs while writing
+     */
+    private void writeCode(Node node, BitWriter writer) throws IOException {
+        // the path is collected from the node up, so it is written back to front
+        int length = 0;
+        for (; node != root; node = node.parent) {
+            path[length++] = (byte) (node.parent.right == node ? 1 : 0);
+        }
+        long bits = 0;
+        int bitCount = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            bits = (bits << 1) | path[i];
+            if (++bitCount == 56) {
+                writer.writeBits(bits, bitCount);
+                bits = 0;
+                bitCount = 0;
+            }
+        }
+        if (bitCount > 0) {
+            writer.writeBits(bits, bitCount);
+        }
+    }
+
+    /**
+     * Updates the tree after a character has been sent.
+     *
+     * @param symbol the character that was sent
+     */
+    private void update(int symbol) {
+        Node node = leaves[symbol];
+        if (node == null) {
+            // the NYT node becomes the parent of a new NYT node and the new leaf
+            Node parent = nyt;
+            nyt = new Node(parent.order - 2, parent);
+            node = new Node(parent.order - 1, parent);
+            node.symbol = symbol;
+            parent.left = nyt;
+            parent.right = node;
+            nodes[nyt.order] = nyt;
+            nodes[node.order] = node;
+            leaves[symbol] = node;
+            node.weight = 1;
+            parent.weight = 1;
+            node = parent.parent;
+        }
+
+        while (node != null) {
+            Node leader = blockLeader(node);
+            if (leader != node && leader != node.parent) {
+                swap(node, leader);
+            }
+            node.weight++;
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Finds the highest-numbered node with the same weight as the given node.
+     *
+     * @param node the node whose block to search
+     * @return the leader of the block
+     */
+    private Node blockLeader(Node node) {
+        int order = node.order;
+        while (order + 1 < nodes.length && nodes[order + 1].weight == node.weight) {
+            order++;
+        }
+        return nodes[order];
+    }
+
+    /**
+     * Swaps two nodes, with their subtrees, in the tree and in the order.
+     *
+     * @param a the first node
+     * @param b the second node
+     */
+    private void swap(Node a, Node b) {
+        Node parentA = a.parent;
+        Node parentB = b.parent;
+        boolean aIsLeft = parentA.left == a;
+        boolean bIsLeft = parentB.left == b;
+        if (aIsLeft) {
+            parentA.left = b;
+        } else {
+            parentA.right = b;
+        }
+        if (bIsLeft) {
+            parentB.left = a;
+        } else {
+            parentB.right = a;
+        }
+        a.parent = parentB;
+        b.parent = parentA;
+
+        int order = a.order;
+        a.order = b.order;
+        b.order = order;
+        nodes[a.order] = a;
+        nodes[b.order] = b;
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * BitReader reads a bit-packed stream written by BitWriter. Bytes are pulled
+ * from the stream in bulk and shifted into a 64-bit buffer, so single bits can
+ * be taken without a call into the underlying stream. A BitReader can also read
+ * straight from a ByteBuffer, such as a memory-mapped block, without copying.
+ */
+class BitReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+    static final int MAX_PEEK_BITS = 31;
+
+    private final InputStream in; // null when reading from a buffer
+    private final ByteBuffer bytes;
+    private long bitBuffer; // buffered bits, right-aligned
+    private int bitCount; // number of valid bits in bitBuffer
+    private boolean endOfStream;
+
+    /**
+     * Constructor for creating a new BitReader on top of the given stream.
+     *
+     * @param in the stream that holds the packed bytes
+     */
+    BitReader(InputStream in) {
+        this.in = in;
+        this.bytes = ByteBuffer.allocate(BUFFER_SIZE).flip();
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+        this.endOfStream = false;
+    }
+
+    /**
+     * Constructor for creating a new BitReader that reads the remaining bytes of
+     * the given buffer.
+     *
+     * @param bytes the buffer that holds the packed bytes
+     */
+    BitReader(ByteBuffer bytes) {
+        this.in = null;
+        this.bytes = bytes.slice();
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+        this.endOfStream = true;
+    }
+
+    /**
+     * Reads the next bit.
+     *
+     * @return 0 or 1
+     * @throws IOException if an I/O error occurs or the stream has no more bits
+     */
+    int readBit() throws IOException {
+        if (bitCount == 0) {
+            refill();
+            if (bitCount == 0) {
+                throw new EOFException("Unexpected end of encoded file");
+            }
+        }
+        bitCount--;
+        return (int) (bitBuffer >>> bitCount) & 1;
+    }
+
+    /**
+     * Returns the next n bits without consuming them. Past the end of the stream
+     * the missing bits read as zero, so a decoder can always look ahead a full
+     * table width. A refill leaves at least 57 bits in the buffer, so any n up
+     * to MAX_PEEK_BITS is served from it; larger n are not supported, as the
+     * mask below needs n < 32.
+     *
+     * @param n the number of bits to peek at, at most MAX_PEEK_BITS
+     * @return the next n bits, right-aligned
+     * @throws IOException if an I/O error occurs while reading
+     */
+    int peekBits(int n) throws IOException {
+        if (bitCount < n) {
+            refill();
+            if (bitCount < n) {
+                return (int) (bitBuffer << (n - bitCount)) & ((1 << n) - 1);
+            }
+        }
+        return (int) (bitBuffer >>> (bitCount - n)) & ((1 << n) - 1);
+    }
+
+    /**
+     * Consumes n bits that were previously looked at with peekBits.
+     *
+     * @param n the number of bits to consume
+     * @throws IOException if an I/O error occurs or the stream has fewer than n
+     *                     bits left
+     */
+    void skipBits(int n) throws IOException {
+        if (bitCount < n) {
+            refill();
+            if (bitCount < n) {
+                throw new EOFException("Unexpected end of encoded file");
+            }
+        }
+        bitCount -= n;
+    }
+
+    /**
+     * Shifts whole bytes into the bit buffer until it holds at least 57 bits or
+     * the stream is exhausted.
+     *
+     * @throws IOException if an I/O error occurs while reading
+     */
+    private void refill() throws IOException {
+        if (bytes.remaining() >= Long.BYTES) {
+            // fast path: take as many whole bytes as fit from one 8-byte load
+            int count = (Long.SIZE - 1 - bitCount) >>> 3;
+            if (count == 0) {
+                return; // the buffer already holds 57 bits or more; a shift by 64 would be a shift by 0
+            }
+            long word = bytes.getLong(bytes.position());
+            bitBuffer = (bitBuffer << (count * 8)) | (word >>> (Long.SIZE - count * 8));
+            bytes.position(bytes.position() + count);
+            bitCount += count * 8;
+            return;
+        }
+        while (bitCount <= Long.SIZE - 8) {
+            if (!bytes.hasRemaining()) {
+                if (endOfStream) {
+                    return;
+                }
+                int length = in.read(bytes.array(), 0, bytes.capacity());
+                if (length <= 0) {
+                    bytes.limit(0);
+                    endOfStream = true;
+                    return;
+                }
+                bytes.position(0).limit(length);
+            }
+            bitBuffer = (bitBuffer << 8) | (bytes.get() & 0xFF);
+            bitCount += 8;
+        }
+    }
+}
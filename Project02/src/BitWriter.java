@@ -0,0 +1,148 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * BitWriter packs variable-length codes into bytes. Codes are collected in a
+ * 64-bit accumulator and only spilled to the byte buffer when the accumulator
+ * runs out of room, so most codes cost a shift and an or. A BitWriter can also
+ * write straight into a ByteBuffer, such as a direct output buffer, which must
+ * then be large enough for everything written.
+ */
+class BitWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream out; // null when writing into a buffer
+    private final ByteBuffer bytes;
+    private long bitBuffer; // pending bits, right-aligned
+    private int bitCount; // number of pending bits in bitBuffer
+    private long bitsWritten;
+
+    /**
+     * Constructor for creating a new BitWriter on top of the given stream.
+     *
+     * @param out the stream that receives the packed bytes
+     */
+    BitWriter(OutputStream out) {
+        this.out = out;
+        this.bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+        this.bitsWritten = 0;
+    }
+
+    /**
+     * Constructor for creating a new BitWriter that writes into the given buffer,
+     * starting at its position.
+     *
+     * @param bytes the buffer that receives the packed bytes
+     */
+    BitWriter(ByteBuffer bytes) {
+        this.out = null;
+        this.bytes = bytes;
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+        this.bitsWritten = 0;
+    }
+
+    /**
+     * Writes the lowest length bits of the given value, most significant bit
+     * first.
+     *
+     * @param bits   the bits to write, right-aligned
+     * @param length the number of bits to write (at most 56)
+     * @throws IOException if an I/O error occurs while writing
+     */
+    void writeBits(long bits, int length) throws IOException {
+        if (bitCount + length > Long.SIZE) {
+            drain();
+        }
+        bitBuffer = (bitBuffer << length) | (bits & ((1L << length) - 1));
+        bitCount += length;
+        bitsWritten += length;
+    }
+
+    /**
+     * Returns the number of bits written so far, not counting padding.
+     *
+     * @return the number of bits written
+     */
+    long getBitsWritten() {
+        return bitsWritten;
+    }
+
+    /**
+     * Moves every complete byte from the accumulator into the byte buffer.
+     *
+     * @throws IOException if an I/O error occurs while writing
+     */
+    private void drain() throws IOException {
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            if (out != null && !bytes.hasRemaining()) {
+                flushBuffer();
+            }
+            bytes.put((byte) (bitBuffer >>> bitCount));
+        }
+    }
+
+    /**
+     * Writes the byte buffer to the underlying stream.
+     *
+     * @throws IOException if an I/O error occurs while writing
+     */
+    private void flushBuffer() throws IOException {
+        out.write(bytes.array(), 0, bytes.position());
+        bytes.clear();
+    }
+
+    /**
+     * Writes every complete byte to the underlying stream and flushes it. The
+     * bits of an incomplete last byte stay pending, so unlike flush this adds no
+     * padding and can be called between any two codes.
+     *
+     * @throws IOException if an I/O error occurs while writing
+     */
+    void flushBytes() throws IOException {
+        drain();
+        if (out != null) {
+            flushBuffer();
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes all pending bits, padding the last byte with zero bits, and flushes
+     * the underlying stream, if any.
+     *
+     * @throws IOException if an I/O error occurs while writing
+     */
+    void flush() throws IOException {
+        drain();
+        if (bitCount > 0) {
+            if (out != null && !bytes.hasRemaining()) {
+                flushBuffer();
+            }
+            bytes.put((byte) (bitBuffer << (8 - bitCount)));
+            bitCount = 0;
+        }
+        if (out != null) {
+            flushBuffer();
+            out.flush();
+        }
+    }
+
+    /**
+     * Flushes all pending bits and closes the underlying stream, if any.
+     *
+     * @throws IOException if an I/O error occurs while writing
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (out != null) {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,555 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * BlockCodec encodes and decodes single blocks of the binary container. It is
+ * shared by the file tools, Encode and Decode, and by the streams,
+ * HuffmanOutputStream and HuffmanInputStream. Blocks hold either UTF-8 text,
+ * coded one character at a time, or, in byte mode, raw bytes coded one byte at
+ * a time. In context mode the code of every character depends on the character
+ * before it, see ContextModel.
+ *
+ * A block can also be split into STREAM_COUNT interleaved streams: symbol i
+ * goes to stream i % STREAM_COUNT, and the payload starts with the byte length
+ * of every stream but the last, followed by the streams, each padded to a
+ * whole byte. The decoder keeps one bit position per stream and decodes one
+ * symbol from each in turn, so the lookups of different streams do not wait
+ * for each other and the processor can overlap them.
+ *
+ * Every block header holds the CRC32C of the bytes the block decodes to, so
+ * the decoders can check each block on its own without the original file. The
+ * checksum is taken over whole buffers, where CRC32C uses the processor's CRC
+ * instructions, rather than a character at a time inside the coding loops.
+ */
+class BlockCodec {
+    static final int BLOCK_SIZE = 1 << 20;
+    static final int STREAM_COUNT = 4; // streams of an interleaved block
+    static final int STREAM_TABLE_SIZE = (STREAM_COUNT - 1) * Integer.BYTES; // lengths of all streams but the last
+
+    /**
+     * Returns how large an output buffer must be to hold an encoded block,
+     * block header included, in either layout: an interleaved block adds its
+     * stream table and up to one byte of padding per stream.
+     *
+     * @param inputBytes the number of input bytes in the block
+     * @param maxLength  the longest code length in bits
+     * @return the buffer size in bytes
+     */
+    static int maxEncodedSize(int inputBytes, int maxLength) {
+        return HuffmanFormat.BLOCK_HEADER_SIZE + STREAM_TABLE_SIZE + STREAM_COUNT
+                + (int) (((long) inputBytes * maxLength + 7) / 8);
+    }
+
+    /**
+     * Encodes one block of UTF-8 input, block header included, into the output
+     * buffer. Characters without a code are skipped.
+     *
+     * @param bytes        the input bytes of the block
+     * @param codeTable    the canonical codes
+     * @param outputBuffer the buffer that receives the encoded block, starting at
+     *                     its position
+     * @return the number of characters encoded
+     * @throws IOException if an I/O error occurs while writing
+     */
+    static int encodeBlock(ByteBuffer bytes, CodeTable codeTable, ByteBuffer outputBuffer) throws IOException {
+        return encodeBlock(bytes, codeTable, outputBuffer, 0, new SyncPoints());
+    }
+
+    /**
+     * Encodes one block of UTF-8 input, block header included, into the output
+     * buffer, and records a sync point every syncInterval bytes of decoded text.
+     * The points are relative to the block's first code and to the start of its
+     * decoded text, whose length is recorded as well. Characters without a code
+     * are skipped.
+     *
+     * @param bytes        the input bytes of the block
+     * @param codeTable    the canonical codes
+     * @param outputBuffer the buffer that receives the encoded block, starting at
+     *                     its position
+     * @param syncInterval the distance between sync points in bytes of decoded
+     *                     text, or 0 for none
+     * @param syncPoints   receives the sync points and the decoded length
+     * @return the number of characters encoded
+     * @throws IOException if an I/O error occurs while writing
+     */
+    static int encodeBlock(ByteBuffer bytes, CodeTable codeTable, ByteBuffer outputBuffer, int syncInterval,
+            SyncPoints syncPoints) throws IOException {
+        int[] codes = codeTable.codes;
+        byte[] lengths = codeTable.lengths;
+        ByteBuffer input = bytes.duplicate();
+        char[] characters = new char[bytes.remaining()];
+        int count = Utf8.decode(bytes, characters);
+
+        int blockStart = outputBuffer.position();
+        outputBuffer.position(blockStart + HuffmanFormat.BLOCK_HEADER_SIZE);
+        BitWriter writer = new BitWriter(outputBuffer);
+        int symbolCount = 0;
+        long decodedLength = 0;
+        long nextSyncPoint = syncInterval > 0 ? syncInterval : Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            char character = characters[i];
+            if (character < lengths.length && lengths[character] != 0) {
+                if (decodedLength >= nextSyncPoint) {
+                    syncPoints.add(writer.getBitsWritten(), decodedLength);
+                    nextSyncPoint = decodedLength + syncInterval;
+                }
+                writer.writeBits(codes[character], lengths[character]);
+                characters[symbolCount++] = character; // the encoded characters, for the checksum
+                decodedLength += Utf8.encodedLength(character);
+            }
+        }
+        writer.flush();
+        syncPoints.setDecodedLength(decodedLength);
+
+        writeBlockHeader(outputBuffer, blockStart, symbolCount,
+                textChecksum(input, characters, symbolCount, decodedLength));
+        return symbolCount;
+    }
+
+    /**
+     * Encodes one block of raw bytes, block header included, into the output
+     * buffer, and records a sync point every syncInterval bytes. Every byte is a
+     * symbol of its own, so there is no UTF-8 decoding and no byte is skipped.
+     *
+     * @param bytes        the input bytes of the block
+     * @param codeTable    the canonical codes, indexed by byte value
+     * @param outputBuffer the buffer that receives the encoded block, starting at
+     *                     its position
+     * @param syncInterval the distance between sync points in bytes, or 0 for
+     *                     none
+     * @param syncPoints   receives the sync points and the decoded length
+     * @return the number of bytes encoded
+     * @throws IOException if a byte has no code
+     */
+    static int encodeByteBlock(ByteBuffer bytes, CodeTable codeTable, ByteBuffer outputBuffer, int syncInterval,
+            SyncPoints syncPoints) throws IOException {
+        int[] codes = codeTable.codes;
+        byte[] lengths = codeTable.lengths;
+        int symbolCount = bytes.remaining();
+        int checksum = checksum(bytes);
+
+        int blockStart = outputBuffer.position();
+        outputBuffer.position(blockStart + HuffmanFormat.BLOCK_HEADER_SIZE);
+        BitWriter writer = new BitWriter(outputBuffer);
+        int nextSyncPoint = syncInterval > 0 ? syncInterval : Integer.MAX_VALUE;
+        for (int i = 0; i < symbolCount; i++) {
+            int value = bytes.get() & 0xFF;
+            if (lengths[value] == 0) {
+                throw new IOException("No code for byte " + value);
+            }
+            if (i >= nextSyncPoint) {
+                syncPoints.add(writer.getBitsWritten(), i);
+                nextSyncPoint = i + syncInterval;
+            }
+            writer.writeBits(codes[value], lengths[value]);
+        }
+        writer.flush();
+        syncPoints.setDecodedLength(symbolCount);
+
+        writeBlockHeader(outputBuffer, blockStart, symbolCount, checksum);
+        return symbolCount;
+    }
+
+    /**
+     * Encodes one block of UTF-8 input with the context model, block header
+     * included, into the output buffer. The block starts in START_CONTEXT, so it
+     * can be decoded on its own. Characters outside the encodable range are
+     * skipped and do not change the context.
+     *
+     * @param bytes        the input bytes of the block
+     * @param model        the context model
+     * @param outputBuffer the buffer that receives the encoded block, starting at
+     *                     its position
+     * @param syncPoints   receives the decoded length
+     * @return the number of characters encoded
+     * @throws IOException if a character has no code in its context
+     */
+    static int encodeContextBlock(ByteBuffer bytes, ContextModel model, ByteBuffer outputBuffer,
+            SyncPoints syncPoints) throws IOException {
+        int[] codes = model.codes;
+        byte[] lengths = model.lengths;
+        ByteBuffer input = bytes.duplicate();
+        char[] characters = new char[bytes.remaining()];
+        int count = Utf8.decode(bytes, characters);
+
+        int blockStart = outputBuffer.position();
+        outputBuffer.position(blockStart + HuffmanFormat.BLOCK_HEADER_SIZE);
+        BitWriter writer = new BitWriter(outputBuffer);
+        int symbolCount = 0;
+        long decodedLength = 0;
+        int context = ContextModel.START_CONTEXT;
+        for (int i = 0; i < count; i++) {
+            char character = characters[i];
+            if (character < CodebookBuilder.FIRST_CHARACTER || character > CodebookBuilder.LAST_CHARACTER) {
+                continue;
+            }
+            int index = (context << 8) | character;
+            if (lengths[index] == 0) {
+                throw new IOException("No code for character " + (int) character + " after " + context);
+            }
+            writer.writeBits(codes[index], lengths[index]);
+            context = character;
+            characters[symbolCount++] = character; // the encoded characters, for the checksum
+            decodedLength += Utf8.encodedLength(character);
+        }
+        writer.flush();
+        syncPoints.setDecodedLength(decodedLength);
+
+        writeBlockHeader(outputBuffer, blockStart, symbolCount,
+                textChecksum(input, characters, symbolCount, decodedLength));
+        return symbolCount;
+    }
+
+    /**
+     * Encodes one block, block header included, into STREAM_COUNT interleaved
+     * streams in the output buffer. The symbols are collected, and the bits of
+     * every stream added up, first, so each stream can be written in one pass at
+     * its final place. Characters without a code are skipped; in byte mode every
+     * byte is a symbol.
+     *
+     * @param bytes        the input bytes of the block
+     * @param codeTable    the canonical codes
+     * @param outputBuffer the buffer that receives the encoded block, starting at
+     *                     its position
+     * @param byteMode     whether to encode raw bytes instead of characters
+     * @param syncPoints   receives the decoded length
+     * @return the number of symbols encoded
+     * @throws IOException if a byte has no code in byte mode
+     */
+    static int encodeInterleavedBlock(ByteBuffer bytes, CodeTable codeTable, ByteBuffer outputBuffer,
+            boolean byteMode, SyncPoints syncPoints) throws IOException {
+        int[] codes = codeTable.codes;
+        byte[] lengths = codeTable.lengths;
+        ByteBuffer input = bytes.duplicate();
+        char[] characters = new char[bytes.remaining()];
+        long[] streamBits = new long[STREAM_COUNT];
+        int symbolCount = 0;
+        long decodedLength = 0;
+        int checksum;
+        if (byteMode) {
+            checksum = checksum(bytes);
+            while (bytes.hasRemaining()) {
+                int value = bytes.get() & 0xFF;
+                if (lengths[value] == 0) {
+                    throw new IOException("No code for byte " + value);
+                }
+                streamBits[symbolCount % STREAM_COUNT] += lengths[value];
+                characters[symbolCount++] = (char) value;
+            }
+            decodedLength = symbolCount;
+        } else {
+            int count = Utf8.decode(bytes, characters);
+            for (int i = 0; i < count; i++) {
+                char character = characters[i];
+                if (character < lengths.length && lengths[character] != 0) {
+                    streamBits[symbolCount % STREAM_COUNT] += lengths[character];
+                    characters[symbolCount++] = character;
+                    decodedLength += Utf8.encodedLength(character);
+                }
+            }
+            checksum = textChecksum(input, characters, symbolCount, decodedLength);
+        }
+
+        int blockStart = outputBuffer.position();
+        int streamTable = blockStart + HuffmanFormat.BLOCK_HEADER_SIZE;
+        outputBuffer.position(streamTable + STREAM_TABLE_SIZE);
+        for (int stream = 0; stream < STREAM_COUNT; stream++) {
+            if (stream < STREAM_COUNT - 1) {
+                outputBuffer.putInt(streamTable + stream * Integer.BYTES, (int) ((streamBits[stream] + 7) / 8));
+            }
+            BitWriter writer = new BitWriter(outputBuffer);
+            for (int i = stream; i < symbolCount; i += STREAM_COUNT) {
+                writer.writeBits(codes[characters[i]], lengths[characters[i]]);
+            }
+            writer.flush();
+        }
+        syncPoints.setDecodedLength(decodedLength);
+
+        writeBlockHeader(outputBuffer, blockStart, symbolCount, checksum);
+        return symbolCount;
+    }
+
+    /**
+     * Fills in the header of an encoded block, once its payload is written.
+     *
+     * @param outputBuffer the buffer that holds the block, positioned after its
+     *                     payload
+     * @param blockStart   the position of the block header
+     * @param symbolCount  the number of symbols in the block
+     * @param checksum     the CRC32C of the bytes the block decodes to
+     */
+    static void writeBlockHeader(ByteBuffer outputBuffer, int blockStart, int symbolCount, int checksum) {
+        outputBuffer.putInt(blockStart, symbolCount);
+        outputBuffer.putInt(blockStart + Integer.BYTES,
+                outputBuffer.position() - blockStart - HuffmanFormat.BLOCK_HEADER_SIZE);
+        outputBuffer.putInt(blockStart + 2 * Integer.BYTES, checksum);
+    }
+
+    /**
+     * Returns the CRC32C of the UTF-8 text a block decodes to. When every input
+     * byte belongs to an encoded character, which is the usual case, that text is
+     * the input itself and is checksummed in place; otherwise the encoded
+     * characters are encoded to UTF-8 again first.
+     *
+     * @param input         the input bytes of the block
+     * @param encoded       the encoded characters, in order
+     * @param symbolCount   the number of encoded characters
+     * @param decodedLength the length of their UTF-8 encoding
+     * @return the checksum
+     */
+    static int textChecksum(ByteBuffer input, char[] encoded, int symbolCount, long decodedLength) {
+        // a character is never longer in UTF-8 than the bytes it was decoded
+        // from, so equal lengths mean nothing was skipped or shortened
+        if (decodedLength == input.remaining()) {
+            return checksum(input);
+        }
+        byte[] decoded = new byte[(int) decodedLength];
+        int length = 0;
+        for (int i = 0; i < symbolCount; i++) {
+            char character = encoded[i];
+            if (character < 0x80) {
+                decoded[length++] = (byte) character;
+            } else {
+                decoded[length++] = (byte) (0xC0 | (character >>> 6));
+                decoded[length++] = (byte) (0x80 | (character & 0x3F));
+            }
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(decoded, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the CRC32C of the remaining bytes of a buffer.
+     *
+     * @param bytes the bytes to checksum; its position is not moved
+     * @return the checksum
+     */
+    static int checksum(ByteBuffer bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Checks the bytes a block decoded to against the checksum in its header.
+     *
+     * @param decoded  the buffer the block was decoded into
+     * @param start    the position of the block's first decoded byte; the block
+     *                 ends at the buffer's position
+     * @param checksum the CRC32C from the block header
+     * @throws IOException if the checksums differ
+     */
+    static void verifyChecksum(ByteBuffer decoded, int start, int checksum) throws IOException {
+        if (checksum(decoded.duplicate().flip().position(start)) != checksum) {
+            throw new IOException("Checksum mismatch in encoded data");
+        }
+    }
+
+    /**
+     * Decodes the payload of one block of raw bytes, one byte per symbol.
+     *
+     * @param payload      the packed codes of the block
+     * @param symbolCount  the number of bytes in the block
+     * @param decoder      the decoder used to decode the bytes
+     * @param outputBuffer the buffer that receives the decoded bytes
+     * @throws IOException if the payload is malformed
+     */
+    static void decodeByteBlock(ByteBuffer payload, int symbolCount, HuffmanDecoder decoder,
+            ByteBuffer outputBuffer) throws IOException {
+        HuffmanDecoder blockDecoder = decoder.forBlock();
+        BitReader reader = new BitReader(payload);
+        for (int i = 0; i < symbolCount; i++) {
+            outputBuffer.put((byte) blockDecoder.decodeNextCharacter(reader));
+        }
+    }
+
+    /**
+     * Decodes the payload of one block into UTF-8 bytes. Every character is at
+     * most 0xFF, so the output buffer needs at most two bytes per character.
+     *
+     * @param payload      the packed codes of the block
+     * @param symbolCount  the number of characters in the block
+     * @param decoder      the decoder used to decode the characters
+     * @param outputBuffer the buffer that receives the decoded bytes
+     * @throws IOException if the payload is malformed
+     */
+    static void decodeBlock(ByteBuffer payload, int symbolCount, HuffmanDecoder decoder, ByteBuffer outputBuffer)
+            throws IOException {
+        HuffmanDecoder blockDecoder = decoder.forBlock();
+        BitReader reader = new BitReader(payload);
+        for (int i = 0; i < symbolCount; i++) {
+            Utf8.encode(blockDecoder.decodeNextCharacter(reader), outputBuffer);
+        }
+    }
+
+    /**
+     * Decodes the payload of one interleaved block into UTF-8 bytes, or into raw
+     * bytes in byte mode. With the table decoder, each round decodes one symbol
+     * from every stream before any of them is written, see decodeTableRounds.
+     * The symbols near the end of the payload, and all symbols with the other
+     * decoders, are decoded through one BitReader per stream, which stops at the
+     * end of its stream.
+     *
+     * @param payload      the stream table and the streams of the block
+     * @param symbolCount  the number of symbols in the block
+     * @param decoder      the decoder used to decode the symbols
+     * @param byteMode     whether every symbol is a raw byte
+     * @param outputBuffer the buffer that receives the decoded bytes
+     * @throws IOException if the payload is malformed
+     */
+    static void decodeInterleavedBlock(ByteBuffer payload, int symbolCount, HuffmanDecoder decoder,
+            boolean byteMode, ByteBuffer outputBuffer) throws IOException {
+        int[] bounds = streamBounds(payload);
+        long[] bitPositions = new long[STREAM_COUNT];
+        for (int stream = 0; stream < STREAM_COUNT; stream++) {
+            bitPositions[stream] = 8L * bounds[stream];
+        }
+        int decoded = 0;
+        if (decoder instanceof HuffmanTree) {
+            decoded = decodeTableRounds(payload, symbolCount, (HuffmanTree) decoder, byteMode, outputBuffer,
+                    bitPositions);
+        }
+
+        BitReader[] readers = new BitReader[STREAM_COUNT];
+        for (int stream = 0; stream < STREAM_COUNT; stream++) {
+            if (bitPositions[stream] > 8L * bounds[stream + 1]) {
+                throw new EOFException("Unexpected end of encoded data");
+            }
+            readers[stream] = new BitReader(payload.duplicate().limit(bounds[stream + 1])
+                    .position((int) (bitPositions[stream] >>> 3)));
+            readers[stream].skipBits((int) (bitPositions[stream] & 7));
+        }
+        for (int i = decoded; i < symbolCount; i++) {
+            char character = decoder.decodeNextCharacter(readers[i % STREAM_COUNT]);
+            if (byteMode) {
+                outputBuffer.put((byte) character);
+            } else {
+                Utf8.encode(character, outputBuffer);
+            }
+        }
+    }
+
+    /**
+     * Decodes whole rounds of an interleaved block with the lookup tables, one
+     * symbol from every stream per round. The bit position of every stream is a
+     * local variable, and each code is looked up in a 64-bit window loaded from
+     * that position, so the four lookups of a round form four independent
+     * chains. Decoding stops when fewer than STREAM_COUNT symbols are left or a
+     * window would reach past the payload. A window may run past the end of its
+     * own stream into the next one; the caller checks that no stream was
+     * overrun.
+     *
+     * @param payload      the stream table and the streams of the block
+     * @param symbolCount  the number of symbols in the block
+     * @param huffmanTree  the tree whose tables decode the symbols
+     * @param byteMode     whether every symbol is a raw byte
+     * @param outputBuffer the buffer that receives the decoded bytes
+     * @param bitPositions the bit position of every stream in the payload buffer,
+     *                     advanced past the decoded codes
+     * @return the number of symbols decoded
+     * @throws IOException if the bits are not a valid code
+     */
+    private static int decodeTableRounds(ByteBuffer payload, int symbolCount, HuffmanTree huffmanTree,
+            boolean byteMode, ByteBuffer outputBuffer, long[] bitPositions) throws IOException {
+        long lastWindow = 8L * (payload.limit() - Long.BYTES); // last bit position a whole window can be loaded at
+        long position0 = bitPositions[0];
+        long position1 = bitPositions[1];
+        long position2 = bitPositions[2];
+        long position3 = bitPositions[3];
+        int decoded = 0;
+        while (symbolCount - decoded >= STREAM_COUNT && position0 <= lastWindow && position1 <= lastWindow
+                && position2 <= lastWindow && position3 <= lastWindow) {
+            int entry0 = huffmanTree.decodeEntry(payload.getLong((int) (position0 >>> 3)) << (position0 & 7));
+            int entry1 = huffmanTree.decodeEntry(payload.getLong((int) (position1 >>> 3)) << (position1 & 7));
+            int entry2 = huffmanTree.decodeEntry(payload.getLong((int) (position2 >>> 3)) << (position2 & 7));
+            int entry3 = huffmanTree.decodeEntry(payload.getLong((int) (position3 >>> 3)) << (position3 & 7));
+            if (entry0 == 0 || entry1 == 0 || entry2 == 0 || entry3 == 0) {
+                throw new IOException("Invalid Huffman code in encoded file");
+            }
+            position0 += entry0 & HuffmanTree.LENGTH_MASK;
+            position1 += entry1 & HuffmanTree.LENGTH_MASK;
+            position2 += entry2 & HuffmanTree.LENGTH_MASK;
+            position3 += entry3 & HuffmanTree.LENGTH_MASK;
+            if (byteMode) {
+                outputBuffer.put((byte) (entry0 >>> 8)).put((byte) (entry1 >>> 8)).put((byte) (entry2 >>> 8))
+                        .put((byte) (entry3 >>> 8));
+            } else {
+                Utf8.encode((char) (entry0 >>> 8), outputBuffer);
+                Utf8.encode((char) (entry1 >>> 8), outputBuffer);
+                Utf8.encode((char) (entry2 >>> 8), outputBuffer);
+                Utf8.encode((char) (entry3 >>> 8), outputBuffer);
+            }
+            decoded += STREAM_COUNT;
+        }
+        bitPositions[0] = position0;
+        bitPositions[1] = position1;
+        bitPositions[2] = position2;
+        bitPositions[3] = position3;
+        return decoded;
+    }
+
+    /**
+     * Returns where the streams of an interleaved block start and end, using the
+     * stream table at the start of its payload.
+     *
+     * @param payload the payload of the block
+     * @return STREAM_COUNT + 1 positions in the payload buffer: the start of every
+     *         stream, then the end of the last one
+     * @throws IOException if the stream table does not fit the payload
+     */
+    private static int[] streamBounds(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < STREAM_TABLE_SIZE) {
+            throw new IOException("Invalid stream table in encoded data");
+        }
+        int[] bounds = new int[STREAM_COUNT + 1];
+        bounds[0] = payload.position() + STREAM_TABLE_SIZE;
+        for (int stream = 0; stream < STREAM_COUNT - 1; stream++) {
+            long length = payload.getInt(payload.position() + stream * Integer.BYTES) & 0xFFFFFFFFL;
+            if (length > payload.limit() - bounds[stream]) {
+                throw new IOException("Invalid stream table in encoded data");
+            }
+            bounds[stream + 1] = bounds[stream] + (int) length;
+        }
+        bounds[STREAM_COUNT] = payload.limit();
+        return bounds;
+    }
+
+    /**
+     * Decodes characters from a block payload into UTF-8 bytes, or into raw bytes
+     * in byte mode, starting at any code boundary, until at least the given number
+     * of bytes has been written. In UTF-8 the last character may add one byte
+     * more.
+     *
+     * @param payload      the packed codes of the block
+     * @param bitOffset    the position of the first code to decode, in bits from
+     *                     the start of the payload
+     * @param length       the number of bytes wanted
+     * @param maxSymbols   the most characters to decode, which guards against a
+     *                     malformed index
+     * @param decoder      the decoder used to decode the characters
+     * @param byteMode     whether every symbol is a raw byte
+     * @param outputBuffer the buffer that receives the decoded bytes
+     * @throws IOException if the payload is malformed
+     */
+    static void decodeBytes(ByteBuffer payload, long bitOffset, long length, int maxSymbols,
+            HuffmanDecoder decoder, boolean byteMode, ByteBuffer outputBuffer) throws IOException {
+        if (bitOffset < 0 || bitOffset > 8L * payload.remaining()) {
+            throw new IOException("Invalid sync point in encoded file");
+        }
+        BitReader reader = new BitReader(payload.position(payload.position() + (int) (bitOffset / 8)));
+        reader.skipBits((int) (bitOffset % 8));
+        HuffmanDecoder blockDecoder = decoder.forBlock();
+        int start = outputBuffer.position();
+        for (int i = 0; i < maxSymbols && outputBuffer.position() - start < length; i++) {
+            char character = blockDecoder.decodeNextCharacter(reader);
+            if (byteMode) {
+                outputBuffer.put((byte) character);
+            } else {
+                Utf8.encode(character, outputBuffer);
+            }
+        }
+    }
+}
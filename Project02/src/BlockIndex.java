@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * BlockIndex lists where every block of a binary container starts, how many
+ * characters it holds and where its text starts in the decoded output, so
+ * blocks can be found and decoded independently. Sync points inside the
+ * blocks, if the file was encoded with them, follow, and then the length of the
+ * decoded output. The index is written after the last block, followed by an
+ * eight byte trailer holding the position of the index.
+ */
+class BlockIndex {
+    static final int TRAILER_SIZE = Long.BYTES;
+    private static final int ENTRY_SIZE = Long.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int SYNC_POINT_SIZE = 2 * Long.BYTES;
+
+    private long[] bitOffsets;
+    private int[] symbolCounts;
+    private long[] decodedOffsets;
+    private int size;
+    private final SyncPoints syncPoints; // inside the blocks, in file order
+
+    /**
+     * Constructor for creating a new, empty BlockIndex.
+     */
+    BlockIndex() {
+        this.bitOffsets = new long[16];
+        this.symbolCounts = new int[16];
+        this.decodedOffsets = new long[16];
+        this.size = 0;
+        this.syncPoints = new SyncPoints();
+    }
+
+    /**
+     * Adds a block to the index, with the sync points found while encoding it.
+     *
+     * @param bitOffset       the position of the block's first code, in bits from
+     *                        the start of the file
+     * @param symbolCount     the number of characters in the block
+     * @param blockSyncPoints the sync points inside the block, relative to the
+     *                        block's first code and to the start of its text, and
+     *                        the length of its text
+     */
+    void add(long bitOffset, int symbolCount, SyncPoints blockSyncPoints) {
+        long decodedOffset = getDecodedSize();
+        for (int i = 0; i < blockSyncPoints.size(); i++) {
+            syncPoints.add(bitOffset + blockSyncPoints.getBitOffset(i),
+                    decodedOffset + blockSyncPoints.getDecodedOffset(i));
+        }
+        addBlock(bitOffset, symbolCount, decodedOffset);
+        syncPoints.setDecodedLength(decodedOffset + blockSyncPoints.getDecodedLength());
+    }
+
+    /**
+     * Appends a block entry.
+     *
+     * @param bitOffset     the position of the block's first code, in bits
+     * @param symbolCount   the number of characters in the block
+     * @param decodedOffset the position of the block's text in the decoded output
+     */
+    private void addBlock(long bitOffset, int symbolCount, long decodedOffset) {
+        if (size == bitOffsets.length) {
+            bitOffsets = Arrays.copyOf(bitOffsets, size * 2);
+            symbolCounts = Arrays.copyOf(symbolCounts, size * 2);
+            decodedOffsets = Arrays.copyOf(decodedOffsets, size * 2);
+        }
+        bitOffsets[size] = bitOffset;
+        symbolCounts[size] = symbolCount;
+        decodedOffsets[size] = decodedOffset;
+        size++;
+    }
+
+    /**
+     * Returns the number of blocks in the index.
+     *
+     * @return the number of blocks
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the position of a block's first code.
+     *
+     * @param block the block number
+     * @return the position in bits from the start of the file
+     */
+    long getBitOffset(int block) {
+        return bitOffsets[block];
+    }
+
+    /**
+     * Returns the number of characters in a block.
+     *
+     * @param block the block number
+     * @return the number of characters
+     */
+    int getSymbolCount(int block) {
+        return symbolCounts[block];
+    }
+
+    /**
+     * Returns where a block's text starts in the decoded output.
+     *
+     * @param block the block number
+     * @return the position in bytes
+     */
+    long getDecodedOffset(int block) {
+        return decodedOffsets[block];
+    }
+
+    /**
+     * Returns the length of the decoded output.
+     *
+     * @return the length in bytes
+     */
+    long getDecodedSize() {
+        return syncPoints.getDecodedLength();
+    }
+
+    /**
+     * Returns the sync points inside the blocks.
+     *
+     * @return the sync points
+     */
+    SyncPoints getSyncPoints() {
+        return syncPoints;
+    }
+
+    /**
+     * Finds the block whose text holds a position in the decoded output.
+     *
+     * @param decodedOffset the position in bytes, less than the decoded size
+     * @return the block number
+     */
+    int findBlock(long decodedOffset) {
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (decodedOffsets[middle] <= decodedOffset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the bytes of the index and the trailer.
+     *
+     * @param indexOffset the position in the encoded file where the index will be
+     *                    written
+     * @return a buffer holding the index and trailer, ready to be written
+     */
+    ByteBuffer toByteBuffer(long indexOffset) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + size * ENTRY_SIZE
+                + syncPoints.size() * SYNC_POINT_SIZE + Long.BYTES + TRAILER_SIZE);
+        buffer.putInt(size);
+        for (int i = 0; i < size; i++) {
+            buffer.putLong(bitOffsets[i]);
+            buffer.putInt(symbolCounts[i]);
+            buffer.putLong(decodedOffsets[i]);
+        }
+        buffer.putInt(syncPoints.size());
+        for (int i = 0; i < syncPoints.size(); i++) {
+            buffer.putLong(syncPoints.getBitOffset(i));
+            buffer.putLong(syncPoints.getDecodedOffset(i));
+        }
+        buffer.putLong(getDecodedSize());
+        buffer.putLong(indexOffset);
+        return buffer.flip();
+    }
+
+    /**
+     * Reads the index of an encoded file through its trailer.
+     *
+     * @param channel the encoded file
+     * @return the index
+     * @throws IOException if an I/O error occurs or the index is malformed
+     */
+    static BlockIndex read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < TRAILER_SIZE + 2 * Integer.BYTES + Long.BYTES) {
+            throw new IOException("Encoded file has no block index");
+        }
+        long indexOffset = InputChunks.read(channel, fileSize - TRAILER_SIZE, fileSize).getLong();
+        if (indexOffset < 0 || indexOffset > fileSize - TRAILER_SIZE - 2 * Integer.BYTES - Long.BYTES) {
+            throw new IOException("Invalid block index in encoded file");
+        }
+
+        ByteBuffer buffer = InputChunks.read(channel, indexOffset, fileSize - TRAILER_SIZE);
+        int count = buffer.getInt();
+        if (count < 0 || buffer.remaining() < (long) count * ENTRY_SIZE + Integer.BYTES + Long.BYTES) {
+            throw new IOException("Invalid block index in encoded file");
+        }
+        BlockIndex index = new BlockIndex();
+        for (int i = 0; i < count; i++) {
+            index.addBlock(buffer.getLong(), buffer.getInt(), buffer.getLong());
+        }
+        int syncCount = buffer.getInt();
+        if (syncCount < 0 || buffer.remaining() != (long) syncCount * SYNC_POINT_SIZE + Long.BYTES) {
+            throw new IOException("Invalid block index in encoded file");
+        }
+        for (int i = 0; i < syncCount; i++) {
+            index.syncPoints.add(buffer.getLong(), buffer.getLong());
+        }
+        index.syncPoints.setDecodedLength(buffer.getLong());
+        return index;
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.HashMap;
+
+/**
+ * CodeTable is a codebook compiled into two primitive arrays indexed by
+ * character: the canonical code bits and the code length. Encoding a character
+ * is two array reads, with no boxing, hashing or string handling.
+ */
+class CodeTable {
+    final int[] codes;
+    final byte[] lengths; // 0 for characters that have no code
+
+    /**
+     * Constructor for creating a CodeTable from code lengths. Characters are
+     * sorted by code length, then by character, and each one gets the next code
+     * of its length, so the lengths alone determine every code.
+     *
+     * @param codeLengths the code length of every character, indexed by character
+     */
+    CodeTable(int[] codeLengths) {
+        this.codes = new int[codeLengths.length];
+        this.lengths = new byte[codeLengths.length];
+
+        int code = 0;
+        int previousLength = 0;
+        for (int length = 1; length <= CodebookBuilder.MAX_CODE_LENGTH; length++) {
+            for (int character = 0; character < codeLengths.length; character++) {
+                if (codeLengths[character] != length) {
+                    continue;
+                }
+                code <<= length - previousLength;
+                previousLength = length;
+                codes[character] = code;
+                lengths[character] = (byte) length;
+                code++;
+            }
+        }
+    }
+
+    /**
+     * Returns the longest code length in the table.
+     *
+     * @return the longest code length in bits
+     */
+    int maxLength() {
+        int maxLength = 0;
+        for (byte length : lengths) {
+            maxLength = Math.max(maxLength, length);
+        }
+        return maxLength;
+    }
+
+    /**
+     * Converts the table back into a HashMap of code strings.
+     *
+     * @return a HashMap that maps characters to their Huffman codes
+     */
+    HashMap<Character, String> toCodebook() {
+        HashMap<Character, String> codebook = new HashMap<>();
+        for (int character = 0; character < lengths.length; character++) {
+            int length = lengths[character];
+            if (length == 0) {
+                continue;
+            }
+            StringBuilder huffmanCode = new StringBuilder(length);
+            for (int bit = length - 1; bit >= 0; bit--) {
+                huffmanCode.append((codes[character] >>> bit) & 1);
+            }
+            codebook.put((char) character, huffmanCode.toString());
+        }
+        return codebook;
+    }
+}
@@ -0,0 +1,488 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * CodebookBuilder builds an optimal Huffman codebook for a particular input
+ * file. The character frequencies are counted in parallel over chunks of the
+ * file, and the per-chunk histograms are merged before the tree is built with a
+ * priority queue. It also turns code lengths into canonical codes, so a
+ * codebook can be stored as just one length per character, and builds codes
+ * under a length limit with package-merge.
+ */
+class CodebookBuilder {
+    static final char FIRST_CHARACTER = '\u0007'; // first character that can be encoded
+    static final char LAST_CHARACTER = '\u00FE'; // last character that can be encoded
+    static final int MAX_CODE_LENGTH = 24;
+    static final int BYTE_ALPHABET_SIZE = 256; // symbols of byte mode, one per byte value
+    private static final int CHUNK_SIZE = 4 << 20;
+
+    /**
+     * Node is a class that represents a node in the tree built from the
+     * frequencies.
+     */
+    private static class Node implements Comparable<Node> {
+        private final long frequency;
+        private final int order; // breaks ties so the codebook is reproducible
+        private final char character;
+        private final Node left;
+        private final Node right;
+
+        /**
+         * Constructor for creating a leaf node.
+         *
+         * @param character the character stored in the leaf
+         * @param frequency how often the character occurs
+         */
+        Node(char character, long frequency) {
+            this.frequency = frequency;
+            this.order = character;
+            this.character = character;
+            this.left = null;
+            this.right = null;
+        }
+
+        /**
+         * Constructor for creating an internal node from two subtrees.
+         *
+         * @param left  the left subtree
+         * @param right the right subtree
+         * @param order the creation order of the node
+         */
+        Node(Node left, Node right, int order) {
+            this.frequency = left.frequency + right.frequency;
+            this.order = order;
+            this.character = 0;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Orders nodes by frequency, then by creation order.
+         *
+         * @param other the node to compare with
+         * @return a negative number, zero, or a positive number
+         */
+        @Override
+        public int compareTo(Node other) {
+            if (frequency != other.frequency) {
+                return Long.compare(frequency, other.frequency);
+            }
+            return Integer.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Counts how often every encodable character occurs in the given file. The
+     * file is split into chunks that are counted on separate threads.
+     *
+     * @param filename the name of the file to count
+     * @return the frequency of every character, indexed by character
+     * @throws IOException if an I/O error occurs while reading the file
+     */
+    static long[] countFrequencies(String filename) throws IOException {
+        return countFrequencies(filename, false);
+    }
+
+    /**
+     * Counts how often every byte value occurs in the given file, for byte mode.
+     *
+     * @param filename the name of the file to count
+     * @return the frequency of every byte value, indexed by value
+     * @throws IOException if an I/O error occurs while reading the file
+     */
+    static long[] countByteFrequencies(String filename) throws IOException {
+        return countFrequencies(filename, true);
+    }
+
+    /**
+     * Counts, for the context model, how often every encodable character follows
+     * every context. The file is split into the same blocks Encode uses, since
+     * every block starts over in START_CONTEXT, and the blocks are counted on
+     * separate threads.
+     *
+     * @param filename the name of the file to count
+     * @return the frequency of every character, indexed by context and then by
+     *         character
+     * @throws IOException if an I/O error occurs while reading the file
+     */
+    static long[][] countContextFrequencies(String filename) throws IOException {
+        long[][] frequencies = new long[ContextModel.CONTEXT_COUNT][ContextModel.CONTEXT_COUNT];
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try (MappedInput input = new MappedInput(filename)) {
+            List<Future<int[]>> histograms = new ArrayList<>();
+            for (long[] block : InputChunks.split(input, BlockCodec.BLOCK_SIZE)) {
+                histograms.add(executor.submit(() -> countContextBlock(input.slice(block[0], block[1]))));
+            }
+
+            for (Future<int[]> histogram : histograms) {
+                int[] counts = histogram.get();
+                for (int i = 0; i < counts.length; i++) {
+                    frequencies[i >>> 8][i & 0xFF] += counts[i];
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while counting frequencies");
+        } catch (ExecutionException e) {
+            throw PoolTasks.failure(e);
+        } finally {
+            executor.shutdown();
+        }
+        return frequencies;
+    }
+
+    /**
+     * Counts the encodable characters of one block by context.
+     *
+     * @param bytes the mapped bytes of the block
+     * @return the frequency of every character, indexed by context << 8 |
+     *         character
+     */
+    private static int[] countContextBlock(ByteBuffer bytes) {
+        char[] characters = new char[bytes.remaining()];
+        int count = Utf8.decode(bytes, characters);
+
+        int[] counts = new int[ContextModel.CONTEXT_COUNT * ContextModel.CONTEXT_COUNT];
+        int context = ContextModel.START_CONTEXT;
+        for (int i = 0; i < count; i++) {
+            char character = characters[i];
+            if (character >= FIRST_CHARACTER && character <= LAST_CHARACTER) {
+                counts[(context << 8) | character]++;
+                context = character;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Counts characters or bytes over chunks of the file on separate threads,
+     * and merges the per-chunk histograms.
+     *
+     * @param filename the name of the file to count
+     * @param byteMode whether to count byte values instead of characters
+     * @return the merged histogram
+     * @throws IOException if an I/O error occurs while reading the file
+     */
+    private static long[] countFrequencies(String filename, boolean byteMode) throws IOException {
+        long[] frequencies = new long[byteMode ? BYTE_ALPHABET_SIZE : LAST_CHARACTER + 1];
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try (MappedInput input = new MappedInput(filename)) {
+            List<Future<long[]>> histograms = new ArrayList<>();
+            List<long[]> chunks = byteMode ? InputChunks.splitBytes(input, CHUNK_SIZE)
+                    : InputChunks.split(input, CHUNK_SIZE);
+            for (long[] chunk : chunks) {
+                histograms.add(executor.submit(() -> byteMode ? countByteChunk(input.slice(chunk[0], chunk[1]))
+                        : countChunk(input.slice(chunk[0], chunk[1]))));
+            }
+
+            for (Future<long[]> histogram : histograms) {
+                long[] counts = histogram.get();
+                for (int i = 0; i < frequencies.length; i++) {
+                    frequencies[i] += counts[i];
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while counting frequencies");
+        } catch (ExecutionException e) {
+            throw PoolTasks.failure(e);
+        } finally {
+            executor.shutdown();
+        }
+        return frequencies;
+    }
+
+    /**
+     * Counts the characters in one chunk of the file.
+     *
+     * @param bytes the mapped bytes of the chunk
+     * @return the frequency of every character in the chunk
+     */
+    private static long[] countChunk(ByteBuffer bytes) {
+        char[] characters = new char[bytes.remaining()];
+        int count = Utf8.decode(bytes, characters);
+
+        long[] counts = new long[LAST_CHARACTER + 1];
+        for (int i = 0; i < count; i++) {
+            char character = characters[i];
+            if (character >= FIRST_CHARACTER && character <= LAST_CHARACTER) {
+                counts[character]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the byte values in one chunk of the file.
+     *
+     * @param bytes the mapped bytes of the chunk
+     * @return the frequency of every byte value in the chunk
+     */
+    private static long[] countByteChunk(ByteBuffer bytes) {
+        long[] counts = new long[BYTE_ALPHABET_SIZE];
+        while (bytes.hasRemaining()) {
+            counts[bytes.get() & 0xFF]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Builds an optimal codebook in which only the symbols that occur get a code,
+     * with no EOT added, so the codebook of empty input is empty. Binary blocks
+     * carry their symbol count and never code EOT, so a code for it would only
+     * take code space from the symbols that occur. -freq uses it for
+     * characters, byte mode for byte values, and the context model for each
+     * context.
+     *
+     * @param frequencies the frequency of every symbol, indexed by symbol
+     * @return a HashMap that maps symbols to their Huffman codes
+     */
+    static HashMap<Character, String> buildSymbolCodebook(long[] frequencies) {
+        for (long frequency : frequencies) {
+            if (frequency > 0) {
+                return buildLimitedCodebook(frequencies.clone());
+            }
+        }
+        return new HashMap<>();
+    }
+
+    /**
+     * Builds the codebook and flattens it until no code is longer than
+     * MAX_CODE_LENGTH.
+     *
+     * @param weights the weight of every symbol, at least one of them positive;
+     *                it is changed in place
+     * @return a HashMap that maps symbols to their Huffman codes
+     */
+    private static HashMap<Character, String> buildLimitedCodebook(long[] weights) {
+        while (true) {
+            HashMap<Character, String> codebook = new HashMap<>();
+            assignCodes(buildTree(weights), "", codebook);
+            int maxLength = 0;
+            for (String huffmanCode : codebook.values()) {
+                maxLength = Math.max(maxLength, huffmanCode.length());
+            }
+            if (maxLength <= MAX_CODE_LENGTH) {
+                return codebook;
+            }
+            for (int i = 0; i < weights.length; i++) {
+                if (weights[i] > 0) {
+                    weights[i] = Math.max(weights[i] / 2, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a Huffman tree by repeatedly joining the two least frequent nodes.
+     *
+     * @param weights the weight of every character, indexed by character
+     * @return the root of the tree
+     */
+    private static Node buildTree(long[] weights) {
+        PriorityQueue<Node> queue = new PriorityQueue<>();
+        for (int character = 0; character < weights.length; character++) {
+            if (weights[character] > 0) {
+                queue.add(new Node((char) character, weights[character]));
+            }
+        }
+
+        int order = weights.length;
+        if (queue.size() == 1) {
+            // a lone character still needs a one-bit code
+            return new Node(queue.poll(), new Node((char) 0, 0), order);
+        }
+        while (queue.size() > 1) {
+            Node left = queue.poll();
+            Node right = queue.poll();
+            queue.add(new Node(left, right, order++));
+        }
+        return queue.poll();
+    }
+
+    /**
+     * Walks the tree and records the code of every leaf.
+     *
+     * @param node     the current node
+     * @param prefix   the code of the current node
+     * @param codebook the codebook being filled
+     */
+    private static void assignCodes(Node node, String prefix, HashMap<Character, String> codebook) {
+        if (node.left == null) {
+            if (node.frequency > 0) {
+                codebook.put(node.character, prefix);
+            }
+            return;
+        }
+        assignCodes(node.left, prefix + "0", codebook);
+        assignCodes(node.right, prefix + "1", codebook);
+    }
+
+    /**
+     * Computes optimal code lengths that are no longer than maxLength, with the
+     * package-merge algorithm. The symbols, sorted by weight, are the coins of
+     * every denomination 2^-1 .. 2^-maxLength. Starting from the smallest
+     * denomination, pairs of adjacent items are packaged into one item of the
+     * next denomination and merged with that denomination's coins. The 2n - 2
+     * cheapest items of the last list make the cheapest set of coins worth n - 1,
+     * and the code length of a symbol is the number of its coins in that set.
+     *
+     * @param weights   the weight of every symbol, indexed by symbol
+     * @param maxLength the longest code length allowed
+     * @return the code length of every symbol, indexed by symbol, with 0 for
+     *         symbols whose weight is 0
+     * @throws IllegalArgumentException if more than 2^maxLength symbols have a
+     *                                  weight
+     */
+    static int[] limitedCodeLengths(long[] weights, int maxLength) {
+        List<Node> leaves = new ArrayList<>();
+        for (int symbol = 0; symbol < weights.length; symbol++) {
+            if (weights[symbol] > 0) {
+                leaves.add(new Node((char) symbol, weights[symbol]));
+            }
+        }
+        leaves.sort(null);
+
+        int[] lengths = new int[weights.length];
+        if (leaves.size() == 1) {
+            // a lone symbol still needs a one-bit code
+            lengths[leaves.get(0).character] = 1;
+            return lengths;
+        }
+        if (leaves.size() > 1L << maxLength) {
+            throw new IllegalArgumentException(
+                    leaves.size() + " symbols do not fit in codes of at most " + maxLength + " bits");
+        }
+
+        List<Node> items = leaves;
+        int order = weights.length;
+        for (int denomination = 1; denomination < maxLength; denomination++) {
+            List<Node> merged = new ArrayList<>(2 * leaves.size());
+            int leaf = 0;
+            for (int i = 0; i + 1 < items.size(); i += 2) {
+                Node item = new Node(items.get(i), items.get(i + 1), order++);
+                while (leaf < leaves.size() && leaves.get(leaf).frequency <= item.frequency) {
+                    merged.add(leaves.get(leaf++));
+                }
+                merged.add(item);
+            }
+            merged.addAll(leaves.subList(leaf, leaves.size()));
+            items = merged;
+        }
+        for (Node item : items.subList(0, 2 * leaves.size() - 2)) {
+            countCoins(item, lengths);
+        }
+        return lengths;
+    }
+
+    /**
+     * Adds one to the code length of every leaf under a package-merge item.
+     *
+     * @param item    the item, a leaf or a package of two items
+     * @param lengths the code lengths being counted
+     */
+    private static void countCoins(Node item, int[] lengths) {
+        if (item.left == null) {
+            lengths[item.character]++;
+            return;
+        }
+        countCoins(item.left, lengths);
+        countCoins(item.right, lengths);
+    }
+
+    /**
+     * Returns the number of bits an unconstrained Huffman code spends on
+     * symbols with the given weights, however long its codes get. Every
+     * internal node of the tree adds one bit to each symbol below it, so this
+     * is the sum of the weights of the internal nodes.
+     *
+     * @param weights the weight of every symbol, indexed by symbol, at least one
+     *                of them positive
+     * @return the number of bits of the optimal code
+     */
+    static long optimalBits(long[] weights) {
+        return internalWeight(buildTree(weights));
+    }
+
+    /**
+     * Sums the weights of the internal nodes of a tree.
+     *
+     * @param node the root of the tree
+     * @return the sum of the weights of the internal nodes
+     */
+    private static long internalWeight(Node node) {
+        if (node.left == null) {
+            return 0;
+        }
+        return node.frequency + internalWeight(node.left) + internalWeight(node.right);
+    }
+
+    /**
+     * Returns the number of bits the given code lengths spend on symbols with
+     * the given weights.
+     *
+     * @param weights     the weight of every symbol, indexed by symbol
+     * @param codeLengths the code length of every symbol, indexed by symbol
+     * @return the sum of weight times code length over all symbols
+     */
+    static long codedBits(long[] weights, int[] codeLengths) {
+        long bits = 0;
+        for (int symbol = 0; symbol < Math.min(weights.length, codeLengths.length); symbol++) {
+            bits += weights[symbol] * codeLengths[symbol];
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the code length of every character in the codebook.
+     *
+     * @param codebook the codebook to measure
+     * @return the code length of every character, indexed by character, with 0
+     *         for characters that have no code
+     */
+    static int[] codeLengths(HashMap<Character, String> codebook) {
+        return codeLengths(codebook, LAST_CHARACTER + 1);
+    }
+
+    /**
+     * Returns the code length of every symbol below the given alphabet size.
+     *
+     * @param codebook     the codebook to measure
+     * @param alphabetSize the number of symbols
+     * @return the code length of every symbol, indexed by symbol, with 0 for
+     *         symbols that have no code
+     */
+    static int[] codeLengths(HashMap<Character, String> codebook, int alphabetSize) {
+        int[] lengths = new int[alphabetSize];
+        for (HashMap.Entry<Character, String> entry : codebook.entrySet()) {
+            char character = entry.getKey();
+            if (character < lengths.length) {
+                lengths[character] = entry.getValue().length();
+            }
+        }
+        return lengths;
+    }
+
+    /**
+     * Assigns canonical codes to the given code lengths. See CodeTable for how
+     * the codes are chosen.
+     *
+     * @param lengths the code length of every character, indexed by character
+     * @return a HashMap that maps characters to their canonical Huffman codes
+     */
+    static HashMap<Character, String> canonicalCodebook(int[] lengths) {
+        return new CodeTable(lengths).toCodebook();
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CodecMetrics collects timings and sizes of one Encode or Decode run and
+ * prints them as text or JSON. Phases timed on the main thread add to plain
+ * counters. Encoding and decoding run on a pool, so every block adds its own
+ * time once, which makes that phase the time summed over all threads.
+ * Nothing is done per character: the coding loops are unchanged, and the
+ * symbol histogram used for the entropy is a separate pass over each block
+ * that only runs when metrics are on.
+ *
+ * The input is memory-mapped, so reading it happens as page faults while the
+ * blocks are coded; the read phase covers only what is read explicitly, the
+ * mapping, header and index.
+ */
+class CodecMetrics {
+    static final String FORMAT_TEXT = "text";
+    static final String FORMAT_JSON = "json";
+
+    private final String operation; // encode or decode
+    private final long startTime;
+    private long codebookTime;
+    private long readTime;
+    private final AtomicLong codingTime;
+    private long writeTime;
+    private long totalTime;
+    private long inputBytes;
+    private long outputBytes;
+    private long symbolCount;
+    private long payloadBits;
+    private final long[] histogram; // indexed by symbol
+
+    /**
+     * Constructor for creating a new CodecMetrics. The total time starts now.
+     *
+     * @param operation the operation being measured, encode or decode
+     */
+    CodecMetrics(String operation) {
+        this.operation = operation;
+        this.startTime = System.nanoTime();
+        this.codingTime = new AtomicLong();
+        this.histogram = new long[CodebookBuilder.BYTE_ALPHABET_SIZE];
+    }
+
+    /**
+     * Adds time spent loading or building the codebook.
+     *
+     * @param nanos the time in nanoseconds
+     */
+    void addCodebookTime(long nanos) {
+        codebookTime += nanos;
+    }
+
+    /**
+     * Adds time spent reading input.
+     *
+     * @param nanos the time in nanoseconds
+     */
+    void addReadTime(long nanos) {
+        readTime += nanos;
+    }
+
+    /**
+     * Adds time spent encoding or decoding one block. Safe to call from any
+     * thread.
+     *
+     * @param nanos the time in nanoseconds
+     */
+    void addCodingTime(long nanos) {
+        codingTime.addAndGet(nanos);
+    }
+
+    /**
+     * Adds time spent writing output.
+     *
+     * @param nanos the time in nanoseconds
+     */
+    void addWriteTime(long nanos) {
+        writeTime += nanos;
+    }
+
+    /**
+     * Adds one coded block. Safe to call from any thread.
+     *
+     * @param symbols      the number of symbols in the block
+     * @param payloadBytes the size of the block's packed codes
+     */
+    synchronized void addBlock(long symbols, long payloadBytes) {
+        symbolCount += symbols;
+        payloadBits += 8 * payloadBytes;
+    }
+
+    /**
+     * Sets the sizes of the input and output files.
+     *
+     * @param inputBytes  the size of the input in bytes
+     * @param outputBytes the size of the output in bytes
+     */
+    void setSizes(long inputBytes, long outputBytes) {
+        this.inputBytes = inputBytes;
+        this.outputBytes = outputBytes;
+    }
+
+    /**
+     * Counts the symbols of one block into the histogram: UTF-8 characters, or
+     * raw bytes in byte mode. Only symbols that have a code are counted, since
+     * the others are not encoded. Safe to call from any thread.
+     *
+     * @param bytes    the bytes of the block; its position is not moved
+     * @param byteMode whether every byte is a symbol
+     * @param lengths  the code length of every symbol, 0 for none
+     */
+    void countSymbols(ByteBuffer bytes, boolean byteMode, byte[] lengths) {
+        long[] counts = new long[lengths.length];
+        ByteBuffer view = bytes.duplicate();
+        if (byteMode) {
+            while (view.hasRemaining()) {
+                counts[view.get() & 0xFF]++;
+            }
+        } else {
+            char[] characters = new char[view.remaining()];
+            int count = Utf8.decode(view, characters);
+            for (int i = 0; i < count; i++) {
+                if (characters[i] < lengths.length) {
+                    counts[characters[i]]++;
+                }
+            }
+        }
+        synchronized (histogram) {
+            for (int symbol = 0; symbol < counts.length; symbol++) {
+                if (lengths[symbol] != 0) {
+                    histogram[symbol] += counts[symbol];
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the total time.
+     */
+    void stop() {
+        totalTime = System.nanoTime() - startTime;
+    }
+
+    /**
+     * Returns the Shannon entropy of the counted symbols, the fewest bits per
+     * symbol any code for them could use on average.
+     *
+     * @return the entropy in bits per symbol
+     */
+    double entropy() {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        double entropy = 0;
+        for (long count : histogram) {
+            if (count > 0) {
+                double p = (double) count / total;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy;
+    }
+
+    /**
+     * Prints the metrics in the given format.
+     *
+     * @param out    the stream to print to
+     * @param format FORMAT_TEXT or FORMAT_JSON
+     */
+    void print(PrintStream out, String format) {
+        double bitsPerSymbol = symbolCount == 0 ? 0 : (double) payloadBits / symbolCount;
+        double entropy = entropy();
+        // throughput in MB of the uncompressed side, 1 MB = 10^6 bytes
+        long plainBytes = operation.equals("encode") ? inputBytes : outputBytes;
+        double megabytesPerSecond = totalTime == 0 ? 0 : plainBytes / 1e6 / (totalTime / 1e9);
+        double codingMegabytesPerSecond = codingTime.get() == 0 ? 0 : plainBytes / 1e6 / (codingTime.get() / 1e9);
+
+        if (format.equals(FORMAT_JSON)) {
+            out.printf(Locale.ROOT, "{\"operation\":\"%s\",\"codebookMs\":%.3f,\"readMs\":%.3f,"
+                    + "\"%sMs\":%.3f,\"writeMs\":%.3f,\"totalMs\":%.3f,\"inputBytes\":%d,\"outputBytes\":%d,"
+                    + "\"symbols\":%d,\"bitsPerSymbol\":%.4f,\"entropyBitsPerSymbol\":%.4f,"
+                    + "\"megabytesPerSecond\":%.2f,\"%sMegabytesPerSecond\":%.2f}%n", operation,
+                    codebookTime / 1e6, readTime / 1e6, operation, codingTime.get() / 1e6, writeTime / 1e6,
+                    totalTime / 1e6, inputBytes, outputBytes, symbolCount, bitsPerSymbol, entropy,
+                    megabytesPerSecond, operation, codingMegabytesPerSecond);
+            return;
+        }
+        out.printf(Locale.ROOT, "%-14s %12.3f ms%n", "codebook", codebookTime / 1e6);
+        out.printf(Locale.ROOT, "%-14s %12.3f ms%n", "read", readTime / 1e6);
+        out.printf(Locale.ROOT, "%-14s %12.3f ms (summed over threads)%n", operation, codingTime.get() / 1e6);
+        out.printf(Locale.ROOT, "%-14s %12.3f ms%n", "write", writeTime / 1e6);
+        out.printf(Locale.ROOT, "%-14s %12.3f ms%n", "total", totalTime / 1e6);
+        out.printf(Locale.ROOT, "%-14s %12d bytes%n", "input", inputBytes);
+        out.printf(Locale.ROOT, "%-14s %12d bytes%n", "output", outputBytes);
+        out.printf(Locale.ROOT, "%-14s %12d%n", "symbols", symbolCount);
+        out.printf(Locale.ROOT, "%-14s %12.4f (entropy %.4f)%n", "bits/symbol", bitsPerSymbol, entropy);
+        out.printf(Locale.ROOT, "%-14s %12.2f MB/s (%s alone %.2f MB/s)%n", "throughput", megabytesPerSecond,
+                operation, codingMegabytesPerSecond);
+    }
+}
@@ -0,0 +1,322 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * CompiledCodebook is the codebook in a binary form that loads with no parsing.
+ * The text codebook is read line by line, split, parsed into numbers and boxed
+ * into a HashMap, and for a small file that takes longer than the encoding.
+ * Run as a program, this class compiles the codebook file once into
+ * codebook.bin, which holds the code lengths and the codes of the codebook
+ * file. Where Encode and Decode use the codebook file, they memory-map that
+ * file and copy the arrays out in bulk. Containers carry their own code
+ * lengths and are decoded from them alone.
+ *
+ * The compiled file records a SHA-256 hash of the codebook file it was
+ * compiled from, and is used only while the codebook file still has that
+ * hash; otherwise the text is parsed as before, so an edited codebook is never
+ * shadowed by a stale compiled one. Hashing the text is far cheaper than
+ * parsing it.
+ *
+ * Layout, big-endian: MAGIC, VERSION, the hash, the alphabet size n, then n
+ * code length bytes followed by the n codebook codes as ints.
+ */
+public class CompiledCodebook {
+    static final String CODEBOOK_FILENAME = "codebook";
+    static final String COMPILED_FILENAME = "codebook.bin";
+    private static final byte[] MAGIC = { 'H', 'C', 'B', 'K' };
+    private static final int VERSION = 2;
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int HASH_SIZE = 32;
+    private static final int HEADER_SIZE = MAGIC.length + HASH_SIZE + 2 * Integer.BYTES;
+
+    private final byte[] lengths; // indexed by character, 0 for characters that have no code
+    private final int[] codes; // the codes of the codebook file
+
+    /**
+     * Constructor for creating a CompiledCodebook from its arrays.
+     *
+     * @param lengths the code length of every character
+     * @param codes   the codes of the codebook file
+     */
+    private CompiledCodebook(byte[] lengths, int[] codes) {
+        this.lengths = lengths;
+        this.codes = codes;
+    }
+
+    /**
+     * The main method that takes up to two command line arguments: the codebook
+     * filename and the compiled filename, which default to codebook and
+     * codebook.bin. It compiles the codebook into the binary form.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length > 2) {
+            System.err.println("ERROR: Incorrect number of arguments. Expected: [<codebook filename> "
+                    + "[<compiled filename>]]");
+            return;
+        }
+        String codebookFilename = args.length > 0 ? args[0] : CODEBOOK_FILENAME;
+        String compiledFilename = args.length > 1 ? args[1] : COMPILED_FILENAME;
+
+        try {
+            HashMap<Character, String> codebook = readText(codebookFilename);
+            if (codebook.isEmpty()) {
+                System.err.println("ERROR: No codes in " + codebookFilename);
+                return;
+            }
+            CompiledCodebook compiled = compile(codebook);
+            compiled.write(compiledFilename, hash(Paths.get(codebookFilename)));
+            System.out.println("Compiled " + codebook.size() + " codes into " + compiledFilename);
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the codebook file, from the compiled file if it was compiled from
+     * the codebook file as it is now and from the text otherwise.
+     *
+     * @return the codebook
+     * @throws IOException if the codebook file cannot be read, is invalid or has
+     *                     no codes
+     */
+    static CompiledCodebook load() throws IOException {
+        CompiledCodebook compiled = loadCompiled();
+        if (compiled != null) {
+            return compiled;
+        }
+        HashMap<Character, String> codebook = readText(CODEBOOK_FILENAME);
+        if (codebook.isEmpty()) {
+            throw new IOException("No codes in codebook file " + CODEBOOK_FILENAME);
+        }
+        try {
+            return compile(codebook);
+        } catch (IOException e) {
+            throw new IOException("Invalid codebook file - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the code length of every character.
+     *
+     * @return the code lengths, indexed by character, with 0 for characters that
+     *         have no code
+     */
+    int[] codeLengths() {
+        int[] codeLengths = new int[CodebookBuilder.LAST_CHARACTER + 1];
+        for (int character = 0; character < codeLengths.length && character < lengths.length; character++) {
+            codeLengths[character] = lengths[character];
+        }
+        return codeLengths;
+    }
+
+    /**
+     * Converts the codes of the codebook file back into a HashMap of code
+     * strings, for the -text modes.
+     *
+     * @return a HashMap that maps characters to their Huffman codes
+     */
+    HashMap<Character, String> toCodebook() {
+        HashMap<Character, String> codebook = new HashMap<>();
+        for (int character = 0; character < lengths.length; character++) {
+            int length = lengths[character];
+            if (length == 0) {
+                continue;
+            }
+            StringBuilder huffmanCode = new StringBuilder(length);
+            for (int bit = length - 1; bit >= 0; bit--) {
+                huffmanCode.append((codes[character] >>> bit) & 1);
+            }
+            codebook.put((char) character, huffmanCode.toString());
+        }
+        return codebook;
+    }
+
+    /**
+     * Reads the text codebook, where every line is a character number, a colon
+     * and the character's code, made of '0' and '1' characters.
+     *
+     * @param filename the name of the codebook file
+     * @return a HashMap that maps characters to their Huffman codes
+     * @throws IOException if the file cannot be read or a line is invalid
+     */
+    static HashMap<Character, String> readText(String filename) throws IOException {
+        HashMap<Character, String> codebook = new HashMap<>();
+        String invalidLine = null;
+
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int colon = line.indexOf(':');
+                int end = colon < 0 ? -1 : line.indexOf(':', colon + 1);
+                String huffmanCode = colon < 0 ? "" : line.substring(colon + 1, end < 0 ? line.length() : end);
+                int character;
+                try {
+                    character = colon < 0 ? -1 : Integer.parseInt(line.substring(0, colon));
+                } catch (NumberFormatException e) {
+                    character = -1;
+                }
+                if (character < 0 || character > Character.MAX_VALUE || !huffmanCode.matches("[01]+")) {
+                    invalidLine = line;
+                    break;
+                }
+                codebook.put((char) character, huffmanCode);
+            }
+        } catch (IOException e) {
+            throw new IOException("Failed to read codebook file - " + e.getMessage(), e);
+        }
+        if (invalidLine != null) {
+            throw new IOException("Invalid line in codebook - " + invalidLine);
+        }
+        return codebook;
+    }
+
+    /**
+     * Compiles a codebook into its arrays.
+     *
+     * @param codebook the codebook to compile
+     * @return the compiled codebook
+     * @throws IOException if a code is longer than MAX_CODE_LENGTH
+     */
+    private static CompiledCodebook compile(HashMap<Character, String> codebook) throws IOException {
+        int alphabetSize = CodebookBuilder.LAST_CHARACTER + 1;
+        for (char character : codebook.keySet()) {
+            alphabetSize = Math.max(alphabetSize, character + 1);
+        }
+        byte[] lengths = new byte[alphabetSize];
+        int[] codes = new int[alphabetSize];
+        for (HashMap.Entry<Character, String> entry : codebook.entrySet()) {
+            String huffmanCode = entry.getValue();
+            if (huffmanCode.length() > CodebookBuilder.MAX_CODE_LENGTH) {
+                throw new IOException("Code for character " + (int) entry.getKey()
+                        + " is longer than " + CodebookBuilder.MAX_CODE_LENGTH + " bits");
+            }
+            int code = 0;
+            for (int i = 0; i < huffmanCode.length(); i++) {
+                code = (code << 1) | (huffmanCode.charAt(i) == '1' ? 1 : 0);
+            }
+            lengths[entry.getKey()] = (byte) huffmanCode.length();
+            codes[entry.getKey()] = code;
+        }
+        return new CompiledCodebook(lengths, codes);
+    }
+
+    /**
+     * Loads the compiled codebook file if it exists and was compiled from the
+     * codebook file as it is now. The compiled file only stands in for the text,
+     * so one that cannot be used is passed over in silence and the text is
+     * parsed instead.
+     *
+     * @return the compiled codebook, or null if there is none to use
+     */
+    private static CompiledCodebook loadCompiled() {
+        Path compiledPath = Paths.get(COMPILED_FILENAME);
+        Path codebookPath = Paths.get(CODEBOOK_FILENAME);
+        if (!Files.isRegularFile(compiledPath) || !Files.isRegularFile(codebookPath)) {
+            return null;
+        }
+        try {
+            return read(compiledPath, hash(codebookPath));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the hash of a codebook file, which ties a compiled file to the
+     * text it was compiled from.
+     *
+     * @param path the codebook file
+     * @return the SHA-256 hash of the file's bytes
+     * @throws IOException if the file cannot be read
+     */
+    private static byte[] hash(Path path) throws IOException {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM).digest(Files.readAllBytes(path));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(HASH_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Memory-maps a compiled codebook file and copies its arrays out.
+     *
+     * @param path         the compiled codebook file
+     * @param codebookHash the hash of the codebook file the compiled file must
+     *                     have been compiled from
+     * @return the compiled codebook
+     * @throws IOException if an I/O error occurs, the file is malformed or was
+     *                     compiled from another codebook
+     */
+    private static CompiledCodebook read(Path path, byte[] codebookHash) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IOException("Compiled codebook is too short");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a compiled codebook");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported compiled codebook version " + version);
+            }
+            byte[] hash = new byte[HASH_SIZE];
+            buffer.get(hash);
+            if (!Arrays.equals(hash, codebookHash)) {
+                throw new IOException("Compiled from another codebook");
+            }
+            int alphabetSize = buffer.getInt();
+            if (alphabetSize <= 0 || alphabetSize > Character.MAX_VALUE + 1
+                    || fileSize != HEADER_SIZE + (long) alphabetSize * (1 + Integer.BYTES)) {
+                throw new IOException("Invalid compiled codebook size");
+            }
+
+            byte[] lengths = new byte[alphabetSize];
+            buffer.get(lengths);
+            int[] codes = new int[alphabetSize];
+            buffer.asIntBuffer().get(codes);
+            for (int character = 0; character < alphabetSize; character++) {
+                if (lengths[character] < 0 || lengths[character] > CodebookBuilder.MAX_CODE_LENGTH
+                        || (codes[character] >>> lengths[character]) != 0) {
+                    throw new IOException("Invalid code for character " + character);
+                }
+            }
+            return new CompiledCodebook(lengths, codes);
+        }
+    }
+
+    /**
+     * Writes the compiled codebook file.
+     *
+     * @param filename     the name of the compiled file
+     * @param codebookHash the hash of the codebook file it is compiled from
+     * @throws IOException if an I/O error occurs while writing
+     */
+    private void write(String filename, byte[] codebookHash) throws IOException {
+        int alphabetSize = lengths.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + alphabetSize * (1 + Integer.BYTES));
+        buffer.put(MAGIC).putInt(VERSION).put(codebookHash).putInt(alphabetSize).put(lengths);
+        buffer.asIntBuffer().put(codes);
+        try (OutputStream out = Files.newOutputStream(Paths.get(filename))) {
+            out.write(buffer.array());
+        }
+    }
+}
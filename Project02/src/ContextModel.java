@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * ContextModel is an order-1 context model for Huffman coding. Instead of one
+ * codebook for the whole file, every context, which is the character encoded
+ * just before, has its own codebook built from the characters that follow it.
+ * In text the next character depends strongly on the previous one, so each of
+ * these codebooks is much more skewed than a single global one, and its codes
+ * are shorter.
+ *
+ * The context is a byte-wide index: characters are at most LAST_CHARACTER, and
+ * START_CONTEXT, a character that is never encoded, is the context of the
+ * first character of every block, so blocks stay independent. Encoding looks
+ * the code up in one flat table indexed by context and character; decoding
+ * uses one table decoder per context.
+ */
+class ContextModel {
+    static final int CONTEXT_COUNT = 256;
+    static final int START_CONTEXT = 0; // context of a block's first character
+
+    final int[] codes; // indexed by context << 8 | character
+    final byte[] lengths; // 0 for characters that have no code in the context
+    private final int[][] codeLengths; // indexed by context, null for contexts that never occur
+
+    /**
+     * ContextDecoder decodes one block, switching to the decoder of each
+     * character's context. The decoders are shared; only the current context
+     * belongs to the block.
+     */
+    private static class ContextDecoder implements HuffmanDecoder {
+        private final HuffmanDecoder[] decoders; // indexed by context, null for contexts that never occur
+        private int context;
+
+        /**
+         * Constructor for creating a new ContextDecoder in START_CONTEXT.
+         *
+         * @param decoders the decoder of every context
+         */
+        ContextDecoder(HuffmanDecoder[] decoders) {
+            this.decoders = decoders;
+            this.context = START_CONTEXT;
+        }
+
+        /**
+         * Decodes the next character with the decoder of the current context,
+         * which then becomes the character.
+         *
+         * @param reader the BitReader used to read the packed bits
+         * @return the decoded character
+         * @throws IOException if an I/O error occurs or the bits are not a valid
+         *                     code
+         */
+        @Override
+        public char decodeNextCharacter(BitReader reader) throws IOException {
+            HuffmanDecoder decoder = decoders[context];
+            if (decoder == null) {
+                throw new IOException("Invalid context in encoded file");
+            }
+            char character = decoder.decodeNextCharacter(reader);
+            context = character;
+            return character;
+        }
+
+        /**
+         * Returns a decoder for one block, starting in START_CONTEXT.
+         *
+         * @return a new ContextDecoder sharing the per-context decoders
+         */
+        @Override
+        public HuffmanDecoder forBlock() {
+            return new ContextDecoder(decoders);
+        }
+    }
+
+    /**
+     * Constructor for creating a ContextModel from the code lengths of every
+     * context. The codes are canonical, as in CodeTable.
+     *
+     * @param codeLengths the code lengths of every context, indexed by context
+     *                    and then by character, with null for contexts that
+     *                    never occur
+     */
+    ContextModel(int[][] codeLengths) {
+        this.codeLengths = codeLengths;
+        this.codes = new int[CONTEXT_COUNT * CONTEXT_COUNT];
+        this.lengths = new byte[CONTEXT_COUNT * CONTEXT_COUNT];
+        for (int context = 0; context < CONTEXT_COUNT; context++) {
+            if (codeLengths[context] == null) {
+                continue;
+            }
+            CodeTable codeTable = new CodeTable(codeLengths[context]);
+            for (int character = 0; character < codeTable.lengths.length; character++) {
+                codes[(context << 8) | character] = codeTable.codes[character];
+                lengths[(context << 8) | character] = codeTable.lengths[character];
+            }
+        }
+    }
+
+    /**
+     * Builds the context model of a file: the characters are counted by context,
+     * and every context that occurs gets an optimal codebook for the characters
+     * that follow it.
+     *
+     * @param filename the name of the file
+     * @return the context model
+     * @throws IOException if an I/O error occurs while reading the file
+     */
+    static ContextModel build(String filename) throws IOException {
+        return build(CodebookBuilder.countContextFrequencies(filename), 0);
+    }
+
+    /**
+     * Builds a context model from counted frequencies. With a maximum code
+     * length, every context gets the optimal codebook among those with no code
+     * longer than that.
+     *
+     * @param frequencies the frequency of every character in every context,
+     *                    indexed by context and then by character
+     * @param maxLength   the longest code length allowed, or 0 for no limit
+     * @return the context model
+     */
+    static ContextModel build(long[][] frequencies, int maxLength) {
+        int[][] codeLengths = new int[CONTEXT_COUNT][];
+        for (int context = 0; context < CONTEXT_COUNT; context++) {
+            HashMap<Character, String> codebook = CodebookBuilder.buildSymbolCodebook(frequencies[context]);
+            if (codebook.isEmpty()) {
+                continue;
+            }
+            codeLengths[context] = maxLength > 0
+                    ? CodebookBuilder.limitedCodeLengths(frequencies[context], maxLength)
+                    : CodebookBuilder.codeLengths(codebook, CONTEXT_COUNT);
+        }
+        return new ContextModel(codeLengths);
+    }
+
+    /**
+     * Returns the code lengths of every context.
+     *
+     * @return the code lengths, indexed by context and then by character, with
+     *         null for contexts that never occur
+     */
+    int[][] getCodeLengths() {
+        return codeLengths;
+    }
+
+    /**
+     * Returns the longest code length of any context.
+     *
+     * @return the longest code length in bits
+     */
+    int maxLength() {
+        int maxLength = 0;
+        for (byte length : lengths) {
+            maxLength = Math.max(maxLength, length);
+        }
+        return maxLength;
+    }
+
+    /**
+     * Marks the characters that have a code in any context.
+     *
+     * @return a non-zero entry, indexed by character, for every character that
+     *         can be encoded
+     */
+    byte[] codedCharacters() {
+        byte[] coded = new byte[CONTEXT_COUNT];
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] != 0) {
+                coded[i & 0xFF] = 1;
+            }
+        }
+        return coded;
+    }
+
+    /**
+     * Creates a decoder for the model, with a decoder of the given kind for every
+     * context. Every block should be decoded with its own forBlock() copy, which
+     * BlockCodec takes care of.
+     *
+     * @param decoderName the decoder to use in every context: table, tree or flat
+     * @return the decoder
+     */
+    HuffmanDecoder createDecoder(String decoderName) {
+        HuffmanDecoder[] decoders = new HuffmanDecoder[CONTEXT_COUNT];
+        for (int context = 0; context < CONTEXT_COUNT; context++) {
+            if (codeLengths[context] != null) {
+                decoders[context] = Decode.createDecoder(decoderName, codeLengths[context]);
+            }
+        }
+        return new ContextDecoder(decoders);
+    }
+}
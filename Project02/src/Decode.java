@@ -1,163 +1,601 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
- * HuffmanTree is a class that represents a Huffman tree and provides
- * functionality to build the tree and decode characters using the tree.
+ * Decode is a class that reads an encoded file, decodes it using a Huffman
+ * tree, and writes the decoded data to an output file. Files written by Encode
+ * with the -text option must be decoded with -text as well, and files written
+ * with -adaptive with -adaptive. Archives written with -archive are extracted
+ * with -archive, whole or one file at a time. Every other binary file needs no
+ * option: its header tells Decode whether it holds raw bytes, which entropy
+ * coder and codebooks it uses and how its blocks are laid out. The -verify
+ * option decodes without writing anything, to check every block against its
+ * checksum.
  */
-class HuffmanTree {
+public class Decode {
+    private static final char EOT = (char) 4; // EOT (End of Transmission) character
+    private static final String STANDARD_STREAM = "-";
+    private static final int ADAPTIVE_BUFFER_SIZE = 1 << 13;
+    static final String DECODER_TABLE = "table";
+    static final String DECODER_TREE = "tree";
+    static final String DECODER_FLAT = "flat";
+
     /**
-     * Node is a class that represents a node in the Huffman tree.
+     * Reads the codebook file and returns a HashMap that maps characters to their
+     * Huffman codes. The compiled codebook is used when it is up to date, see
+     * CompiledCodebook.
+     *
+     * @return a HashMap that maps characters to their Huffman codes
+     * @throws IOException if the codebook file cannot be read or is invalid
      */
-    class Node {
-        private static final char DEFAULT = (char) 0; // default character
-        private char character;
-        private Node left;
-        private Node right;
-
-        /**
-         * Constructor for creating a new Node with default values.
-         */
-        Node() {
-            this.character = DEFAULT;
-            this.left = null;
-            this.right = null;
-        }
-
-        /**
-         * Constructor for creating a new Node with the given character.
-         *
-         * @param character the character to be stored in the node
-         */
-        Node(char character) {
-            this.character = character;
-            this.left = null;
-            this.right = null;
-        }
+    static HashMap<Character, String> readCodebook() throws IOException {
+        return CompiledCodebook.load().toCodebook();
     }
 
-    Node root;
-
     /**
-     * Constructor for creating a new HuffmanTree with default values.
+     * The main method that takes two command line arguments: encoded filename and
+     * decoded filename, optionally preceded by options. It reads the encoded
+     * file, decodes it using a Huffman tree, and writes the decoded data to the
+     * output file. A filename of - stands for standard input or standard output.
+     *
+     * Options:
+     * -text reads a file in which every bit is a '0' or '1' character
+     * -decoder table|tree|flat picks how binary files are decoded: with lookup
+     * tables (the default), by walking the Node tree, or by walking the
+     * FlatHuffmanTree array
+     * -adaptive reads a file written by Encode with -adaptive
+     * -offset N and -length N decode only that byte range of the decoded text.
+     * Decoding starts at the block, or the sync point if the file has them, just
+     * before the range, so the rest of the file is never read
+     * -archive extracts every file of an archive written by Encode with -archive
+     * into the directory named instead of the decoded file
+     * -entry PATH extracts only that file of the archive, to the decoded file
+     * Files written by Encode with -bytes or -lz are written back as raw bytes,
+     * and -offset and -length then count raw bytes. Files written with -lz,
+     * -interleave or -coder tans have no sync points, so -offset and -length
+     * decode whole blocks; tANS-coded files are decoded with tANS, whatever the
+     * -decoder
+     * -metrics text|json prints, to standard error, the time spent reading the
+     * header and building the decoder, reading the index, decoding and writing,
+     * the input and output sizes, the bits per character against the entropy of
+     * the decoded text, and the throughput
+     * -verify takes no decoded filename: it decodes every block, or every file
+     * of an archive, checks it against the CRC32C Encode stored with it and
+     * prints PASS, in one pass and without the original file
+     *
+     * @param args command line arguments
      */
-    HuffmanTree(HashMap<Character, String> codebook) {
-        root = new Node();
-        buildTree(codebook);
+    public static void main(String[] args) {
+        boolean textMode = false;
+        boolean adaptiveMode = false;
+        boolean archiveMode = false;
+        boolean verifyMode = false;
+        String metricsFormat = null;
+        String entryName = null;
+        String decoderName = DECODER_TABLE;
+        long rangeOffset = 0;
+        long rangeLength = Long.MAX_VALUE;
+        boolean rangeMode = false;
+        int argIndex = 0;
+        while (argIndex < args.length && args[argIndex].startsWith("-") && args[argIndex].length() > 1) {
+            switch (args[argIndex]) {
+                case "-text":
+                    textMode = true;
+                    break;
+                case "-adaptive":
+                    adaptiveMode = true;
+                    break;
+                case "-archive":
+                    archiveMode = true;
+                    break;
+                case "-verify":
+                    verifyMode = true;
+                    break;
+                case "-metrics":
+                    if (argIndex + 1 == args.length) {
+                        System.err.println("ERROR: -metrics needs a value");
+                        return;
+                    }
+                    metricsFormat = args[++argIndex];
+                    if (!metricsFormat.equals(CodecMetrics.FORMAT_TEXT)
+                            && !metricsFormat.equals(CodecMetrics.FORMAT_JSON)) {
+                        System.err.println("ERROR: Unknown metrics format " + metricsFormat);
+                        return;
+                    }
+                    break;
+                case "-entry":
+                    if (argIndex + 1 == args.length) {
+                        System.err.println("ERROR: -entry needs a value");
+                        return;
+                    }
+                    entryName = args[++argIndex];
+                    break;
+                case "-decoder":
+                    if (argIndex + 1 == args.length) {
+                        System.err.println("ERROR: -decoder needs a value");
+                        return;
+                    }
+                    decoderName = args[++argIndex];
+                    break;
+                case "-offset":
+                case "-length":
+                    if (argIndex + 1 == args.length) {
+                        System.err.println("ERROR: " + args[argIndex] + " needs a value");
+                        return;
+                    }
+                    long value;
+                    try {
+                        value = Long.parseLong(args[argIndex + 1]);
+                    } catch (NumberFormatException e) {
+                        value = -1;
+                    }
+                    if (value < 0) {
+                        System.err.println("ERROR: " + args[argIndex] + " needs a number of bytes");
+                        return;
+                    }
+                    if (args[argIndex].equals("-offset")) {
+                        rangeOffset = value;
+                    } else {
+                        rangeLength = value;
+                    }
+                    rangeMode = true;
+                    argIndex++;
+                    break;
+                default:
+                    System.err.println("ERROR: Unknown option " + args[argIndex]);
+                    return;
+            }
+            argIndex++;
+        }
+        if (args.length - argIndex != (verifyMode ? 1 : 2)) {
+            System.err.println("ERROR: Incorrect number of arguments. Expected: [-text] [-adaptive] "
+                    + "[-decoder table|tree|flat] [-offset N] [-length N] [-archive [-entry PATH]] "
+                    + "[-metrics text|json] <encoded filename> <decoded filename>, or -verify [-archive] "
+                    + "<encoded filename>");
+            return;
+        }
+        if (!decoderName.equals(DECODER_TABLE) && !decoderName.equals(DECODER_TREE)
+                && !decoderName.equals(DECODER_FLAT)) {
+            System.err.println("ERROR: Unknown decoder " + decoderName);
+            return;
+        }
+
+        if (adaptiveMode && textMode) {
+            System.err.println("ERROR: -adaptive cannot be combined with -text");
+            return;
+        }
+        if (rangeMode && (textMode || adaptiveMode)) {
+            System.err.println("ERROR: -offset and -length cannot be combined with -text or -adaptive");
+            return;
+        }
+        if (archiveMode && (textMode || adaptiveMode || rangeMode)) {
+            System.err.println("ERROR: -archive cannot be combined with -text, -adaptive, -offset or -length");
+            return;
+        }
+        if (entryName != null && !archiveMode) {
+            System.err.println("ERROR: -entry needs -archive");
+            return;
+        }
+        if (verifyMode && (textMode || adaptiveMode || rangeMode || entryName != null)) {
+            System.err.println("ERROR: -verify cannot be combined with -text, -adaptive, -offset, -length or -entry");
+            return;
+        }
+
+        String encodedFilename = args[argIndex];
+        String decodedFilename = verifyMode ? null : args[argIndex + 1]; // null when only verifying
+        if (archiveMode && (encodedFilename.equals(STANDARD_STREAM)
+                || (entryName == null && STANDARD_STREAM.equals(decodedFilename)))) {
+            System.err.println("ERROR: -archive needs an archive file, and a directory unless -entry is given");
+            return;
+        }
+        boolean streamMode = encodedFilename.equals(STANDARD_STREAM) || STANDARD_STREAM.equals(decodedFilename);
+        if (streamMode && textMode) {
+            System.err.println("ERROR: Standard input and output cannot be combined with -text");
+            return;
+        }
+        if (metricsFormat != null && (textMode || adaptiveMode || archiveMode || rangeMode || streamMode)) {
+            System.err.println("ERROR: -metrics cannot be combined with -text, -adaptive, -archive, -offset, "
+                    + "-length or standard input and output");
+            return;
+        }
+        if (rangeMode && encodedFilename.equals(STANDARD_STREAM)) {
+            System.err.println("ERROR: -offset and -length need an encoded file, not standard input");
+            return;
+        }
+
+        try {
+            if (archiveMode && verifyMode) {
+                HuffmanArchive.verify(encodedFilename);
+            } else if (archiveMode) {
+                HuffmanArchive.extract(encodedFilename, decodedFilename, entryName);
+            } else if (rangeMode) {
+                decodeRange(encodedFilename, decodedFilename, decoderName, rangeOffset, rangeLength);
+            } else if (adaptiveMode) {
+                decodeAdaptive(encodedFilename, decodedFilename);
+            } else if (streamMode) {
+                decodeStream(encodedFilename, decodedFilename);
+            } else if (textMode) {
+                decodeText(encodedFilename, decodedFilename, new HuffmanTree(readCodebook()));
+            } else {
+                CodecMetrics metrics = metricsFormat == null ? null : new CodecMetrics("decode");
+                decodeBinary(encodedFilename, decodedFilename, decoderName, metrics);
+                if (metrics != null) {
+                    metrics.stop();
+                    metrics.print(System.err, metricsFormat);
+                }
+            }
+            if (verifyMode) {
+                System.out.println("PASS");
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+        }
     }
 
     /**
-     * Builds the Huffman tree using the given codebook.
+     * Decodes a binary container written by Encode. The canonical codebook is
+     * rebuilt from the code lengths in the header, so the codebook file is not
+     * needed. The encoded file is memory-mapped, and the blocks listed in the
+     * block index are decoded in parallel, a batch at a time, into direct buffers
+     * that are written to the output file in order. In byte mode every symbol is
+     * written as the byte it stands for, with no UTF-8 encoding. In context mode
+     * the header holds a codebook per context, and every block gets its own
+     * context decoder. The header also names the entropy coder, Huffman or tANS,
+     * which the blocks are decoded with. Every block is checked against its
+     * checksum; without a decoded file, that check is all that is done.
      *
-     * @param codebook the codebook used to build the Huffman tree
+     * @param encodedFilename the name of the encoded file
+     * @param decodedFilename the name of the decoded file, or null to only verify
+     * @param decoderName     the decoder to use: table, tree or flat
+     * @param metrics         receives timings and sizes, or null
+     * @throws IOException if an I/O error occurs or the file is malformed
      */
-    void buildTree(HashMap<Character, String> codebook) {
-        for (HashMap.Entry<Character, String> entry : codebook.entrySet()) {
-            char character = entry.getKey();
-            String huffmanCode = entry.getValue();
-
-            Node currentNode = root;
-            for (char bit : huffmanCode.toCharArray()) {
-                if (bit == '0') {
-                    if (currentNode.left == null) {
-                        currentNode.left = new Node();
+    private static void decodeBinary(String encodedFilename, String decodedFilename, String decoderName,
+            CodecMetrics metrics) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool();
+
+        try (MappedInput input = new MappedInput(encodedFilename);
+                FileChannel output = decodedFilename == null ? null
+                        : FileChannel.open(Paths.get(decodedFilename), StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            long codebookStart = System.nanoTime();
+            EntropyCoder coder = readCoder(input, decoderName);
+            boolean byteMode = coder.byteMode();
+            long readStart = System.nanoTime();
+            BlockIndex index = BlockIndex.read(input.getChannel());
+            if (metrics != null) {
+                metrics.addCodebookTime(readStart - codebookStart);
+                metrics.addReadTime(System.nanoTime() - readStart);
+            }
+            int bytesPerSymbol = byteMode ? 1 : 2;
+            long decodedBytes = 0;
+
+            // one direct output buffer per batch slot, reused from batch to batch
+            int batchSize = pool.getParallelism() * 2;
+            ByteBuffer[] outputBuffers = new ByteBuffer[batchSize];
+
+            for (int first = 0; first < index.size(); first += batchSize) {
+                List<ForkJoinTask<ByteBuffer>> batch = new ArrayList<>();
+                for (int slot = 0; slot < batchSize && first + slot < index.size(); slot++) {
+                    int symbolCount = index.getSymbolCount(first + slot);
+                    long bitOffset = index.getBitOffset(first + slot);
+                    // a character takes one or two UTF-8 bytes, a raw byte one
+                    if (outputBuffers[slot] == null
+                            || outputBuffers[slot].capacity() < (long) bytesPerSymbol * symbolCount) {
+                        outputBuffers[slot] = ByteBuffer.allocateDirect(bytesPerSymbol * symbolCount);
                     }
-                    currentNode = currentNode.left;
-                } else if (bit == '1') {
-                    if (currentNode.right == null) {
-                        currentNode.right = new Node();
+                    ByteBuffer outputBuffer = outputBuffers[slot].clear();
+                    batch.add(pool.submit(() -> decodeBlock(input, bitOffset, symbolCount, coder, byteMode,
+                            outputBuffer, metrics)));
+                }
+                for (ForkJoinTask<ByteBuffer> task : batch) {
+                    ByteBuffer decoded = task.get().flip();
+                    decodedBytes += decoded.remaining();
+                    long writeStart = System.nanoTime();
+                    while (output != null && decoded.hasRemaining()) {
+                        output.write(decoded);
+                    }
+                    if (metrics != null) {
+                        metrics.addWriteTime(System.nanoTime() - writeStart);
                     }
-                    currentNode = currentNode.right;
                 }
             }
-            currentNode.character = character;
+            if (metrics != null) {
+                metrics.setSizes(input.size(), decodedBytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding");
+        } catch (ExecutionException e) {
+            throw PoolTasks.failure(e);
+        } finally {
+            pool.shutdown();
         }
     }
 
     /**
-     * Decodes the next character in the input stream using the Huffman tree.
+     * Creates the decoder with the given name for the canonical codes of the
+     * given lengths. The table decoder builds its tables straight from the
+     * codes, which is quicker than going through a codebook.
      *
-     * @param reader the BufferedReader used to read the input stream
-     * @return the decoded character
-     * @throws IOException if an I/O error occurs while reading from the input
-     *                     stream
+     * @param decoderName the decoder to create: table, tree or flat
+     * @param codeLengths the code length of every symbol, indexed by symbol
+     * @return the decoder
      */
-    char decodeNextCharacter(BufferedReader reader) throws IOException {
-        Node currentNode = root;
-        int charAsInt;
-        while (currentNode.left != null || currentNode.right != null) {
-            charAsInt = reader.read();
-            char bit = (char) charAsInt;
-            if (bit == '0') {
-                currentNode = currentNode.left;
-            } else if (bit == '1') {
-                currentNode = currentNode.right;
-            }
+    static HuffmanDecoder createDecoder(String decoderName, int[] codeLengths) {
+        if (decoderName.equals(DECODER_TABLE)) {
+            return new HuffmanTree(new CodeTable(codeLengths));
         }
-        return currentNode.character;
+        return createDecoder(decoderName, CodebookBuilder.canonicalCodebook(codeLengths));
     }
-}
 
-/**
- * Decode is a class that reads an encoded file, decodes it using a Huffman
- * tree,
- * and writes the decoded data to an output file.
- */
-public class Decode {
-    private static final String CODEBOOK_FILENAME = "codebook";
-    private static final char EOT = (char) 4; // EOT (End of Transmission) character
+    /**
+     * Creates the decoder with the given name for a codebook.
+     *
+     * @param decoderName the decoder to create: table, tree or flat
+     * @param codebook    the codebook to decode with
+     * @return the decoder
+     */
+    static HuffmanDecoder createDecoder(String decoderName, HashMap<Character, String> codebook) {
+        switch (decoderName) {
+            case DECODER_TREE:
+                return new HuffmanTree(codebook)::decodeNextCharacterByTree;
+            case DECODER_FLAT:
+                return new FlatHuffmanTree(codebook);
+            default:
+                return new HuffmanTree(codebook);
+        }
+    }
 
     /**
-     * Reads the codebook file and returns a HashMap that maps characters to their
-     * Huffman codes.
+     * Decodes one block of a binary container into UTF-8 bytes, or into raw bytes
+     * in byte mode.
      *
-     * @return a HashMap that maps characters to their Huffman codes
+     * @param input        the encoded file
+     * @param bitOffset    the position of the block's first code, in bits
+     * @param symbolCount  the number of characters in the block
+     * @param coder        the entropy coder of the file
+     * @param byteMode     whether every symbol is a raw byte
+     * @param outputBuffer the buffer that receives the decoded bytes
+     * @param metrics      receives timings and counts, or null; the decoded
+     *                     symbols are counted for the entropy in a separate pass
+     *                     that is not timed
+     * @return the output buffer
+     * @throws IOException if an I/O error occurs or the block is malformed
+     */
+    private static ByteBuffer decodeBlock(MappedInput input, long bitOffset, int symbolCount, EntropyCoder coder,
+            boolean byteMode, ByteBuffer outputBuffer, CodecMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer payload = blockPayload(input, bitOffset, symbolCount);
+        int payloadBytes = payload.remaining();
+        coder.decodeBlock(payload, symbolCount, outputBuffer);
+        BlockCodec.verifyChecksum(outputBuffer, 0, blockChecksum(input, bitOffset));
+        if (metrics != null) {
+            metrics.addCodingTime(System.nanoTime() - start);
+            metrics.addBlock(symbolCount, payloadBytes);
+            metrics.countSymbols(outputBuffer.duplicate().flip(), byteMode, coder.codedSymbols());
+        }
+        return outputBuffer;
+    }
+
+    /**
+     * Reads the header of a binary container and returns the entropy coder it
+     * describes. The flags tell the mode of the file: LZ77, tANS, the context
+     * model or a single Huffman codebook, with or without byte mode,
+     * interleaved blocks and block codes.
+     *
+     * @param input       the encoded file
+     * @param decoderName the decoder to use for Huffman codes: table, tree or
+     *                    flat
+     * @return the coder
+     * @throws IOException if an I/O error occurs or the header is malformed
+     */
+    private static EntropyCoder readCoder(MappedInput input, String decoderName) throws IOException {
+        InputStream in = new BufferedInputStream(Channels.newInputStream(input.getChannel()));
+        int flags = HuffmanFormat.readBinaryFlags(in);
+        boolean byteMode = (flags & HuffmanFormat.FLAG_BYTES) != 0;
+        if ((flags & HuffmanFormat.FLAG_LZ) != 0) {
+            return new Lz77Coder(Lz77Coder.DEFAULT_LEVEL, decoderName);
+        } else if ((flags & HuffmanFormat.FLAG_TANS) != 0) {
+            return HuffmanFormat.readTansCoder(in, byteMode);
+        } else if ((flags & HuffmanFormat.FLAG_CONTEXT) != 0) {
+            return new HuffmanCoder(new ContextModel(HuffmanFormat.readContextCodebooks(in)), decoderName);
+        }
+        int blockCodeLength = (flags & HuffmanFormat.FLAG_BLOCK_CODES) != 0 ? HuffmanCoder.MAX_BLOCK_CODE_LENGTH
+                : 0;
+        return new HuffmanCoder(HuffmanFormat.readCodeLengths(in, byteMode), byteMode,
+                (flags & HuffmanFormat.FLAG_INTERLEAVED) != 0, 0, blockCodeLength, decoderName);
+    }
+
+    /**
+     * Returns the payload of one block of a binary container, after checking the
+     * block header against the index.
+     *
+     * @param input       the encoded file
+     * @param bitOffset   the position of the block's first code, in bits
+     * @param symbolCount the number of characters in the block
+     * @return the payload
+     * @throws IOException if an I/O error occurs or the block is malformed
      */
-    private static HashMap<Character, String> readCodebook() {
-        HashMap<Character, String> codebook = new HashMap<>();
-
-        try (BufferedReader reader = Files.newBufferedReader(Paths.get(CODEBOOK_FILENAME), StandardCharsets.UTF_8)) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(":");
-                if (parts.length < 2) {
-                    System.err.println("ERROR: Invalid line in codebook - " + line);
-                    continue;
+    private static ByteBuffer blockPayload(MappedInput input, long bitOffset, int symbolCount) throws IOException {
+        long payloadStart = bitOffset / 8;
+        if (payloadStart < HuffmanFormat.BLOCK_HEADER_SIZE || payloadStart > input.size()) {
+            throw new IOException("Invalid block index in encoded file");
+        }
+        ByteBuffer blockHeader = input.slice(payloadStart - HuffmanFormat.BLOCK_HEADER_SIZE, payloadStart);
+        if (blockHeader.getInt() != symbolCount) {
+            throw new IOException("Block index does not match the encoded data");
+        }
+        long payloadEnd = payloadStart + (blockHeader.getInt() & 0xFFFFFFFFL);
+        if (payloadEnd > input.size()) {
+            throw new IOException("Unexpected end of encoded file");
+        }
+        return input.slice(payloadStart, payloadEnd);
+    }
+
+    /**
+     * Returns the checksum of one block of a binary container, the last field of
+     * its header. The header must have been checked by blockPayload.
+     *
+     * @param input     the encoded file
+     * @param bitOffset the position of the block's first code, in bits
+     * @return the CRC32C of the bytes the block decodes to
+     * @throws IOException if an I/O error occurs while reading
+     */
+    private static int blockChecksum(MappedInput input, long bitOffset) throws IOException {
+        long payloadStart = bitOffset / 8;
+        return input.slice(payloadStart - Integer.BYTES, payloadStart).getInt();
+    }
+
+    /**
+     * Decodes one byte range of the decoded text of a binary container. The block
+     * index gives, for every block and every sync point, the position of a code
+     * and of its character in the decoded text, so decoding starts at the last of
+     * them at or before the range and stops at its end. Only the blocks that
+     * overlap the range are read. Files written with the context model start
+     * every block in START_CONTEXT and have no sync points, and neither have
+     * interleaved, tANS-coded or LZ77 files, so decoding starts at a block;
+     * the blocks of the last three are decoded whole.
+     *
+     * @param encodedFilename the name of the encoded file
+     * @param decodedFilename the name of the decoded file, or - for standard
+     *                        output
+     * @param decoderName     the decoder to use: table, tree or flat
+     * @param offset          the position of the range in the decoded text
+     * @param length          the length of the range; it is cut short at the end
+     *                        of the text
+     * @throws IOException if an I/O error occurs or the file is malformed
+     */
+    private static void decodeRange(String encodedFilename, String decodedFilename, String decoderName,
+            long offset, long length) throws IOException {
+        try (MappedInput input = new MappedInput(encodedFilename);
+                OutputStream output = decodedFilename.equals(STANDARD_STREAM) ? System.out
+                        : Files.newOutputStream(Paths.get(decodedFilename))) {
+
+            EntropyCoder coder = readCoder(input, decoderName);
+            boolean byteMode = coder.byteMode();
+            BlockIndex index = BlockIndex.read(input.getChannel());
+            SyncPoints syncPoints = index.getSyncPoints();
+
+            long end = Math.min(offset + Math.min(length, Long.MAX_VALUE - offset), index.getDecodedSize());
+            long position = offset;
+            ByteBuffer decoded = ByteBuffer.allocate(0);
+            while (position < end) {
+                int block = index.findBlock(position);
+                long blockBitOffset = index.getBitOffset(block);
+                long blockEnd = block + 1 < index.size() ? index.getDecodedOffset(block + 1) : index.getDecodedSize();
+                long stop = Math.min(end, blockEnd);
+
+                // sync points lie strictly inside their block, so a later one than
+                // the block start is in this block
+                long startBitOffset = blockBitOffset;
+                long startOffset = index.getDecodedOffset(block);
+                int point = syncPoints.find(position);
+                if (point >= 0 && syncPoints.getDecodedOffset(point) > startOffset) {
+                    startBitOffset = syncPoints.getBitOffset(point);
+                    startOffset = syncPoints.getDecodedOffset(point);
+                }
+
+                int symbolCount = index.getSymbolCount(block);
+                ByteBuffer payload = blockPayload(input, blockBitOffset, symbolCount);
+                int wanted = (int) (stop - startOffset);
+                // coders without sync points decode the whole block
+                int capacity = (byteMode ? 1 : 2) * symbolCount + 1;
+                if (decoded.capacity() < capacity) {
+                    decoded = ByteBuffer.allocate(capacity);
+                }
+                decoded.clear();
+                coder.decodeBytes(payload, startBitOffset - blockBitOffset, wanted, symbolCount, decoded);
+                if (decoded.position() < wanted) {
+                    throw new IOException("Block index does not match the encoded data");
                 }
-                char character = (char) Integer.parseInt(parts[0]);
-                String huffmanCode = parts[1];
-                codebook.put(character, huffmanCode);
+                output.write(decoded.array(), (int) (position - startOffset), (int) (stop - position));
+                position = stop;
             }
-        } catch (IOException e) {
-            System.err.println("ERROR: Failed to read codebook file - " + e.getMessage());
         }
-        return codebook;
     }
 
     /**
-     * The main method that takes two command line arguments: encoded filename and
-     * decoded filename. It reads the encoded file, decodes it using a Huffman tree,
-     * and writes the decoded data to the output file.
+     * Decodes from a file or standard input to a file or standard output through
+     * a StreamPipeline, so reading, decoding and writing overlap.
      *
-     * @param args command line arguments
+     * @param encodedFilename the name of the encoded file, or - for standard input
+     * @param decodedFilename the name of the decoded file, - for standard output,
+     *                        or null to only verify the checksums
+     * @throws IOException if an I/O error occurs or the data is malformed
      */
-    public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("ERROR: Incorrect number of arguments. Expected: <encoded filename> <decoded filename>");
-            return;
+    private static void decodeStream(String encodedFilename, String decodedFilename) throws IOException {
+        try (InputStream in = new BufferedInputStream(encodedFilename.equals(STANDARD_STREAM) ? System.in
+                : Files.newInputStream(Paths.get(encodedFilename)));
+                OutputStream out = decodedFilename == null ? OutputStream.nullOutputStream()
+                        : decodedFilename.equals(STANDARD_STREAM) ? System.out
+                                : Files.newOutputStream(Paths.get(decodedFilename))) {
+            StreamPipeline.decode(in, out);
         }
+    }
 
-        String encodedFilename = args[0];
-        String decodedFilename = args[1];
+    /**
+     * Decodes a file written in adaptive mode. The decoder starts from the same
+     * empty AdaptiveHuffmanTree as the encoder and updates it after every
+     * character in the same way, until it reaches EOT.
+     *
+     * @param encodedFilename the name of the encoded file, or - for standard input
+     * @param decodedFilename the name of the decoded file, or - for standard
+     *                        output
+     * @throws IOException if an I/O error occurs or the data is malformed
+     */
+    private static void decodeAdaptive(String encodedFilename, String decodedFilename) throws IOException {
+        try (InputStream in = new BufferedInputStream(encodedFilename.equals(STANDARD_STREAM) ? System.in
+                : Files.newInputStream(Paths.get(encodedFilename)));
+                OutputStream out = new BufferedOutputStream(decodedFilename.equals(STANDARD_STREAM) ? System.out
+                        : Files.newOutputStream(Paths.get(decodedFilename)))) {
 
-        HashMap<Character, String> codebook = readCodebook();
-        HuffmanTree huffmanTree = new HuffmanTree(codebook);
+            HuffmanFormat.readAdaptiveHeader(in);
+            BitReader reader = new BitReader(in);
+            AdaptiveHuffmanTree tree = new AdaptiveHuffmanTree();
+            ByteBuffer decoded = ByteBuffer.allocate(ADAPTIVE_BUFFER_SIZE);
+            char character;
+            while ((character = tree.decodeNextCharacter(reader)) != EOT) {
+                if (decoded.remaining() < 2) {
+                    out.write(decoded.array(), 0, decoded.position());
+                    decoded.clear();
+                }
+                Utf8.encode(character, decoded);
+            }
+            out.write(decoded.array(), 0, decoded.position());
+        }
+    }
 
+    /**
+     * Decodes a text-mode file in which every bit is stored as a '0' or '1'
+     * character.
+     *
+     * @param encodedFilename the name of the encoded file
+     * @param decodedFilename the name of the decoded file
+     * @param huffmanTree     the tree used to decode the characters
+     * @throws IOException if an I/O error occurs or the file is malformed
+     */
+    private static void decodeText(String encodedFilename, String decodedFilename, HuffmanTree huffmanTree)
+            throws IOException {
         try (BufferedReader reader = Files.newBufferedReader(Paths.get(encodedFilename), StandardCharsets.UTF_8);
                 BufferedWriter writer = Files.newBufferedWriter(Paths.get(decodedFilename), StandardCharsets.UTF_8)) {
 
@@ -165,9 +603,6 @@ public class Decode {
             while ((decodedChar = huffmanTree.decodeNextCharacter(reader)) != EOT) {
                 writer.write(decodedChar);
             }
-
-        } catch (IOException e) {
-            System.err.println("ERROR: " + e.getMessage());
         }
     }
 }
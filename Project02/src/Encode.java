@@ -1,37 +1,695 @@
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Encode is a class that reads an input text file and encodes it using a
- * Huffman codebook, then writes the encoded data to an output file.
+ * Huffman codebook, then writes the encoded data to an output file. By default
+ * the codes are packed into bytes; the -text option writes every bit as a '0'
+ * or '1' character instead, which is easier to inspect while debugging. The
+ * -adaptive option needs no codebook at all: the codes adapt to the input as
+ * it is read, in a single pass. The -archive option packs a whole directory
+ * into one archive that shares a single codebook. The -bytes option encodes
+ * any file, text or not, byte by byte. The -context option codes every
+ * character with a codebook chosen by the character before it. The -maxlen
+ * option caps the code length so that decoding needs fewer table lookups, and
+ * the -interleave option splits every block into streams that Decode reads
+ * side by side. The -coder option picks the entropy coder, Huffman codes or
+ * tANS, which codes frequent symbols in a fraction of a bit. The -lz option
+ * replaces repeated strings by references to their earlier copy before the
+ * Huffman coding, as DEFLATE does. The -blockcodes option lets every block
+ * carry Huffman codes of its own, for input whose mix of characters shifts.
+ * Every block of a binary file carries the CRC32C of its text, which Decode
+ * checks.
  */
 public class Encode {
     private static final char EOT = (char) 4; // EOT (End of Transmission) character
-    private static final String CODEBOOK_FILENAME = "codebook";
+    private static final int BLOCK_SIZE = BlockCodec.BLOCK_SIZE;
+    private static final String STANDARD_STREAM = "-";
+    private static final int ADAPTIVE_BUFFER_SIZE = 1 << 13;
+    private static final int MIN_LIMITED_LENGTH = 8; // fits every symbol of the largest alphabet
+    static final String CODER_HUFFMAN = "huffman";
+    static final String CODER_TANS = "tans";
 
     /**
      * The main method that takes two command line arguments: input filename and
-     * encoded filename. It reads the input file, encodes it using a Huffman
-     * codebook, and writes the encoded data to the output file.
+     * encoded filename, optionally preceded by options. It reads the input file,
+     * encodes it using a Huffman codebook, and writes the encoded data to the
+     * output file.
+     *
+     * Options:
+     * -text writes every bit as a '0' or '1' character
+     * -freq builds the codebook from the input's own character frequencies
+     * instead of reading the codebook file
+     * -adaptive encodes in a single pass with an adaptive Huffman tree, without
+     * a codebook
+     * -sync KB adds a sync point to the block index every KB kilobytes of
+     * decoded text, so Decode can start a range that close to where it is
+     * wanted; without it, ranges start at a block boundary
+     * -archive reads a directory instead of a file and packs every file under it
+     * into one archive, loading and writing the codebook only once
+     * -bytes encodes raw bytes instead of UTF-8 characters, so every file,
+     * binary or not, round-trips exactly; the codebook is built from the
+     * input's byte frequencies
+     * -context builds one codebook per preceding character from the input, an
+     * order-1 context model, which makes the codes of text shorter
+     * -maxlen BITS limits the codes to at most BITS bits, from 8 to 24, with the
+     * optimal length-limited codebook, and prints to standard error how much
+     * the limit costs against the unlimited one; with 11 bits, the primary
+     * table of HuffmanTree decodes every code in a single lookup. Without -freq,
+     * -bytes or -context, the characters of the codebook file are rebuilt from
+     * the input's frequencies; with -blockcodes, no cost is printed
+     * -interleave splits every block into four interleaved streams, which Decode
+     * decodes in the same loop, overlapping their table lookups
+     * -coder huffman|tans picks the entropy coder: Huffman codes, the default,
+     * or tANS, whose table is built from the input's own frequencies like with
+     * -freq and which comes closer to the entropy of skewed input
+     * -lz LEVEL encodes raw bytes, like -bytes, in LZ77 mode: repeats within
+     * the last 32 KB become a length and a distance, and every block gets
+     * Huffman codes of its own for its literals, lengths and distances. LEVEL,
+     * from 1 to 9, trades the effort spent looking for matches against speed;
+     * from level 4 on, a match waits a byte to see if a longer one follows
+     * -blockcodes codes every block with optimal Huffman codes built from its
+     * own histogram, stored in the block as compact code lengths, or with the
+     * file's codebook when storing them would cost more than they save. This
+     * suits input whose mix of characters changes along the way
+     * -metrics text|json prints, to standard error, the time spent loading the
+     * codebook, reading, encoding and writing, the input and output sizes, the
+     * bits per character against the entropy of the input, and the throughput
+     *
+     * Apart from -text, -adaptive and -archive, the header records every option
+     * Decode needs, so binary files are decoded without options.
+     *
+     * A filename of - stands for standard input or standard output.
      *
      * @param args command line arguments
      */
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("ERROR: Incorrect number of arguments. Expected: <input filename> <encoded filename>");
+        boolean textMode = false;
+        boolean frequencyMode = false;
+        boolean adaptiveMode = false;
+        boolean archiveMode = false;
+        boolean byteMode = false;
+        boolean contextMode = false;
+        boolean interleaved = false;
+        boolean blockCodes = false;
+        String metricsFormat = null;
+        String coderName = CODER_HUFFMAN;
+        int syncInterval = 0;
+        int maxLength = 0;
+        int lzLevel = 0;
+        int argIndex = 0;
+        while (argIndex < args.length && args[argIndex].startsWith("-") && args[argIndex].length() > 1) {
+            switch (args[argIndex]) {
+                case "-text":
+                    textMode = true;
+                    break;
+                case "-freq":
+                    frequencyMode = true;
+                    break;
+                case "-adaptive":
+                    adaptiveMode = true;
+                    break;
+                case "-archive":
+                    archiveMode = true;
+                    break;
+                case "-bytes":
+                    byteMode = true;
+                    break;
+                case "-context":
+                    contextMode = true;
+                    break;
+                case "-interleave":
+                    interleaved = true;
+                    break;
+                case "-blockcodes":
+                    blockCodes = true;
+                    break;
+                case "-metrics":
+                    if (argIndex + 1 == args.length) {
+                        System.err.println("ERROR: -metrics needs a value");
+                        return;
+                    }
+                    metricsFormat = args[++argIndex];
+                    if (!metricsFormat.equals(CodecMetrics.FORMAT_TEXT)
+                            && !metricsFormat.equals(CodecMetrics.FORMAT_JSON)) {
+                        System.err.println("ERROR: Unknown metrics format " + metricsFormat);
+                        return;
+                    }
+                    break;
+                case "-sync":
+                    if (argIndex + 1 == args.length) {
+                        System.err.println("ERROR: -sync needs a value");
+                        return;
+                    }
+                    try {
+                        syncInterval = Math.multiplyExact(Integer.parseInt(args[++argIndex]), 1024);
+                    } catch (ArithmeticException | NumberFormatException e) {
+                        syncInterval = -1;
+                    }
+                    if (syncInterval <= 0) {
+                        System.err.println("ERROR: -sync needs a positive number of kilobytes");
+                        return;
+                    }
+                    break;
+                case "-coder":
+                    if (argIndex + 1 == args.length) {
+                        System.err.println("ERROR: -coder needs a value");
+                        return;
+                    }
+                    coderName = args[++argIndex];
+                    if (!coderName.equals(CODER_HUFFMAN) && !coderName.equals(CODER_TANS)) {
+                        System.err.println("ERROR: Unknown coder " + coderName);
+                        return;
+                    }
+                    break;
+                case "-lz":
+                    if (argIndex + 1 == args.length) {
+                        System.err.println("ERROR: -lz needs a value");
+                        return;
+                    }
+                    try {
+                        lzLevel = Integer.parseInt(args[++argIndex]);
+                    } catch (NumberFormatException e) {
+                        lzLevel = -1;
+                    }
+                    if (lzLevel < Lz77Coder.MIN_LEVEL || lzLevel > Lz77Coder.MAX_LEVEL) {
+                        System.err.println("ERROR: -lz needs a level from " + Lz77Coder.MIN_LEVEL + " to "
+                                + Lz77Coder.MAX_LEVEL);
+                        return;
+                    }
+                    break;
+                case "-maxlen":
+                    if (argIndex + 1 == args.length) {
+                        System.err.println("ERROR: -maxlen needs a value");
+                        return;
+                    }
+                    try {
+                        maxLength = Integer.parseInt(args[++argIndex]);
+                    } catch (NumberFormatException e) {
+                        maxLength = -1;
+                    }
+                    if (maxLength < MIN_LIMITED_LENGTH || maxLength > CodebookBuilder.MAX_CODE_LENGTH) {
+                        System.err.println("ERROR: -maxlen needs a number of bits from " + MIN_LIMITED_LENGTH
+                                + " to " + CodebookBuilder.MAX_CODE_LENGTH);
+                        return;
+                    }
+                    break;
+                default:
+                    System.err.println("ERROR: Unknown option " + args[argIndex]);
+                    return;
+            }
+            argIndex++;
+        }
+        if (args.length - argIndex != 2) {
+            System.err.println(
+                    "ERROR: Incorrect number of arguments. Expected: [-text] [-freq] [-adaptive] [-sync KB] "
+                            + "[-archive] [-bytes] [-context] [-maxlen BITS] [-interleave] [-blockcodes] "
+                            + "[-coder huffman|tans] [-lz LEVEL] [-metrics text|json] "
+                            + "<input filename> <encoded filename>");
+            return;
+        }
+        if (textMode && frequencyMode) {
+            System.err.println("ERROR: -freq cannot be combined with -text");
+            return;
+        }
+        if (adaptiveMode && (textMode || frequencyMode)) {
+            System.err.println("ERROR: -adaptive cannot be combined with -text or -freq");
+            return;
+        }
+        if (syncInterval > 0 && (textMode || adaptiveMode)) {
+            System.err.println("ERROR: -sync cannot be combined with -text or -adaptive");
+            return;
+        }
+        if (archiveMode && (textMode || frequencyMode || adaptiveMode || syncInterval > 0)) {
+            System.err.println("ERROR: -archive cannot be combined with -text, -freq, -adaptive or -sync");
+            return;
+        }
+        if (byteMode && (textMode || frequencyMode || adaptiveMode || archiveMode)) {
+            System.err.println("ERROR: -bytes cannot be combined with -text, -freq, -adaptive or -archive");
+            return;
+        }
+        if (contextMode && (textMode || frequencyMode || adaptiveMode || archiveMode || byteMode
+                || syncInterval > 0)) {
+            System.err.println(
+                    "ERROR: -context cannot be combined with -text, -freq, -adaptive, -archive, -bytes or -sync");
+            return;
+        }
+
+        if (interleaved && (textMode || adaptiveMode || archiveMode || contextMode || syncInterval > 0)) {
+            System.err.println("ERROR: -interleave cannot be combined with -text, -adaptive, -archive, -context "
+                    + "or -sync");
+            return;
+        }
+        if (maxLength > 0 && (textMode || adaptiveMode || archiveMode)) {
+            System.err.println("ERROR: -maxlen cannot be combined with -text, -adaptive or -archive");
+            return;
+        }
+
+        boolean tans = coderName.equals(CODER_TANS);
+        if (tans && (textMode || adaptiveMode || archiveMode || contextMode || syncInterval > 0 || maxLength > 0
+                || interleaved)) {
+            System.err.println("ERROR: -coder tans cannot be combined with -text, -adaptive, -archive, -context, "
+                    + "-sync, -maxlen or -interleave");
+            return;
+        }
+
+        if (lzLevel > 0 && (textMode || frequencyMode || adaptiveMode || archiveMode || contextMode
+                || syncInterval > 0 || maxLength > 0 || interleaved || tans)) {
+            System.err.println("ERROR: -lz cannot be combined with -text, -freq, -adaptive, -archive, -context, "
+                    + "-sync, -maxlen, -interleave or -coder tans");
+            return;
+        }
+        if (blockCodes && (textMode || adaptiveMode || archiveMode || contextMode || tans || lzLevel > 0)) {
+            System.err.println("ERROR: -blockcodes cannot be combined with -text, -adaptive, -archive, -context, "
+                    + "-coder tans or -lz");
+            return;
+        }
+        byteMode |= lzLevel > 0; // LZ77 mode codes raw bytes
+
+        String inputFilename = args[argIndex];
+        String encodedFilename = args[argIndex + 1];
+        boolean streamMode = inputFilename.equals(STANDARD_STREAM) || encodedFilename.equals(STANDARD_STREAM);
+        if (streamMode && (textMode || frequencyMode)) {
+            System.err.println("ERROR: Standard input and output cannot be combined with -text or -freq");
+            return;
+        }
+        if (streamMode && (archiveMode || byteMode || contextMode || maxLength > 0 || interleaved || tans
+                || blockCodes)) {
+            System.err.println("ERROR: Standard input and output cannot be combined with -archive, -bytes, "
+                    + "-context, -maxlen, -interleave, -blockcodes, -coder tans or -lz");
+            return;
+        }
+        if (metricsFormat != null && (textMode || adaptiveMode || archiveMode || streamMode)) {
+            System.err.println("ERROR: -metrics cannot be combined with -text, -adaptive, -archive or standard "
+                    + "input and output");
             return;
         }
 
-        String inputFilename = args[0];
-        String encodedFilename = args[1];
+        try {
+            if (archiveMode) {
+                HuffmanArchive.create(inputFilename, encodedFilename, CompiledCodebook.load().codeLengths());
+            } else if (adaptiveMode) {
+                encodeAdaptive(inputFilename, encodedFilename);
+            } else if (streamMode) {
+                encodeStream(inputFilename, encodedFilename, CompiledCodebook.load().codeLengths(), syncInterval);
+            } else if (textMode) {
+                encodeText(inputFilename, encodedFilename, CompiledCodebook.load().toCodebook());
+            } else {
+                CodecMetrics metrics = metricsFormat == null ? null : new CodecMetrics("encode");
+                long codebookStart = System.nanoTime();
+                EntropyCoder coder = createCoder(inputFilename, tans, lzLevel, frequencyMode, byteMode,
+                        contextMode, interleaved, blockCodes, syncInterval, maxLength);
+                if (metrics != null) {
+                    metrics.addCodebookTime(System.nanoTime() - codebookStart);
+                }
+                encodeBinary(inputFilename, encodedFilename, coder, byteMode, metrics);
+                if (metrics != null) {
+                    metrics.stop();
+                    metrics.print(System.err, metricsFormat);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Builds the entropy coder for a binary file. A tANS table is built from the
+     * input's own symbol frequencies, and LZ77 mode builds its codes block by
+     * block as it encodes. For Huffman codes the codebook is the
+     * context model, or is built from the input's byte or character
+     * frequencies, or is the codebook file, in that order of the options; with a
+     * length limit it is then rebuilt under that limit from the input's
+     * frequencies, which also caps the codes of every block with block codes.
+     *
+     * @param inputFilename the name of the input file
+     * @param tans          whether to code with tANS instead of Huffman codes
+     * @param lzLevel       the compression level of LZ77 mode, or 0 for none
+     * @param frequencyMode whether to build the codebook from the input
+     * @param byteMode      whether to code raw bytes instead of characters
+     * @param contextMode   whether to build a context model
+     * @param interleaved   whether to split every block into interleaved streams
+     * @param blockCodes    whether every block may get Huffman codes of its own
+     * @param syncInterval  the distance between sync points in bytes of decoded
+     *                      text, or 0 for none
+     * @param maxLength     the longest code length allowed, or 0 for no limit
+     * @return the coder
+     * @throws IOException if an I/O error occurs while reading
+     */
+    private static EntropyCoder createCoder(String inputFilename, boolean tans, int lzLevel,
+            boolean frequencyMode, boolean byteMode, boolean contextMode, boolean interleaved, boolean blockCodes,
+            int syncInterval, int maxLength) throws IOException {
+        if (lzLevel > 0) {
+            return new Lz77Coder(lzLevel, null);
+        }
+        if (tans) {
+            return TansCoder.build(byteMode ? CodebookBuilder.countByteFrequencies(inputFilename)
+                    : CodebookBuilder.countFrequencies(inputFilename), byteMode);
+        }
+        if (contextMode) {
+            long[][] frequencies = CodebookBuilder.countContextFrequencies(inputFilename);
+            ContextModel model = ContextModel.build(frequencies, maxLength);
+            if (maxLength > 0) {
+                reportLimit(maxLength, frequencies, model);
+            }
+            return new HuffmanCoder(model, null);
+        }
+        int[] codeLengths;
+        long[] weights;
+        if (byteMode) {
+            weights = CodebookBuilder.countByteFrequencies(inputFilename);
+            codeLengths = CodebookBuilder.codeLengths(CodebookBuilder.buildSymbolCodebook(weights),
+                    CodebookBuilder.BYTE_ALPHABET_SIZE);
+        } else if (frequencyMode) {
+            weights = CodebookBuilder.countFrequencies(inputFilename);
+            codeLengths = CodebookBuilder.codeLengths(CodebookBuilder.buildSymbolCodebook(weights));
+        } else {
+            codeLengths = CompiledCodebook.load().codeLengths();
+            weights = maxLength > 0 ? codedFrequencies(inputFilename, codeLengths) : null;
+        }
+        if (maxLength > 0) {
+            codeLengths = limitCodeLengths(weights, codeLengths, maxLength, !blockCodes);
+        }
+        int blockCodeLength = !blockCodes ? 0
+                : maxLength > 0 ? Math.min(maxLength, HuffmanCoder.MAX_BLOCK_CODE_LENGTH)
+                        : HuffmanCoder.MAX_BLOCK_CODE_LENGTH;
+        return new HuffmanCoder(codeLengths, byteMode, interleaved, syncInterval, blockCodeLength, null);
+    }
+
+    /**
+     * Counts the characters of the input file that the codebook file codes. The
+     * characters it has no code for are skipped when encoding, so they get no
+     * weight.
+     *
+     * @param inputFilename the name of the input file
+     * @param codeLengths   the code lengths of the codebook file
+     * @return the frequency of every coded character, indexed by character
+     * @throws IOException if an I/O error occurs while reading
+     */
+    private static long[] codedFrequencies(String inputFilename, int[] codeLengths) throws IOException {
+        long[] frequencies = CodebookBuilder.countFrequencies(inputFilename);
+        for (int character = 0; character < frequencies.length; character++) {
+            if (character >= codeLengths.length || codeLengths[character] == 0) {
+                frequencies[character] = 0;
+            }
+        }
+        return frequencies;
+    }
+
+    /**
+     * Rebuilds the code lengths under a length limit and reports what the limit
+     * costs the input against the code lengths it replaces.
+     *
+     * @param weights     the frequency of every symbol in the input, indexed by
+     *                    symbol
+     * @param codeLengths the unlimited code lengths
+     * @param maxLength   the longest code length allowed
+     * @param report      whether to report the cost; with block codes, most
+     *                    blocks are coded with codes of their own, so the cost
+     *                    of limiting the file's codebook says little
+     * @return the limited code lengths, or the unlimited ones if no symbol has
+     *         a weight
+     */
+    private static int[] limitCodeLengths(long[] weights, int[] codeLengths, int maxLength, boolean report) {
+        long symbolCount = 0;
+        for (long weight : weights) {
+            symbolCount += weight;
+        }
+        if (symbolCount == 0) {
+            return codeLengths;
+        }
+        int[] limitedLengths = CodebookBuilder.limitedCodeLengths(weights, maxLength);
+        if (report) {
+            reportLimit(maxLength, symbolCount, CodebookBuilder.codedBits(weights, codeLengths),
+                    CodebookBuilder.codedBits(weights, limitedLengths));
+        }
+        return limitedLengths;
+    }
+
+    /**
+     * Reports what limiting the code length costs a context model against an
+     * unconstrained Huffman code for every context.
+     *
+     * @param maxLength    the longest code length allowed
+     * @param frequencies  the frequency of every character in every context,
+     *                     indexed by context and then by character
+     * @param limitedModel the limited context model
+     */
+    private static void reportLimit(int maxLength, long[][] frequencies, ContextModel limitedModel) {
+        long symbolCount = 0;
+        long bits = 0;
+        long limitedBits = 0;
+        for (int context = 0; context < frequencies.length; context++) {
+            int[] limitedLengths = limitedModel.getCodeLengths()[context];
+            if (limitedLengths == null) {
+                continue;
+            }
+            for (long frequency : frequencies[context]) {
+                symbolCount += frequency;
+            }
+            bits += CodebookBuilder.optimalBits(frequencies[context]);
+            limitedBits += CodebookBuilder.codedBits(frequencies[context], limitedLengths);
+        }
+        if (symbolCount > 0) {
+            reportLimit(maxLength, symbolCount, bits, limitedBits);
+        }
+    }
+
+    /**
+     * Prints, to standard error, the average code length with and without the
+     * length limit, and how much larger the coded data gets.
+     *
+     * @param maxLength   the longest code length allowed
+     * @param symbolCount the number of symbols coded
+     * @param bits        the number of bits of the unconstrained codes
+     * @param limitedBits the number of bits of the limited codes
+     */
+    private static void reportLimit(int maxLength, long symbolCount, long bits, long limitedBits) {
+        System.err.printf("Codes limited to %d bits: %.4f bits/symbol instead of %.4f (%+.3f%% coded size)%n",
+                maxLength, (double) limitedBits / symbolCount, (double) bits / symbolCount,
+                100.0 * (limitedBits - bits) / bits);
+    }
+
+    /**
+     * Encodes the input file into the binary container, packing the codes into
+     * bytes. The coder writes the header that describes it: for Huffman codes
+     * only the code lengths of the codebook are kept, as the characters are
+     * encoded with the canonical codes for those lengths, which Decode can
+     * rebuild from the header.
+     *
+     * The input is memory-mapped and split into blocks of about BLOCK_SIZE bytes
+     * that are encoded in parallel, a batch at a time, into direct buffers that
+     * are written in order. In byte mode the blocks are exactly BLOCK_SIZE bytes
+     * and every byte is a symbol, with no UTF-8 decoding.
+     *
+     * @param inputFilename   the name of the input file
+     * @param encodedFilename the name of the encoded file
+     * @param coder           the entropy coder
+     * @param byteMode        whether to encode raw bytes instead of characters
+     * @param metrics         receives timings and sizes, or null
+     * @throws IOException if an I/O error occurs while reading or writing
+     */
+    private static void encodeBinary(String inputFilename, String encodedFilename, EntropyCoder coder,
+            boolean byteMode, CodecMetrics metrics) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool();
+        long readStart = System.nanoTime();
+
+        try (MappedInput input = new MappedInput(inputFilename);
+                FileChannel output = FileChannel.open(Paths.get(encodedFilename), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<long[]> blocks = byteMode ? InputChunks.splitBytes(input, BLOCK_SIZE)
+                    : InputChunks.split(input, BLOCK_SIZE);
+            if (metrics != null) {
+                metrics.addReadTime(System.nanoTime() - readStart);
+            }
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            coder.writeHeader(header);
+            writeFully(output, ByteBuffer.wrap(header.toByteArray()));
+
+            // one direct output buffer per batch slot, reused from batch to batch
+            int batchSize = pool.getParallelism() * 2;
+            ByteBuffer[] outputBuffers = new ByteBuffer[batchSize];
+            for (int slot = 0; slot < batchSize; slot++) {
+                outputBuffers[slot] = ByteBuffer.allocateDirect(coder.maxEncodedSize(BLOCK_SIZE + 4));
+            }
+
+            BlockIndex index = new BlockIndex();
+            for (int first = 0; first < blocks.size(); first += batchSize) {
+                List<ForkJoinTask<Integer>> batch = new ArrayList<>();
+                SyncPoints[] syncPoints = new SyncPoints[batchSize];
+                for (int slot = 0; slot < batchSize && first + slot < blocks.size(); slot++) {
+                    long[] block = blocks.get(first + slot);
+                    ByteBuffer outputBuffer = outputBuffers[slot].clear();
+                    SyncPoints blockSyncPoints = syncPoints[slot] = new SyncPoints();
+                    batch.add(pool.submit(() -> encodeBlock(input.slice(block[0], block[1]), coder, outputBuffer,
+                            blockSyncPoints, byteMode, metrics)));
+                }
+                for (int slot = 0; slot < batch.size(); slot++) {
+                    int symbolCount = batch.get(slot).get();
+                    if (symbolCount == 0) {
+                        continue;
+                    }
+                    index.add((output.position() + HuffmanFormat.BLOCK_HEADER_SIZE) * 8, symbolCount,
+                            syncPoints[slot]);
+                    long writeStart = System.nanoTime();
+                    writeFully(output, outputBuffers[slot].flip());
+                    if (metrics != null) {
+                        metrics.addWriteTime(System.nanoTime() - writeStart);
+                        metrics.addBlock(symbolCount, outputBuffers[slot].limit() - HuffmanFormat.BLOCK_HEADER_SIZE);
+                    }
+                }
+            }
+
+            long writeStart = System.nanoTime();
+            writeFully(output, ByteBuffer.allocate(HuffmanFormat.BLOCK_HEADER_SIZE)); // end of data
+            writeFully(output, index.toByteBuffer(output.position()));
+            if (metrics != null) {
+                metrics.addWriteTime(System.nanoTime() - writeStart);
+                metrics.setSizes(input.size(), output.position());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding");
+        } catch (ExecutionException e) {
+            throw PoolTasks.failure(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Encodes one block of the input with the entropy coder. With metrics, the
+     * encoding time is added and the block's symbols are counted for the
+     * entropy, in a separate pass that is not timed. That entropy is the order-0
+     * one, which the context model can beat.
+     *
+     * @param bytes        the input bytes of the block
+     * @param coder        the entropy coder
+     * @param outputBuffer the buffer that receives the encoded block
+     * @param syncPoints   receives the sync points and the decoded length
+     * @param byteMode     whether to encode raw bytes instead of characters
+     * @param metrics      receives timings and counts, or null
+     * @return the number of symbols encoded
+     * @throws IOException if an I/O error occurs while encoding
+     */
+    private static int encodeBlock(ByteBuffer bytes, EntropyCoder coder, ByteBuffer outputBuffer,
+            SyncPoints syncPoints, boolean byteMode, CodecMetrics metrics) throws IOException {
+        ByteBuffer input = bytes.duplicate();
+        long start = System.nanoTime();
+        int symbolCount = coder.encodeBlock(bytes, outputBuffer, syncPoints);
+        if (metrics != null) {
+            metrics.addCodingTime(System.nanoTime() - start);
+            metrics.countSymbols(input, byteMode, coder.codedSymbols());
+        }
+        return symbolCount;
+    }
+
+    /**
+     * Encodes from a file or standard input to a file or standard output through
+     * a StreamPipeline, so reading, encoding and writing overlap. The output is
+     * the same as that of a HuffmanOutputStream.
+     *
+     * @param inputFilename   the name of the input file, or - for standard input
+     * @param encodedFilename the name of the encoded file, or - for standard
+     *                        output
+     * @param codeLengths     the code length of every character, indexed by
+     *                        character
+     * @param syncInterval    the distance between sync points in bytes of
+     *                        decoded text, or 0 for none
+     * @throws IOException if an I/O error occurs while reading or writing
+     */
+    private static void encodeStream(String inputFilename, String encodedFilename,
+            int[] codeLengths, int syncInterval) throws IOException {
+        try (InputStream in = inputFilename.equals(STANDARD_STREAM) ? System.in
+                : Files.newInputStream(Paths.get(inputFilename));
+                OutputStream out = encodedFilename.equals(STANDARD_STREAM) ? System.out
+                        : Files.newOutputStream(Paths.get(encodedFilename))) {
+            StreamPipeline.encode(in, out, codeLengths, syncInterval);
+        }
+    }
+
+    /**
+     * Encodes in adaptive mode, in a single pass and without a codebook. An
+     * AdaptiveHuffmanTree learns the character frequencies as it goes, so
+     * nothing has to be read ahead and memory use does not depend on the input.
+     * Whenever the input has nothing more to offer right away, the complete bytes
+     * written so far are flushed, so a reader sees the output while the input is
+     * still being written.
+     *
+     * @param inputFilename   the name of the input file, or - for standard input
+     * @param encodedFilename the name of the encoded file, or - for standard
+     *                        output
+     * @throws IOException if an I/O error occurs while reading or writing
+     */
+    private static void encodeAdaptive(String inputFilename, String encodedFilename) throws IOException {
+        try (Reader reader = new InputStreamReader(inputFilename.equals(STANDARD_STREAM) ? System.in
+                : Files.newInputStream(Paths.get(inputFilename)), StandardCharsets.UTF_8);
+                OutputStream out = encodedFilename.equals(STANDARD_STREAM) ? System.out
+                        : Files.newOutputStream(Paths.get(encodedFilename));
+                BitWriter writer = new BitWriter(out)) {
+
+            HuffmanFormat.writeAdaptiveHeader(out);
+            AdaptiveHuffmanTree tree = new AdaptiveHuffmanTree();
+            char[] characters = new char[ADAPTIVE_BUFFER_SIZE];
+            int count;
+            while ((count = reader.read(characters)) != -1) {
+                for (int i = 0; i < count; i++) {
+                    char character = characters[i];
+                    if (character >= CodebookBuilder.FIRST_CHARACTER && character <= CodebookBuilder.LAST_CHARACTER) {
+                        tree.encode(character, writer);
+                    }
+                }
+                if (!reader.ready()) {
+                    writer.flushBytes();
+                }
+            }
+            tree.encode(EOT, writer);
+        }
+    }
 
-        HashMap<Character, String> codebook = readCodebook();
+    /**
+     * Writes the whole buffer to the channel.
+     *
+     * @param channel the channel to write to
+     * @param buffer  the bytes to write
+     * @throws IOException if an I/O error occurs while writing
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
 
+    /**
+     * Encodes the input file in text mode, writing every bit of the Huffman codes
+     * as a '0' or '1' character.
+     *
+     * @param inputFilename   the name of the input file
+     * @param encodedFilename the name of the encoded file
+     * @param codebook        the codebook used to encode the characters
+     * @throws IOException if an I/O error occurs while reading or writing
+     */
+    private static void encodeText(String inputFilename, String encodedFilename,
+            HashMap<Character, String> codebook) throws IOException {
         try (BufferedReader reader = Files.newBufferedReader(Paths.get(inputFilename), StandardCharsets.UTF_8);
                 BufferedWriter writer = Files.newBufferedWriter(Paths.get(encodedFilename), StandardCharsets.UTF_8)) {
 
@@ -46,36 +704,6 @@ public class Encode {
 
             String eotCode = codebook.get(EOT); // EOT character
             writer.write(eotCode);
-
-        } catch (IOException e) {
-            System.err.println("ERROR: " + e.getMessage());
-        }
-    }
-
-    /**
-     * Reads the codebook file and returns a HashMap that maps characters to their
-     * Huffman codes.
-     *
-     * @return a HashMap that maps characters to their Huffman codes
-     */
-    private static HashMap<Character, String> readCodebook() {
-        HashMap<Character, String> codebook = new HashMap<>();
-
-        try (BufferedReader reader = Files.newBufferedReader(Paths.get(CODEBOOK_FILENAME), StandardCharsets.UTF_8)) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(":");
-                if (parts.length < 2) {
-                    System.err.println("ERROR: Invalid line in codebook - " + line);
-                    continue;
-                }
-                char character = (char) Integer.parseInt(parts[0]);
-                String huffmanCode = parts[1];
-                codebook.put(character, huffmanCode);
-            }
-        } catch (IOException e) {
-            System.err.println("ERROR: Failed to read codebook file - " + e.getMessage());
         }
-        return codebook;
     }
 }
@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * EntropyCoder is the interface shared by the entropy coders of the binary
+ * container, HuffmanCoder and TansCoder. A coder writes the part of the
+ * container header that describes it and codes whole blocks, block header
+ * included, so Encode and Decode handle every coder the same way; Decode gets
+ * the coder, and with it the mode of the file, from the header alone. A coder
+ * codes blocks of UTF-8 text, or of raw bytes in byte mode.
+ */
+interface EntropyCoder {
+
+    /**
+     * Writes the container header of a file coded with this coder.
+     *
+     * @param out the stream to write the header to
+     * @throws IOException if an I/O error occurs while writing
+     */
+    void writeHeader(OutputStream out) throws IOException;
+
+    /**
+     * Returns how large an output buffer must be to hold an encoded block,
+     * block header included.
+     *
+     * @param inputBytes the number of input bytes in the block
+     * @return the buffer size in bytes
+     */
+    int maxEncodedSize(int inputBytes);
+
+    /**
+     * Encodes one block, block header included, into the output buffer.
+     * Characters the coder has no code for are skipped.
+     *
+     * @param bytes        the input bytes of the block
+     * @param outputBuffer the buffer that receives the encoded block, starting at
+     *                     its position
+     * @param syncPoints   receives the sync points, if the coder records any,
+     *                     and the decoded length
+     * @return the number of symbols encoded
+     * @throws IOException if a symbol cannot be encoded
+     */
+    int encodeBlock(ByteBuffer bytes, ByteBuffer outputBuffer, SyncPoints syncPoints) throws IOException;
+
+    /**
+     * Decodes the payload of one block.
+     *
+     * @param payload      the payload of the block
+     * @param symbolCount  the number of symbols in the block
+     * @param outputBuffer the buffer that receives the decoded bytes, at most two
+     *                     per symbol
+     * @throws IOException if the payload is malformed
+     */
+    void decodeBlock(ByteBuffer payload, int symbolCount, ByteBuffer outputBuffer) throws IOException;
+
+    /**
+     * Decodes the start of a block, from the block itself or from one of its sync
+     * points, until at least the given number of bytes has been written. Coders
+     * without sync points decode the whole block.
+     *
+     * @param payload      the payload of the block
+     * @param bitOffset    the position of the first code to decode, in bits from
+     *                     the start of the payload
+     * @param length       the number of bytes wanted
+     * @param symbolCount  the number of symbols in the block
+     * @param outputBuffer the buffer that receives the decoded bytes, with room
+     *                     for the whole block
+     * @throws IOException if the payload or the offset is malformed
+     */
+    default void decodeBytes(ByteBuffer payload, long bitOffset, long length, int symbolCount,
+            ByteBuffer outputBuffer) throws IOException {
+        if (bitOffset != 0) {
+            throw new IOException("Invalid sync point in encoded file");
+        }
+        decodeBlock(payload, symbolCount, outputBuffer);
+    }
+
+    /**
+     * Returns whether the coder codes raw bytes, one per symbol, rather than
+     * UTF-8 text.
+     *
+     * @return true in byte mode
+     */
+    boolean byteMode();
+
+    /**
+     * Returns which symbols the coder can code, for the symbol histogram of
+     * CodecMetrics.
+     *
+     * @return a non-zero value for every symbol that has a code, indexed by
+     *         symbol
+     */
+    byte[] codedSymbols();
+}
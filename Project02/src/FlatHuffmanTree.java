@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * FlatHuffmanTree is a Huffman tree stored in a single int array instead of
+ * linked Node objects. Internal node i keeps its two children at indices 2i
+ * (bit 0) and 2i + 1 (bit 1). A child entry that is zero or positive is the
+ * number of another internal node; a negative entry is a leaf holding the
+ * complement of its character. The root is node 0.
+ */
+class FlatHuffmanTree implements HuffmanDecoder {
+    private static final int MISSING = Integer.MIN_VALUE; // no code continues this way
+
+    private int[] nodes;
+    private int nodeCount;
+
+    /**
+     * Constructor for creating a new FlatHuffmanTree from a codebook.
+     *
+     * @param codebook the codebook used to build the tree
+     */
+    FlatHuffmanTree(HashMap<Character, String> codebook) {
+        nodes = new int[2 * Math.max(codebook.size(), 1)];
+        Arrays.fill(nodes, MISSING);
+        nodeCount = 1;
+        buildTree(codebook);
+    }
+
+    /**
+     * Builds the tree using the given codebook.
+     *
+     * @param codebook the codebook used to build the tree
+     */
+    private void buildTree(HashMap<Character, String> codebook) {
+        for (HashMap.Entry<Character, String> entry : codebook.entrySet()) {
+            String huffmanCode = entry.getValue();
+            if (huffmanCode.isEmpty()) {
+                continue;
+            }
+
+            int node = 0;
+            for (int i = 0; i < huffmanCode.length() - 1; i++) {
+                int slot = 2 * node + (huffmanCode.charAt(i) == '1' ? 1 : 0);
+                if (nodes[slot] == MISSING) {
+                    nodes[slot] = addNode();
+                }
+                node = nodes[slot];
+            }
+            int slot = 2 * node + (huffmanCode.charAt(huffmanCode.length() - 1) == '1' ? 1 : 0);
+            nodes[slot] = ~entry.getKey();
+        }
+    }
+
+    /**
+     * Adds an internal node with no children yet.
+     *
+     * @return the number of the new node
+     */
+    private int addNode() {
+        if (2 * nodeCount == nodes.length) {
+            int oldLength = nodes.length;
+            nodes = Arrays.copyOf(nodes, oldLength * 2);
+            Arrays.fill(nodes, oldLength, nodes.length, MISSING);
+        }
+        return nodeCount++;
+    }
+
+    /**
+     * Decodes the next character by walking the array. The longest possible code
+     * is peeked at once, and the walk takes its bits from that word, so the
+     * reader is only touched twice per character.
+     *
+     * @param reader the BitReader used to read the packed bits
+     * @return the decoded character
+     * @throws IOException if an I/O error occurs or the bits are not a valid code
+     */
+    @Override
+    public char decodeNextCharacter(BitReader reader) throws IOException {
+        int bits = reader.peekBits(CodebookBuilder.MAX_CODE_LENGTH);
+        int shift = CodebookBuilder.MAX_CODE_LENGTH - 1;
+        int entry = nodes[(bits >>> shift) & 1];
+        while (entry >= 0 && shift > 0) {
+            shift--;
+            entry = nodes[2 * entry + ((bits >>> shift) & 1)];
+        }
+        if (entry >= 0 || entry == MISSING) {
+            throw new IOException("Invalid Huffman code in encoded file");
+        }
+        reader.skipBits(CodebookBuilder.MAX_CODE_LENGTH - shift);
+        return (char) ~entry;
+    }
+}
@@ -0,0 +1,438 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * HuffBench measures the codec without going through the file system. It
+ * generates a corpus in memory for every size and symbol distribution, then
+ * times encoding and decoding it block by block with every EntropyCoder, and
+ * reports the throughput in MB/s of text along with the coded size in bits
+ * per symbol, so the coders can be compared on both. Every Huffman decoder is
+ * benchmarked on the same encoded blocks, so a new decoder only needs a name
+ * in Decode.createDecoder to show up here. The time to load the codebook file
+ * and to build each decoder from it is measured separately.
+ *
+ * Each case runs a number of warmup iterations, which are not timed, so the JIT
+ * has compiled the hot loops before the measured iterations start, and reports
+ * the best of the measured ones. An iteration covers at least MIN_PASS_BYTES of
+ * text, repeating small corpora. The decoded text is checked against the
+ * corpus once per case. All cases share one JVM, so for a precise comparison of
+ * two decoders run them one at a time with -decoders, which keeps the JIT
+ * profile of the decode loop to a single decoder.
+ */
+public class HuffBench {
+    private static final int BLOCK_SIZE = BlockCodec.BLOCK_SIZE;
+    private static final String DIST_ENGLISH = "english";
+    private static final String DIST_RANDOM = "random";
+    private static final String DIST_SKEWED = "skewed";
+    private static final String[] WORDS = { "the", "of", "and", "to", "a", "in", "is", "it", "you", "that", "he",
+            "was", "for", "on", "are", "with", "as", "his", "they", "be", "at", "one", "have", "this", "from", "or",
+            "had", "by", "word", "but", "what", "some", "we", "can", "out", "other", "were", "all", "there", "when",
+            "up", "use", "your", "how", "said", "an", "each", "she", "which", "do", "their", "time", "if", "will",
+            "way", "about", "many", "then", "them", "write", "would", "like", "so", "these", "her", "long", "make",
+            "thing", "see", "him", "two", "has", "look", "more", "day", "could", "go", "come", "did", "number",
+            "sound", "no", "most", "people", "my", "over", "know", "water", "than", "call", "first", "who", "may",
+            "down", "side", "been", "now", "find" };
+    private static final long MIN_PASS_BYTES = 8 << 20;
+
+    /**
+     * One timed unit of work.
+     */
+    private interface Pass {
+        void run() throws IOException;
+    }
+
+    /**
+     * The main method that runs the benchmarks. The list options take
+     * comma-separated values.
+     *
+     * Options:
+     * -sizes corpus sizes, with an optional K, M or G suffix (default
+     * 1K,1M,16M); sizes up to 1G work with a matching -Xmx
+     * -dists symbol distributions: english, random, skewed (default all)
+     * -coders entropy coders to benchmark: huffman, tans (default all)
+     * -decoders Huffman decoders to benchmark: table, tree, flat (default all)
+     * -warmup the number of untimed iterations per case (default 3)
+     * -iterations the number of timed iterations per case (default 5)
+     *
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        String[] sizes = { "1K", "1M", "16M" };
+        String[] distributions = { DIST_ENGLISH, DIST_RANDOM, DIST_SKEWED };
+        String[] coders = { Encode.CODER_HUFFMAN, Encode.CODER_TANS };
+        String[] decoders = { Decode.DECODER_TABLE, Decode.DECODER_TREE, Decode.DECODER_FLAT };
+        int warmup = 3;
+        int iterations = 5;
+
+        try {
+            for (int argIndex = 0; argIndex < args.length; argIndex += 2) {
+                if (argIndex + 1 == args.length) {
+                    System.err.println("ERROR: Missing value for option " + args[argIndex]);
+                    return;
+                }
+                String value = args[argIndex + 1];
+                switch (args[argIndex]) {
+                    case "-sizes":
+                        sizes = value.split(",");
+                        break;
+                    case "-dists":
+                        distributions = value.split(",");
+                        break;
+                    case "-coders":
+                        coders = value.split(",");
+                        break;
+                    case "-decoders":
+                        decoders = value.split(",");
+                        break;
+                    case "-warmup":
+                        warmup = Integer.parseInt(value);
+                        break;
+                    case "-iterations":
+                        iterations = Integer.parseInt(value);
+                        break;
+                    default:
+                        System.err.println("ERROR: Unknown option " + args[argIndex]);
+                        return;
+                }
+            }
+
+            benchmarkCodebookLoad(decoders, warmup, iterations);
+            System.out.printf("%n%-8s %-8s %-14s %10s %9s%n", "size", "dist", "operation", "MB/s", "bits/sym");
+            for (String size : sizes) {
+                for (String distribution : distributions) {
+                    benchmarkCorpus(size, distribution, coders, decoders, warmup, iterations);
+                }
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Measures how long it takes to read the codebook file and to build every
+     * decoder from it, and prints the best time of each in microseconds.
+     *
+     * @param decoders   the decoders to build
+     * @param warmup     the number of untimed iterations
+     * @param iterations the number of timed iterations
+     * @throws IOException if the codebook file cannot be read or is invalid
+     */
+    private static void benchmarkCodebookLoad(String[] decoders, int warmup, int iterations)
+            throws IOException {
+        long best = Long.MAX_VALUE;
+        HashMap<Character, String> codebook = null;
+        for (int i = 0; i < warmup + iterations; i++) {
+            long start = System.nanoTime();
+            codebook = Decode.readCodebook();
+            long elapsed = System.nanoTime() - start;
+            if (i >= warmup) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        System.out.printf("%-24s %10.1f us%n", "codebook load", best / 1e3);
+
+        for (String decoderName : decoders) {
+            best = Long.MAX_VALUE;
+            for (int i = 0; i < warmup + iterations; i++) {
+                long start = System.nanoTime();
+                Decode.createDecoder(decoderName, codebook);
+                long elapsed = System.nanoTime() - start;
+                if (i >= warmup) {
+                    best = Math.min(best, elapsed);
+                }
+            }
+            System.out.printf("%-24s %10.1f us%n", "build " + decoderName, best / 1e3);
+        }
+    }
+
+    /**
+     * Generates one corpus and benchmarks every coder on it, each built from the
+     * corpus's own frequencies: Huffman codes with every decoder, and tANS.
+     *
+     * @param size         the corpus size, with an optional K, M or G suffix
+     * @param distribution the symbol distribution of the corpus
+     * @param coders       the entropy coders to benchmark
+     * @param decoders     the Huffman decoders to benchmark
+     * @param warmup       the number of untimed iterations
+     * @param iterations   the number of timed iterations
+     * @throws IOException if the decoded text does not match the corpus
+     */
+    private static void benchmarkCorpus(String size, String distribution, String[] coders, String[] decoders,
+            int warmup, int iterations) throws IOException {
+        byte[] corpus = generate(parseSize(size), distribution);
+        long[] frequencies = countFrequencies(corpus);
+        for (String coderName : coders) {
+            List<String> names = new ArrayList<>();
+            List<EntropyCoder> decodingCoders = new ArrayList<>();
+            EntropyCoder coder;
+            switch (coderName) {
+                case Encode.CODER_HUFFMAN:
+                    int[] codeLengths = CodebookBuilder.codeLengths(CodebookBuilder.buildSymbolCodebook(frequencies));
+                    coder = new HuffmanCoder(codeLengths, false, false, 0, 0, null);
+                    for (String decoderName : decoders) {
+                        names.add(decoderName);
+                        decodingCoders.add(new HuffmanCoder(codeLengths, false, false, 0, 0, decoderName));
+                    }
+                    break;
+                case Encode.CODER_TANS:
+                    coder = TansCoder.build(frequencies, false);
+                    names.add(coderName);
+                    decodingCoders.add(coder);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown coder " + coderName);
+            }
+            benchmarkCoder(size, distribution, corpus, coderName, coder, names, decodingCoders, warmup,
+                    iterations);
+        }
+    }
+
+    /**
+     * Measures encoding the corpus with one coder and decoding it with each of
+     * the given coders, which must decode what it encodes. Throughput is the
+     * best of the timed iterations.
+     *
+     * @param size           the corpus size, as given
+     * @param distribution   the symbol distribution of the corpus
+     * @param corpus         the UTF-8 text
+     * @param coderName      the name of the encoding coder
+     * @param coder          the coder to encode with
+     * @param names          the name of every decoding coder
+     * @param decodingCoders the coders to decode with
+     * @param warmup         the number of untimed iterations
+     * @param iterations     the number of timed iterations
+     * @throws IOException if the decoded text does not match the corpus
+     */
+    private static void benchmarkCoder(String size, String distribution, byte[] corpus, String coderName,
+            EntropyCoder coder, List<String> names, List<EntropyCoder> decodingCoders, int warmup,
+            int iterations) throws IOException {
+        List<int[]> blocks = splitBlocks(corpus);
+
+        // encode once to keep the blocks for decoding, then time encoding
+        ByteBuffer outputBuffer = ByteBuffer.allocateDirect(coder.maxEncodedSize(BLOCK_SIZE + 4));
+        List<ByteBuffer> payloads = new ArrayList<>();
+        int[] symbolCounts = new int[blocks.size()];
+        long payloadBytes = 0;
+        long symbols = 0;
+        for (int b = 0; b < blocks.size(); b++) {
+            outputBuffer.clear();
+            symbolCounts[b] = coder.encodeBlock(block(corpus, blocks.get(b)), outputBuffer, new SyncPoints());
+            outputBuffer.flip().position(HuffmanFormat.BLOCK_HEADER_SIZE);
+            payloadBytes += outputBuffer.remaining();
+            symbols += symbolCounts[b];
+            payloads.add(ByteBuffer.allocateDirect(outputBuffer.remaining()).put(outputBuffer).flip());
+        }
+        double bitsPerSymbol = 8.0 * payloadBytes / Math.max(1, symbols);
+
+        // small corpora are run several times per iteration so the clock resolution does not matter
+        int repeats = (int) Math.max(1, MIN_PASS_BYTES / corpus.length);
+        double megabytes = (double) corpus.length * repeats / 1e6;
+        long encodeTime = measure(warmup, iterations, () -> {
+            for (int r = 0; r < repeats; r++) {
+                for (int[] range : blocks) {
+                    outputBuffer.clear();
+                    coder.encodeBlock(block(corpus, range), outputBuffer, new SyncPoints());
+                }
+            }
+        });
+        System.out.printf("%-8s %-8s %-14s %10.1f %9.4f%n", size, distribution, "encode " + coderName,
+                megabytes / (encodeTime / 1e9), bitsPerSymbol);
+
+        ByteBuffer decoded = ByteBuffer.allocateDirect(2 * BLOCK_SIZE + 8);
+        for (int c = 0; c < decodingCoders.size(); c++) {
+            EntropyCoder decodingCoder = decodingCoders.get(c);
+            long decodeTime = measure(warmup, iterations, () -> {
+                for (int r = 0; r < repeats; r++) {
+                    for (int b = 0; b < payloads.size(); b++) {
+                        decoded.clear();
+                        decodingCoder.decodeBlock(payloads.get(b).duplicate(), symbolCounts[b], decoded);
+                    }
+                }
+            });
+            verify(corpus, blocks, payloads, symbolCounts, decodingCoder, decoded, names.get(c));
+            System.out.printf("%-8s %-8s %-14s %10.1f %9.4f%n", size, distribution, "decode " + names.get(c),
+                    megabytes / (decodeTime / 1e9), bitsPerSymbol);
+        }
+    }
+
+    /**
+     * Runs a pass the given number of times and returns the best time of the
+     * timed iterations.
+     *
+     * @param warmup     the number of untimed iterations
+     * @param iterations the number of timed iterations
+     * @param pass       the work to time
+     * @return the best time in nanoseconds
+     * @throws IOException if the pass fails
+     */
+    private static long measure(int warmup, int iterations, Pass pass) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < warmup + iterations; i++) {
+            long start = System.nanoTime();
+            pass.run();
+            long elapsed = System.nanoTime() - start;
+            if (i >= warmup) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Decodes every block once more and checks it against the corpus.
+     *
+     * @param corpus       the original text
+     * @param blocks       the byte range of every block in the corpus
+     * @param payloads     the encoded payload of every block
+     * @param symbolCounts the number of characters in every block
+     * @param coder        the coder to check
+     * @param decoded      a buffer large enough for one decoded block
+     * @param decoderName  the name of the decoder, for the error message
+     * @throws IOException if the decoded text does not match the corpus
+     */
+    private static void verify(byte[] corpus, List<int[]> blocks, List<ByteBuffer> payloads, int[] symbolCounts,
+            EntropyCoder coder, ByteBuffer decoded, String decoderName) throws IOException {
+        for (int b = 0; b < payloads.size(); b++) {
+            decoded.clear();
+            coder.decodeBlock(payloads.get(b).duplicate(), symbolCounts[b], decoded);
+            if (!decoded.flip().equals(block(corpus, blocks.get(b)))) {
+                throw new IOException("Decoder " + decoderName + " does not round-trip block " + b);
+            }
+        }
+    }
+
+    /**
+     * Generates a UTF-8 corpus of the given size. Every character is one that
+     * can be encoded, so the decoded text must match the corpus exactly.
+     *
+     * english: words from a list of common words, with punctuation and line
+     * breaks
+     * random: characters drawn uniformly from the encodable range, so about half
+     * of them take two bytes
+     * skewed: letters with geometrically falling frequencies, each half as likely
+     * as the one before
+     *
+     * @param size         the size in bytes
+     * @param distribution the symbol distribution
+     * @return the corpus
+     */
+    private static byte[] generate(int size, String distribution) {
+        Random random = new Random(42);
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        int range = CodebookBuilder.LAST_CHARACTER - CodebookBuilder.FIRST_CHARACTER + 1;
+        // leave room for a two-byte character; the tail is filled with spaces
+        while (bytes.remaining() >= 2) {
+            switch (distribution) {
+                case DIST_ENGLISH:
+                    String word = WORDS[random.nextInt(WORDS.length)];
+                    for (int i = 0; i < word.length() && bytes.hasRemaining(); i++) {
+                        bytes.put((byte) word.charAt(i));
+                    }
+                    int punctuation = random.nextInt(20);
+                    if (bytes.hasRemaining() && punctuation == 0) {
+                        bytes.put((byte) '.');
+                    } else if (bytes.hasRemaining() && punctuation == 1) {
+                        bytes.put((byte) ',');
+                    }
+                    if (bytes.hasRemaining()) {
+                        bytes.put((byte) (random.nextInt(12) == 0 ? '\n' : ' '));
+                    }
+                    break;
+                case DIST_RANDOM:
+                    Utf8.encode((char) (CodebookBuilder.FIRST_CHARACTER + random.nextInt(range)), bytes);
+                    break;
+                case DIST_SKEWED:
+                    int rank = Math.min(Long.numberOfTrailingZeros(random.nextLong() | (1L << 25)), 25);
+                    bytes.put((byte) ('a' + rank));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown distribution " + distribution);
+            }
+        }
+        while (bytes.hasRemaining()) {
+            bytes.put((byte) ' ');
+        }
+        return bytes.array();
+    }
+
+    /**
+     * Parses a size such as 512, 1K, 64M or 1G.
+     *
+     * @param size the size, with an optional K, M or G suffix
+     * @return the size in bytes
+     */
+    private static int parseSize(String size) {
+        long multiplier = 1;
+        String digits = size.toUpperCase();
+        if (digits.endsWith("K")) {
+            multiplier = 1L << 10;
+        } else if (digits.endsWith("M")) {
+            multiplier = 1L << 20;
+        } else if (digits.endsWith("G")) {
+            multiplier = 1L << 30;
+        }
+        if (multiplier != 1) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        long bytes = Long.parseLong(digits) * multiplier;
+        if (bytes <= 0 || bytes > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Invalid corpus size " + size);
+        }
+        return (int) bytes;
+    }
+
+    /**
+     * Counts the characters of the corpus, as CodebookBuilder does for a file.
+     *
+     * @param corpus the UTF-8 text
+     * @return the frequency of every character, indexed by character
+     */
+    private static long[] countFrequencies(byte[] corpus) {
+        long[] frequencies = new long[CodebookBuilder.LAST_CHARACTER + 1];
+        for (int[] range : splitBlocks(corpus)) {
+            ByteBuffer bytes = block(corpus, range);
+            char[] characters = new char[bytes.remaining()];
+            int count = Utf8.decode(bytes, characters);
+            for (int i = 0; i < count; i++) {
+                frequencies[characters[i]]++;
+            }
+        }
+        return frequencies;
+    }
+
+    /**
+     * Splits the corpus into blocks of about BLOCK_SIZE bytes, moving every
+     * boundary back to the start of a character.
+     *
+     * @param corpus the UTF-8 text
+     * @return the start and end of every block
+     */
+    private static List<int[]> splitBlocks(byte[] corpus) {
+        List<int[]> blocks = new ArrayList<>();
+        int start = 0;
+        while (start < corpus.length) {
+            int end = Math.min(start + BLOCK_SIZE, corpus.length);
+            while (end < corpus.length && end > start + 1 && (corpus[end] & 0xC0) == 0x80) {
+                end--;
+            }
+            blocks.add(new int[] { start, end });
+            start = end;
+        }
+        return blocks;
+    }
+
+    /**
+     * Returns one block of the corpus as a buffer.
+     *
+     * @param corpus the UTF-8 text
+     * @param range  the start and end of the block
+     * @return a buffer over the block
+     */
+    private static ByteBuffer block(byte[] corpus, int[] range) {
+        return ByteBuffer.wrap(corpus, range[0], range[1] - range[0]).slice();
+    }
+}
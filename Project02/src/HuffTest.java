@@ -5,11 +5,15 @@
  * @filename HuffTest.java
  * @author Ryan Fahimi
  */
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * A class that compares an input file and a decoded file character
@@ -18,30 +22,73 @@ import java.nio.file.Paths;
  */
 public class HuffTest {
 
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final char FIRST_ALLOWED = '\u0007';
+    private static final char LAST_ALLOWED = '\u00FE';
+
     /**
-     * A helper class to manage characters and positions while reading files.
+     * A helper class to manage characters and positions while reading files. The
+     * file is memory-mapped and decoded a chunk at a time.
      */
     private static class CharReader {
+        private final MappedInput input;
+        private final List<long[]> chunks;
+        private char[] characters;
+        private int nextChunk;
+        private int count;
+        private int index;
         private int potential;
         private int current;
-        private int position;
+        private long position;
 
         /**
          * Constructor initializes Char with default values.
+         *
+         * @param input the mapped file to read characters from
+         * @throws IOException if there's an issue with reading from the file.
          */
-        public CharReader() {
+        public CharReader(MappedInput input) throws IOException {
+            this.input = input;
+            this.chunks = InputChunks.split(input, CHUNK_SIZE);
+            this.characters = new char[CHUNK_SIZE + 4];
+            this.nextChunk = 0;
+            this.count = 0;
+            this.index = 0;
             this.potential = 0;
             this.current = 0;
             this.position = -1;
         }
 
+        /**
+         * Returns the next character of the file, decoding the next chunk when the
+         * current one is used up.
+         *
+         * @return the next character, or -1 at the end of the file.
+         * @throws IOException if there's an issue with reading from the file.
+         */
+        private int read() throws IOException {
+            while (index == count) {
+                if (nextChunk == chunks.size()) {
+                    return -1;
+                }
+                long[] chunk = chunks.get(nextChunk++);
+                ByteBuffer bytes = input.slice(chunk[0], chunk[1]);
+                if (bytes.remaining() > characters.length) {
+                    characters = new char[bytes.remaining()];
+                }
+                count = Utf8.decode(bytes, characters);
+                index = 0;
+            }
+            return characters[index++];
+        }
+
         /**
          * Checks if the temp character is a disallowed character.
          * 
          * @return true if the character is disallowed, false otherwise.
          */
         private boolean isDisallowed() {
-            return !(this.potential >= '\u0007' && this.potential <= '\u00FE');
+            return !(this.potential >= FIRST_ALLOWED && this.potential <= LAST_ALLOWED);
         }
 
         /**
@@ -56,13 +103,12 @@ public class HuffTest {
         /**
          * Reads the next allowed character from the file.
          * 
-         * @param reader the BufferedReader to read the character from.
          * @throws IOException if there's an issue with reading from the file.
          */
-        private void readNextAllowed(BufferedReader reader) throws IOException {
+        private void readNextAllowed() throws IOException {
             boolean eot;
             do {
-                this.potential = reader.read();
+                this.potential = read();
                 eot = isEOT();
                 if (eot) {
                     break;
@@ -75,22 +121,178 @@ public class HuffTest {
         }
     }
 
+    /**
+     * A helper class that reads the allowed characters of a file a chunk at a
+     * time. Chunks are decoded and filtered in parallel, a batch ahead of the
+     * comparison. Every allowed character fits in a byte, so a filtered chunk is
+     * kept as a byte array.
+     */
+    private static class FilteredReader {
+
+        /**
+         * The allowed characters of one chunk and the number of characters in it.
+         */
+        private static class FilteredChunk {
+            private final byte[] allowed;
+            private final int length;
+            private final int characters;
+
+            private FilteredChunk(byte[] allowed, int length, int characters) {
+                this.allowed = allowed;
+                this.length = length;
+                this.characters = characters;
+            }
+        }
+
+        private final MappedInput input;
+        private final List<long[]> chunks;
+        private final ForkJoinPool pool;
+        private final ArrayDeque<ForkJoinTask<FilteredChunk>> pending;
+        private int nextChunk;
+        private int currentChunk;
+        private byte[] allowed;
+        private int length;
+        private int offset;
+        private long charactersBefore;
+        private long charactersInChunk;
+        private int lastAllowed;
+
+        /**
+         * Constructor starts filtering the first batch of chunks.
+         *
+         * @param input the mapped file to read characters from
+         * @param pool  the pool that filters the chunks
+         * @throws IOException if there's an issue with reading from the file.
+         */
+        public FilteredReader(MappedInput input, ForkJoinPool pool) throws IOException {
+            this.input = input;
+            this.chunks = InputChunks.split(input, CHUNK_SIZE);
+            this.pool = pool;
+            this.pending = new ArrayDeque<>();
+            this.nextChunk = 0;
+            this.currentChunk = -1;
+            this.allowed = new byte[0];
+            this.length = 0;
+            this.offset = 0;
+            this.charactersBefore = 0;
+            this.charactersInChunk = 0;
+            this.lastAllowed = 0;
+            int batchSize = 2 * pool.getParallelism();
+            while (pending.size() < batchSize && submitNext()) {
+                // fill the first batch
+            }
+        }
+
+        /**
+         * Returns the number of allowed characters left in the current chunk,
+         * moving on to the next chunk with any when it is used up.
+         *
+         * @return the number of allowed characters, or 0 at the end of the file.
+         * @throws ExecutionException if filtering a chunk fails.
+         * @throws InterruptedException if the thread is interrupted while waiting.
+         */
+        private int available() throws ExecutionException, InterruptedException {
+            while (offset == length && !pending.isEmpty()) {
+                if (length > 0) {
+                    lastAllowed = allowed[length - 1] & 0xFF;
+                }
+                charactersBefore += charactersInChunk;
+                FilteredChunk chunk = pending.poll().get();
+                submitNext();
+                currentChunk++;
+                allowed = chunk.allowed;
+                length = chunk.length;
+                charactersInChunk = chunk.characters;
+                offset = 0;
+            }
+            return length - offset;
+        }
+
+        /**
+         * Submits the next chunk for filtering.
+         *
+         * @return false if there are no more chunks.
+         */
+        private boolean submitNext() {
+            if (nextChunk == chunks.size()) {
+                return false;
+            }
+            int chunk = nextChunk++;
+            pending.add(pool.submit(() -> filterChunk(chunk)));
+            return true;
+        }
+
+        /**
+         * Decodes and filters one chunk.
+         *
+         * @param chunk the number of the chunk.
+         * @return the allowed characters of the chunk.
+         * @throws IOException if there's an issue with reading from the file.
+         */
+        private FilteredChunk filterChunk(int chunk) throws IOException {
+            char[] characters = new char[CHUNK_SIZE + 4];
+            int count = Utf8.decode(input.slice(chunks.get(chunk)[0], chunks.get(chunk)[1]), characters);
+            byte[] filtered = new byte[count];
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                // no branch per character: every character is stored, only allowed ones are kept
+                char character = characters[i];
+                filtered[kept] = (byte) character;
+                kept += isAllowed(character) ? 1 : 0;
+            }
+            return new FilteredChunk(filtered, kept, count);
+        }
+
+        /**
+         * Describes the next allowed character the way CharReader reports it: its
+         * value and its position in the file. At the end of the file, the
+         * character is the last allowed one and the position is that of the last
+         * character in the file.
+         *
+         * @return the character and its position.
+         * @throws IOException if there's an issue with reading from the file.
+         */
+        private long[] describe() throws IOException {
+            if (offset == length) {
+                int last = length > 0 ? allowed[length - 1] & 0xFF : lastAllowed;
+                return new long[] { last, charactersBefore + charactersInChunk - 1 };
+            }
+            char[] characters = new char[CHUNK_SIZE + 4];
+            Utf8.decode(input.slice(chunks.get(currentChunk)[0], chunks.get(currentChunk)[1]), characters);
+            int remaining = offset;
+            int i = 0;
+            while (!isAllowed(characters[i]) || remaining-- > 0) {
+                i++;
+            }
+            return new long[] { characters[i], charactersBefore + i };
+        }
+    }
+
     /**
      * Main method for running the program.
      * 
-     * @param args command line arguments: <input filename> <decoded filename>
+     * The files are compared in bulk, in parallel chunks. The -serial option
+     * compares them one character at a time instead; both report the same first
+     * mismatch.
+     *
+     * @param args command line arguments: [-serial] <input filename> <decoded filename>
      */
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("ERROR: Incorrect number of arguments. Expected: <input filename> <decoded filename>");
+        boolean serial = args.length > 0 && args[0].equals("-serial");
+        int argIndex = serial ? 1 : 0;
+        if (args.length - argIndex != 2) {
+            System.err.println(
+                    "ERROR: Incorrect number of arguments. Expected: [-serial] <input filename> <decoded filename>");
             return;
         }
 
-        String inputFilename = args[0];
-        String decodedFilename = args[1];
+        String inputFilename = args[argIndex];
+        String decodedFilename = args[argIndex + 1];
 
         try {
-            if (compareFiles(inputFilename, decodedFilename)) {
+            boolean identical = serial ? compareFiles(inputFilename, decodedFilename)
+                    : compareFilesInBulk(inputFilename, decodedFilename);
+            if (identical) {
                 System.out.println("PASS");
             }
         } catch (IOException e) {
@@ -108,17 +310,16 @@ public class HuffTest {
      * @throws IOException if there's an issue with reading from the files.
      */
     private static boolean compareFiles(String inputFilename, String decodedFilename) throws IOException {
-        try (BufferedReader inputReader = Files.newBufferedReader(Paths.get(inputFilename), StandardCharsets.UTF_8);
-                BufferedReader decodedReader = Files.newBufferedReader(Paths.get(decodedFilename),
-                        StandardCharsets.UTF_8)) {
+        try (MappedInput inputReader = new MappedInput(inputFilename);
+                MappedInput decodedReader = new MappedInput(decodedFilename)) {
 
-            CharReader inputCharReader = new CharReader();
-            CharReader decodedCharReader = new CharReader();
+            CharReader inputCharReader = new CharReader(inputReader);
+            CharReader decodedCharReader = new CharReader(decodedReader);
 
             while (!(inputCharReader.isEOT() && decodedCharReader.isEOT())) {
-                inputCharReader.readNextAllowed(inputReader);
+                inputCharReader.readNextAllowed();
 
-                decodedCharReader.readNextAllowed(decodedReader);
+                decodedCharReader.readNextAllowed();
 
                 if (inputCharReader.potential != decodedCharReader.potential) {
                     System.out.printf("FAIL input %c @ %d output %c @ %d%n", (char) inputCharReader.current,
@@ -131,4 +332,105 @@ public class HuffTest {
             return true;
         }
     }
+
+    /**
+     * Compares the contents of two files after filtering disallowed characters,
+     * a chunk at a time. Files with the same bytes are accepted after a parallel
+     * byte comparison, without decoding. Otherwise the chunks of both files are
+     * decoded and filtered in parallel, and the filtered text is compared a run
+     * at a time with Arrays.mismatch instead of one character at a time. The
+     * first mismatch is reported exactly as compareFiles reports it.
+     *
+     * @param inputFilename   the name of the input file.
+     * @param decodedFilename the name of the decoded file.
+     * @return true if the contents of the files are identical, false otherwise.
+     * @throws IOException if there's an issue with reading from the files.
+     */
+    private static boolean compareFilesInBulk(String inputFilename, String decodedFilename) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool();
+
+        try (MappedInput inputReader = new MappedInput(inputFilename);
+                MappedInput decodedReader = new MappedInput(decodedFilename)) {
+
+            if (sameBytes(inputReader, decodedReader, pool)) {
+                return true;
+            }
+
+            FilteredReader input = new FilteredReader(inputReader, pool);
+            FilteredReader decoded = new FilteredReader(decodedReader, pool);
+            while (true) {
+                int length = Math.min(input.available(), decoded.available());
+                if (length == 0) {
+                    break;
+                }
+                int mismatch = Arrays.mismatch(input.allowed, input.offset, input.offset + length,
+                        decoded.allowed, decoded.offset, decoded.offset + length);
+                if (mismatch >= 0) {
+                    input.offset += mismatch;
+                    decoded.offset += mismatch;
+                    break;
+                }
+                input.offset += length;
+                decoded.offset += length;
+            }
+            if (input.available() == 0 && decoded.available() == 0) {
+                return true;
+            }
+
+            long[] inputCharacter = input.describe();
+            long[] decodedCharacter = decoded.describe();
+            System.out.printf("FAIL input %c @ %d output %c @ %d%n", (char) inputCharacter[0], inputCharacter[1],
+                    (char) decodedCharacter[0], decodedCharacter[1]);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while comparing");
+        } catch (ExecutionException e) {
+            throw PoolTasks.failure(e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks if two files hold exactly the same bytes, comparing chunks in
+     * parallel.
+     *
+     * @param first  the first file.
+     * @param second the second file.
+     * @param pool   the pool that compares the chunks.
+     * @return true if the files are byte for byte identical, false otherwise.
+     * @throws IOException if there's an issue with reading from the files.
+     * @throws ExecutionException if comparing a chunk fails.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private static boolean sameBytes(MappedInput first, MappedInput second, ForkJoinPool pool)
+            throws IOException, ExecutionException, InterruptedException {
+        long size = first.size();
+        if (size != second.size()) {
+            return false;
+        }
+        List<ForkJoinTask<Boolean>> comparisons = new ArrayList<>();
+        for (long start = 0; start < size; start += CHUNK_SIZE) {
+            long end = Math.min(start + CHUNK_SIZE, size);
+            long from = start;
+            comparisons.add(pool.submit(() -> first.slice(from, end).mismatch(second.slice(from, end)) < 0));
+        }
+        for (ForkJoinTask<Boolean> comparison : comparisons) {
+            if (!comparison.get()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a character is in the allowed range.
+     *
+     * @param character the character to check.
+     * @return true if the character is allowed, false otherwise.
+     */
+    private static boolean isAllowed(char character) {
+        return (char) (character - FIRST_ALLOWED) <= LAST_ALLOWED - FIRST_ALLOWED;
+    }
 }
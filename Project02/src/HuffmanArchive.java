@@ -0,0 +1,378 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * HuffmanArchive compresses a directory tree into a single container and
+ * extracts files from it. The codebook is loaded once, written once, and shared
+ * by every file, so a batch of many small files costs one JVM start and one
+ * codebook parse instead of one per file.
+ *
+ * Every file is a run of blocks, in the same format as the binary container,
+ * ended by a block with a character count of zero. Files larger than a block
+ * are split like any input. The blocks of all files are encoded in parallel, a
+ * batch at a time on a ForkJoinPool, and written in order, so memory use is
+ * bounded by the batch and does not depend on the number or size of the files.
+ * A table of contents at the end lists every file with the position of its
+ * first block, so one file can be extracted without reading the others.
+ */
+class HuffmanArchive {
+    private static final int BLOCK_SIZE = BlockCodec.BLOCK_SIZE;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Entry is a class that represents one file in the table of contents.
+     */
+    private static class Entry {
+        private final String path; // relative to the archived directory, with / separators
+        private final long offset; // position of the file's first block
+        private final long decodedSize;
+
+        /**
+         * Constructor for creating a new Entry.
+         *
+         * @param path        the path of the file in the archive
+         * @param offset      the position of the file's first block
+         * @param decodedSize the number of bytes the file decodes to
+         */
+        Entry(String path, long offset, long decodedSize) {
+            this.path = path;
+            this.offset = offset;
+            this.decodedSize = decodedSize;
+        }
+    }
+
+    /**
+     * Compresses every regular file under a directory into an archive.
+     *
+     * @param directoryName   the name of the directory to archive
+     * @param archiveFilename the name of the archive to write
+     * @param codeLengths     the code length of every character, indexed by
+     *                        character
+     * @throws IOException if an I/O error occurs while reading or writing
+     */
+    static void create(String directoryName, String archiveFilename, int[] codeLengths) throws IOException {
+        Path directory = Paths.get(directoryName);
+        if (!Files.isDirectory(directory)) {
+            throw new IOException(directoryName + " is not a directory");
+        }
+        Path archivePath = Paths.get(archiveFilename).toAbsolutePath().normalize();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(file -> !file.toAbsolutePath().normalize().equals(archivePath))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        CodeTable codeTable = new CodeTable(codeLengths);
+        ForkJoinPool pool = new ForkJoinPool();
+
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(archivePath),
+                OUTPUT_BUFFER_SIZE)) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            HuffmanFormat.writeHeader(header, codeLengths, HuffmanFormat.FLAG_ARCHIVE);
+            header.writeTo(output);
+            long position = header.size();
+
+            // one output buffer per batch slot, reused from batch to batch
+            int batchSize = pool.getParallelism() * 2;
+            ByteBuffer[] outputBuffers = new ByteBuffer[batchSize];
+            for (int slot = 0; slot < batchSize; slot++) {
+                outputBuffers[slot] = ByteBuffer.allocate(
+                        BlockCodec.maxEncodedSize(BLOCK_SIZE + 4, codeTable.maxLength()));
+            }
+
+            List<Entry> entries = new ArrayList<>();
+            int nextFile = 0;
+            List<long[]> ranges = new ArrayList<>();
+            int nextRange = 0;
+            long fileOffset = 0;
+            long decodedSize = 0;
+            while (nextFile < files.size() || nextRange < ranges.size()) {
+                // every piece is {file, range start, range end, range number, range count}
+                List<long[]> pieces = new ArrayList<>();
+                List<ForkJoinTask<Integer>> batch = new ArrayList<>();
+                SyncPoints[] syncPoints = new SyncPoints[batchSize];
+                while (batch.size() < batchSize && (nextFile < files.size() || nextRange < ranges.size())) {
+                    if (nextRange == ranges.size()) {
+                        ranges = split(files.get(nextFile++));
+                        nextRange = 0;
+                    }
+                    long[] range = ranges.get(nextRange);
+                    long[] piece = { nextFile - 1, range[0], range[1], nextRange, ranges.size() };
+                    nextRange++;
+                    Path file = files.get((int) piece[0]);
+                    ByteBuffer outputBuffer = outputBuffers[batch.size()].clear();
+                    SyncPoints blockSyncPoints = syncPoints[batch.size()] = new SyncPoints();
+                    pieces.add(piece);
+                    batch.add(pool.submit(() -> BlockCodec.encodeBlock(read(file, piece[1], piece[2]), codeTable,
+                            outputBuffer, 0, blockSyncPoints)));
+                }
+
+                for (int slot = 0; slot < batch.size(); slot++) {
+                    long[] piece = pieces.get(slot);
+                    if (piece[3] == 0) {
+                        fileOffset = position;
+                        decodedSize = 0;
+                    }
+                    if (batch.get(slot).get() > 0) {
+                        output.write(outputBuffers[slot].array(), 0, outputBuffers[slot].position());
+                        position += outputBuffers[slot].position();
+                        decodedSize += syncPoints[slot].getDecodedLength();
+                    }
+                    if (piece[3] == piece[4] - 1) {
+                        output.write(new byte[HuffmanFormat.BLOCK_HEADER_SIZE]); // end of file
+                        position += HuffmanFormat.BLOCK_HEADER_SIZE;
+                        String path = directory.relativize(files.get((int) piece[0])).toString()
+                                .replace(File.separatorChar, '/');
+                        entries.add(new Entry(path, fileOffset, decodedSize));
+                    }
+                }
+            }
+
+            writeTableOfContents(output, entries, position);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while archiving");
+        } catch (ExecutionException e) {
+            throw PoolTasks.failure(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Decodes every file of an archive, in parallel, without writing anything,
+     * so every block is checked against its checksum.
+     *
+     * @param archiveFilename the name of the archive
+     * @throws IOException if an I/O error occurs, the archive is malformed or a
+     *                     checksum does not match
+     */
+    static void verify(String archiveFilename) throws IOException {
+        extract(archiveFilename, null, null);
+    }
+
+    /**
+     * Extracts files from an archive. With an entry name, only that file is
+     * extracted, to the given target file, or to standard output for -. Without
+     * one, every file is extracted under the target directory, in parallel.
+     *
+     * @param archiveFilename the name of the archive
+     * @param target          the directory to extract into, the file to extract
+     *                        a single entry to, or null to only verify
+     * @param entryName       the path of the file to extract, or null for all
+     * @throws IOException if an I/O error occurs or the archive is malformed
+     */
+    static void extract(String archiveFilename, String target, String entryName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(archiveFilename), StandardOpenOption.READ)) {
+            int[] codeLengths = HuffmanFormat.readArchiveHeader(
+                    new BufferedInputStream(Channels.newInputStream(channel)));
+            CodeTable codeTable = new CodeTable(codeLengths);
+            HuffmanTree huffmanTree = new HuffmanTree(codeTable);
+            int maxLength = codeTable.maxLength();
+            List<Entry> entries = readTableOfContents(channel);
+
+            if (entryName != null) {
+                for (Entry entry : entries) {
+                    if (entry.path.equals(entryName)) {
+                        try (OutputStream out = target.equals("-") ? System.out
+                                : Files.newOutputStream(Paths.get(target))) {
+                            extractEntry(channel, entry, huffmanTree, maxLength, out);
+                        }
+                        return;
+                    }
+                }
+                throw new IOException("No file " + entryName + " in the archive");
+            }
+
+            Path directory = target == null ? null : Paths.get(target).toAbsolutePath().normalize();
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+                for (Entry entry : entries) {
+                    if (directory == null) {
+                        tasks.add(pool.submit(() -> {
+                            extractEntry(channel, entry, huffmanTree, maxLength, OutputStream.nullOutputStream());
+                            return null;
+                        }));
+                        continue;
+                    }
+                    Path file = directory.resolve(entry.path).normalize();
+                    if (!file.startsWith(directory) || file.equals(directory)) {
+                        throw new IOException("Invalid path " + entry.path + " in the archive");
+                    }
+                    tasks.add(pool.submit(() -> {
+                        Files.createDirectories(file.getParent());
+                        try (OutputStream out = Files.newOutputStream(file)) {
+                            extractEntry(channel, entry, huffmanTree, maxLength, out);
+                        }
+                        return null;
+                    }));
+                }
+                for (ForkJoinTask<Void> task : tasks) {
+                    task.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while extracting");
+            } catch (ExecutionException e) {
+                throw PoolTasks.failure(e);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Splits a file into ranges of about BLOCK_SIZE bytes. A file that fits in
+     * one block, including an empty one, is a single range and is not mapped.
+     *
+     * @param file the file to split
+     * @return the ranges as {start, end} pairs, in file order
+     * @throws IOException if an I/O error occurs while reading the file
+     */
+    private static List<long[]> split(Path file) throws IOException {
+        long size = Files.size(file);
+        if (size <= BLOCK_SIZE) {
+            List<long[]> ranges = new ArrayList<>();
+            ranges.add(new long[] { 0, size });
+            return ranges;
+        }
+        try (MappedInput input = new MappedInput(file.toString())) {
+            return InputChunks.split(input, BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Reads a byte range of a file.
+     *
+     * @param file  the file to read from
+     * @param start the position of the first byte
+     * @param end   the position after the last byte
+     * @return a buffer holding the bytes, ready to be read
+     * @throws IOException if an I/O error occurs or the file ends early
+     */
+    private static ByteBuffer read(Path file, long start, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return InputChunks.read(channel, start, end);
+        }
+    }
+
+    /**
+     * Decodes one file of the archive. Reads use absolute positions, so several
+     * files can be decoded from the same channel at once.
+     *
+     * @param channel     the archive
+     * @param entry       the file to decode
+     * @param huffmanTree the tree built from the shared codebook
+     * @param maxLength   the longest code length in the codebook
+     * @param out         the stream that receives the decoded text
+     * @throws IOException if an I/O error occurs or the file is malformed
+     */
+    private static void extractEntry(FileChannel channel, Entry entry, HuffmanTree huffmanTree, int maxLength,
+            OutputStream out) throws IOException {
+        InputStream blocks = new InputStream() {
+            private long position = entry.offset;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = channel.read(ByteBuffer.wrap(b, off, len), position);
+                if (count > 0) {
+                    position += count;
+                }
+                return count;
+            }
+        };
+        new HuffmanInputStream(blocks, huffmanTree, maxLength).transferTo(out);
+    }
+
+    /**
+     * Writes the table of contents and the trailer that points to it.
+     *
+     * @param output   the archive
+     * @param entries  the files in the archive
+     * @param position the position of the table of contents
+     * @throws IOException if an I/O error occurs while writing
+     */
+    private static void writeTableOfContents(OutputStream output, List<Entry> entries, long position)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer number = ByteBuffer.allocate(Long.BYTES);
+        bytes.write(number.putInt(0, entries.size()).array(), 0, Integer.BYTES);
+        for (Entry entry : entries) {
+            byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+            bytes.write(number.putInt(0, path.length).array(), 0, Integer.BYTES);
+            bytes.write(path);
+            bytes.write(number.putLong(0, entry.offset).array(), 0, Long.BYTES);
+            bytes.write(number.putLong(0, entry.decodedSize).array(), 0, Long.BYTES);
+        }
+        bytes.write(number.putLong(0, position).array(), 0, Long.BYTES);
+        bytes.writeTo(output);
+    }
+
+    /**
+     * Reads the table of contents of an archive through its trailer.
+     *
+     * @param channel the archive
+     * @return the files in the archive
+     * @throws IOException if an I/O error occurs or the table is malformed
+     */
+    private static List<Entry> readTableOfContents(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < Long.BYTES + Integer.BYTES) {
+            throw new IOException("Archive has no table of contents");
+        }
+        long offset = InputChunks.read(channel, fileSize - Long.BYTES, fileSize).getLong();
+        if (offset < 0 || offset > fileSize - Long.BYTES - Integer.BYTES
+                || fileSize - Long.BYTES - offset > Integer.MAX_VALUE) {
+            throw new IOException("Invalid table of contents in archive");
+        }
+
+        ByteBuffer buffer = InputChunks.read(channel, offset, fileSize - Long.BYTES);
+        List<Entry> entries = new ArrayList<>();
+        try {
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                int pathLength = buffer.getInt();
+                if (pathLength < 0 || pathLength > buffer.remaining()) {
+                    throw new IOException("Invalid table of contents in archive");
+                }
+                byte[] path = new byte[pathLength];
+                buffer.get(path);
+                entries.add(new Entry(new String(path, StandardCharsets.UTF_8), buffer.getLong(),
+                        buffer.getLong()));
+            }
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new EOFException("Unexpected end of table of contents in archive");
+        }
+        return entries;
+    }
+}
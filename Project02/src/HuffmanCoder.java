@@ -0,0 +1,387 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * HuffmanCoder is the EntropyCoder for Huffman codes. It codes with either one
+ * canonical codebook, stored as code lengths, or an order-1 ContextModel, and
+ * leaves the work to BlockCodec: blocks of text, raw bytes in byte mode, or
+ * interleaved streams. Only blocks of one stream coded with a single codebook
+ * have sync points.
+ *
+ * With block codes, every block is coded with the codebook that suits it best:
+ * its own optimal code lengths, built from the block's histogram, or the
+ * file's codebook when the block's own lengths would cost more to store than
+ * they save. The payload starts with a table byte that says which, followed
+ * for a table of its own by the block's code length of every symbol the file's
+ * codebook codes, in BLOCK_LENGTH_BITS each. Falling back on the file's
+ * codebook rather than on an earlier block keeps every block independent.
+ */
+class HuffmanCoder implements EntropyCoder {
+    static final int MAX_BLOCK_CODE_LENGTH = 15;
+    private static final int BLOCK_LENGTH_BITS = 4; // holds every code length up to MAX_BLOCK_CODE_LENGTH
+    private static final int TABLE_FILE = 0; // the block is coded with the file's codebook
+    private static final int TABLE_BLOCK = 1; // the block's own code lengths follow
+
+    private final int[] codeLengths; // null with a context model
+    private final ContextModel model; // null for a single codebook
+    private final CodeTable codeTable; // null with a context model
+    private final HuffmanDecoder decoder; // null when only encoding
+    private final boolean byteMode;
+    private final boolean interleaved;
+    private final int syncInterval;
+    private final int blockCodeLength; // 0 without block codes
+    private final int codedSymbolCount; // the number of symbols the file's codebook codes
+    private final String decoderName; // null when only encoding
+
+    /**
+     * Constructor for creating a HuffmanCoder with a single codebook.
+     *
+     * @param codeLengths     the code length of every symbol, indexed by symbol
+     * @param byteMode        whether every symbol is a raw byte
+     * @param interleaved     whether blocks are split into interleaved streams
+     * @param syncInterval    the distance between sync points in bytes of
+     *                        decoded text, or 0 for none
+     * @param blockCodeLength the longest code of a block's own code lengths,
+     *                        up to MAX_BLOCK_CODE_LENGTH, or 0 to code every
+     *                        block with the file's codebook
+     * @param decoderName     the decoder to decode with: table, tree or flat, or
+     *                        null when only encoding
+     */
+    HuffmanCoder(int[] codeLengths, boolean byteMode, boolean interleaved, int syncInterval, int blockCodeLength,
+            String decoderName) {
+        this.codeLengths = codeLengths;
+        this.model = null;
+        this.codeTable = new CodeTable(codeLengths);
+        this.decoder = decoderName == null ? null : Decode.createDecoder(decoderName, codeLengths);
+        this.byteMode = byteMode;
+        this.interleaved = interleaved;
+        this.syncInterval = syncInterval;
+        this.blockCodeLength = blockCodeLength;
+        int count = 0;
+        for (int length : codeLengths) {
+            count += length == 0 ? 0 : 1;
+        }
+        this.codedSymbolCount = count;
+        this.decoderName = decoderName;
+    }
+
+    /**
+     * Constructor for creating a HuffmanCoder with a context model.
+     *
+     * @param model       the context model
+     * @param decoderName the decoder to use in every context: table, tree or
+     *                    flat, or null when only encoding
+     */
+    HuffmanCoder(ContextModel model, String decoderName) {
+        this.codeLengths = null;
+        this.model = model;
+        this.codeTable = null;
+        this.decoder = decoderName == null ? null : model.createDecoder(decoderName);
+        this.byteMode = false;
+        this.interleaved = false;
+        this.syncInterval = 0;
+        this.blockCodeLength = 0;
+        this.codedSymbolCount = 0;
+        this.decoderName = decoderName;
+    }
+
+    /**
+     * Writes the container header: the code lengths and the mode flags, or the
+     * codebooks of every context.
+     *
+     * @param out the stream to write the header to
+     * @throws IOException if an I/O error occurs while writing
+     */
+    @Override
+    public void writeHeader(OutputStream out) throws IOException {
+        if (model != null) {
+            HuffmanFormat.writeContextHeader(out, model.getCodeLengths());
+        } else {
+            HuffmanFormat.writeHeader(out, codeLengths, (byteMode ? HuffmanFormat.FLAG_BYTES : 0)
+                    | (interleaved ? HuffmanFormat.FLAG_INTERLEAVED : 0)
+                    | (blockCodeLength > 0 ? HuffmanFormat.FLAG_BLOCK_CODES : 0));
+        }
+    }
+
+    /**
+     * Returns how large an output buffer must be to hold an encoded block, from
+     * the longest code, with room for a table of the block's own.
+     *
+     * @param inputBytes the number of input bytes in the block
+     * @return the buffer size in bytes
+     */
+    @Override
+    public int maxEncodedSize(int inputBytes) {
+        if (model != null) {
+            return BlockCodec.maxEncodedSize(inputBytes, model.maxLength());
+        } else if (blockCodeLength > 0) {
+            return blockTableSize(true) + BlockCodec.maxEncodedSize(inputBytes,
+                    Math.max(codeTable.maxLength(), blockCodeLength));
+        }
+        return BlockCodec.maxEncodedSize(inputBytes, codeTable.maxLength());
+    }
+
+    /**
+     * Encodes one block with the context model, with block codes, into
+     * interleaved streams, or as one stream of raw bytes or characters with sync
+     * points.
+     *
+     * @param bytes        the input bytes of the block
+     * @param outputBuffer the buffer that receives the encoded block
+     * @param syncPoints   receives the sync points and the decoded length
+     * @return the number of symbols encoded
+     * @throws IOException if a symbol cannot be encoded
+     */
+    @Override
+    public int encodeBlock(ByteBuffer bytes, ByteBuffer outputBuffer, SyncPoints syncPoints) throws IOException {
+        if (model != null) {
+            return BlockCodec.encodeContextBlock(bytes, model, outputBuffer, syncPoints);
+        } else if (blockCodeLength > 0) {
+            return encodeWithBlockCodes(bytes, outputBuffer, syncPoints);
+        }
+        return encodeBlock(bytes, codeTable, outputBuffer, syncPoints);
+    }
+
+    /**
+     * Encodes one block with the given codes, into interleaved streams or as one
+     * stream of raw bytes or characters with sync points.
+     *
+     * @param bytes        the input bytes of the block
+     * @param table        the codes to encode with
+     * @param outputBuffer the buffer that receives the encoded block
+     * @param syncPoints   receives the sync points and the decoded length
+     * @return the number of symbols encoded
+     * @throws IOException if a symbol cannot be encoded
+     */
+    private int encodeBlock(ByteBuffer bytes, CodeTable table, ByteBuffer outputBuffer, SyncPoints syncPoints)
+            throws IOException {
+        if (interleaved) {
+            return BlockCodec.encodeInterleavedBlock(bytes, table, outputBuffer, byteMode, syncPoints);
+        } else if (byteMode) {
+            return BlockCodec.encodeByteBlock(bytes, table, outputBuffer, syncInterval, syncPoints);
+        }
+        return BlockCodec.encodeBlock(bytes, table, outputBuffer, syncInterval, syncPoints);
+    }
+
+    /**
+     * Encodes one block with block codes. The block's histogram, over the
+     * symbols the file's codebook codes, gives its own optimal code lengths,
+     * which are kept only if the codes they save outweigh the table that stores
+     * them. The codes are written after room for the table, and the block
+     * header that BlockCodec writes in front of them is then moved in front of
+     * the table, so the sync points move by the table's size.
+     *
+     * @param bytes        the input bytes of the block
+     * @param outputBuffer the buffer that receives the encoded block
+     * @param syncPoints   receives the sync points and the decoded length
+     * @return the number of symbols encoded
+     * @throws IOException if a symbol cannot be encoded
+     */
+    private int encodeWithBlockCodes(ByteBuffer bytes, ByteBuffer outputBuffer, SyncPoints syncPoints)
+            throws IOException {
+        long[] frequencies = countSymbols(bytes.duplicate());
+        int[] blockLengths = null;
+        for (long frequency : frequencies) {
+            if (frequency > 0) {
+                blockLengths = CodebookBuilder.limitedCodeLengths(frequencies, blockCodeLength);
+                break;
+            }
+        }
+        if (blockLengths != null && CodebookBuilder.codedBits(frequencies, blockLengths)
+                + 8L * (blockTableSize(true) - blockTableSize(false))
+                >= CodebookBuilder.codedBits(frequencies, codeLengths)) {
+            blockLengths = null;
+        }
+        byte[] table = blockTable(blockLengths);
+
+        int blockStart = outputBuffer.position();
+        int codeStart = blockStart + table.length;
+        SyncPoints codeSyncPoints = new SyncPoints();
+        int symbolCount = encodeBlock(bytes, blockLengths == null ? codeTable : new CodeTable(blockLengths),
+                outputBuffer.position(codeStart), codeSyncPoints);
+        int checksum = outputBuffer.getInt(codeStart + 2 * Integer.BYTES);
+        outputBuffer.put(blockStart + HuffmanFormat.BLOCK_HEADER_SIZE, table);
+        BlockCodec.writeBlockHeader(outputBuffer, blockStart, symbolCount, checksum);
+
+        for (int point = 0; point < codeSyncPoints.size(); point++) {
+            syncPoints.add(codeSyncPoints.getBitOffset(point) + 8L * table.length,
+                    codeSyncPoints.getDecodedOffset(point));
+        }
+        syncPoints.setDecodedLength(codeSyncPoints.getDecodedLength());
+        return symbolCount;
+    }
+
+    /**
+     * Counts the symbols of a block that the file's codebook codes; the others
+     * are skipped by the encoder.
+     *
+     * @param bytes the input bytes of the block
+     * @return the frequency of every symbol, indexed by symbol
+     */
+    private long[] countSymbols(ByteBuffer bytes) {
+        long[] frequencies = new long[codeLengths.length];
+        if (byteMode) {
+            while (bytes.hasRemaining()) {
+                frequencies[bytes.get() & 0xFF]++;
+            }
+        } else {
+            char[] characters = new char[bytes.remaining()];
+            int count = Utf8.decode(bytes, characters);
+            for (int i = 0; i < count; i++) {
+                char character = characters[i];
+                if (character < codeLengths.length && codeLengths[character] != 0) {
+                    frequencies[character]++;
+                }
+            }
+        }
+        return frequencies;
+    }
+
+    /**
+     * Returns the size of the table at the start of a block payload.
+     *
+     * @param ownCodes whether the block has code lengths of its own
+     * @return the size in bytes
+     */
+    private int blockTableSize(boolean ownCodes) {
+        return 1 + (ownCodes ? (codedSymbolCount * BLOCK_LENGTH_BITS + 7) / 8 : 0);
+    }
+
+    /**
+     * Lays out the table at the start of a block payload.
+     *
+     * @param blockLengths the block's own code lengths, or null for the file's
+     *                     codebook
+     * @return the table bytes
+     */
+    private byte[] blockTable(int[] blockLengths) {
+        byte[] table = new byte[blockTableSize(blockLengths != null)];
+        if (blockLengths == null) {
+            table[0] = TABLE_FILE;
+            return table;
+        }
+        table[0] = TABLE_BLOCK;
+        int field = 0;
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            if (codeLengths[symbol] != 0) {
+                // two fields per byte, the first in the high bits
+                table[1 + field / 2] |= (byte) (blockLengths[symbol] << (field % 2 == 0 ? BLOCK_LENGTH_BITS : 0));
+                field++;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Reads the table at the start of a block payload, moving the payload past
+     * it, and returns the decoder the block's codes are decoded with.
+     *
+     * @param payload the payload of the block
+     * @return the decoder of the file's codebook, or a new one for the block's
+     *         own code lengths
+     * @throws IOException if the table is malformed
+     */
+    private HuffmanDecoder readBlockTable(ByteBuffer payload) throws IOException {
+        if (!payload.hasRemaining()) {
+            throw new IOException("Unexpected end of encoded data");
+        }
+        int kind = payload.get();
+        if (kind == TABLE_FILE) {
+            return decoder;
+        } else if (kind != TABLE_BLOCK) {
+            throw new IOException("Invalid block table in encoded data");
+        }
+        int tableBytes = blockTableSize(true) - 1;
+        if (payload.remaining() < tableBytes) {
+            throw new IOException("Unexpected end of encoded data");
+        }
+        int[] blockLengths = new int[codeLengths.length];
+        int field = 0;
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            if (codeLengths[symbol] != 0) {
+                int fields = payload.get(payload.position() + field / 2);
+                blockLengths[symbol] = (fields >>> (field % 2 == 0 ? BLOCK_LENGTH_BITS : 0))
+                        & ((1 << BLOCK_LENGTH_BITS) - 1);
+                field++;
+            }
+        }
+        payload.position(payload.position() + tableBytes);
+        HuffmanFormat.checkCodeLengths(blockLengths);
+        return Decode.createDecoder(decoderName, blockLengths);
+    }
+
+    /**
+     * Decodes the payload of one block.
+     *
+     * @param payload      the payload of the block
+     * @param symbolCount  the number of symbols in the block
+     * @param outputBuffer the buffer that receives the decoded bytes
+     * @throws IOException if the payload is malformed
+     */
+    @Override
+    public void decodeBlock(ByteBuffer payload, int symbolCount, ByteBuffer outputBuffer) throws IOException {
+        HuffmanDecoder blockDecoder = decoder;
+        if (blockCodeLength > 0) {
+            blockDecoder = readBlockTable(payload);
+            payload = payload.slice();
+        }
+        if (interleaved) {
+            BlockCodec.decodeInterleavedBlock(payload, symbolCount, blockDecoder, byteMode, outputBuffer);
+        } else if (byteMode) {
+            BlockCodec.decodeByteBlock(payload, symbolCount, blockDecoder, outputBuffer);
+        } else {
+            BlockCodec.decodeBlock(payload, symbolCount, blockDecoder, outputBuffer);
+        }
+    }
+
+    /**
+     * Decodes the start of a block from any code boundary. Interleaved blocks
+     * have no sync points and are decoded whole. With block codes, the block's
+     * table is read first, and the codes start after it.
+     *
+     * @param payload      the payload of the block
+     * @param bitOffset    the position of the first code to decode, in bits from
+     *                     the start of the payload
+     * @param length       the number of bytes wanted
+     * @param symbolCount  the number of symbols in the block
+     * @param outputBuffer the buffer that receives the decoded bytes
+     * @throws IOException if the payload or the offset is malformed
+     */
+    @Override
+    public void decodeBytes(ByteBuffer payload, long bitOffset, long length, int symbolCount,
+            ByteBuffer outputBuffer) throws IOException {
+        if (interleaved) {
+            EntropyCoder.super.decodeBytes(payload, bitOffset, length, symbolCount, outputBuffer);
+        } else if (blockCodeLength > 0) {
+            int start = payload.position();
+            HuffmanDecoder blockDecoder = readBlockTable(payload);
+            long codeOffset = bitOffset == 0 ? 0 : bitOffset - 8L * (payload.position() - start);
+            BlockCodec.decodeBytes(payload.slice(), codeOffset, length, symbolCount, blockDecoder, byteMode,
+                    outputBuffer);
+        } else {
+            BlockCodec.decodeBytes(payload, bitOffset, length, symbolCount, decoder, byteMode, outputBuffer);
+        }
+    }
+
+    /**
+     * Returns whether every symbol is a raw byte.
+     *
+     * @return true in byte mode
+     */
+    @Override
+    public boolean byteMode() {
+        return byteMode;
+    }
+
+    /**
+     * Returns the code length of every symbol, or with a context model a mark
+     * for every character that has a code in any context.
+     *
+     * @return a non-zero value for every symbol that has a code
+     */
+    @Override
+    public byte[] codedSymbols() {
+        return model != null ? model.codedCharacters() : codeTable.lengths;
+    }
+}
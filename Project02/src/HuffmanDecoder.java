@@ -0,0 +1,29 @@
+import java.io.IOException;
+
+/**
+ * HuffmanDecoder is the interface shared by the different ways of turning
+ * bit-packed Huffman codes back into characters.
+ */
+interface HuffmanDecoder {
+
+    /**
+     * Decodes the next character in a bit-packed input stream.
+     *
+     * @param reader the BitReader used to read the packed bits
+     * @return the decoded character
+     * @throws IOException if an I/O error occurs or the bits are not a valid code
+     */
+    char decodeNextCharacter(BitReader reader) throws IOException;
+
+    /**
+     * Returns a decoder for one block. Blocks are decoded independently and often
+     * at the same time, so a decoder that keeps state from one character to the
+     * next, like the context model's, returns a fresh copy in its starting state.
+     * Decoders without state return themselves.
+     *
+     * @return the decoder to use for one block
+     */
+    default HuffmanDecoder forBlock() {
+        return this;
+    }
+}
@@ -0,0 +1,446 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * HuffmanFormat describes the binary container written by Encode and read by
+ * Decode. A binary file starts with a four byte magic number, a version byte
+ * and a flags byte. The codebook follows as a two byte character count and one
+ * code length byte per character; the codes themselves are canonical, so
+ * Decode rebuilds them from the lengths.
+ *
+ * The bit-packed Huffman codes come next, split into independent blocks. Each
+ * block starts with a four byte character count, a four byte payload length
+ * and the four byte CRC32C of the bytes the block decodes to, followed by the
+ * payload, whose last byte is padded with zero bits. A block with a character
+ * count of zero ends the data. The BlockIndex comes last.
+ *
+ * A file written in adaptive mode sets FLAG_ADAPTIVE and has neither a
+ * codebook nor blocks: the header is followed by a single stream of codes from
+ * an AdaptiveHuffmanTree, ending with the code of EOT and padded with zero bits.
+ *
+ * An archive, written by HuffmanArchive, sets FLAG_ARCHIVE. Its one codebook
+ * is shared by all files, each of which is a run of blocks ended by a block
+ * with a character count of zero. The table of contents comes last.
+ *
+ * A file written in byte mode sets FLAG_BYTES. Its layout is the same, but the
+ * codebook has one code length per byte value, and every symbol in the blocks
+ * is a raw byte instead of a character.
+ *
+ * A file written with the order-1 context model sets FLAG_CONTEXT. Instead of
+ * one codebook it has one per context, the character before: a two byte
+ * context count, then for each context its number, a two byte count of coded
+ * characters and, for each of them, the character and its code length. Blocks
+ * follow as usual; each block starts in START_CONTEXT.
+ *
+ * A file written with interleaved blocks sets FLAG_INTERLEAVED, alone or with
+ * FLAG_BYTES. Every block payload holds BlockCodec.STREAM_COUNT streams, see
+ * BlockCodec; the block headers, the end-of-data block and the index are
+ * unchanged.
+ *
+ * A file coded with tANS instead of Huffman codes sets FLAG_TANS, alone or
+ * with FLAG_BYTES. Its codebook is a table of normalized counts: a table log
+ * byte, a two byte count of coded symbols and, for each of them, the symbol
+ * and its two byte count. The counts add up to 2^tableLog. Block headers, the
+ * end-of-data block and the index are as usual; the payloads are laid out as
+ * described in TansCoder.
+ *
+ * A file written in LZ77 mode sets FLAG_LZ together with FLAG_BYTES. Its
+ * header ends with the flags: every block carries its own codebooks at the
+ * start of its payload, see Lz77Coder, and its symbol count is the number of
+ * bytes it decodes to.
+ *
+ * A file written with block codes sets FLAG_BLOCK_CODES, alone or with
+ * FLAG_BYTES or FLAG_INTERLEAVED. Its header is unchanged, but every block
+ * payload starts with a table that says whether the block is coded with the
+ * header's codebook or with code lengths of its own, which the table then
+ * holds; see HuffmanCoder.
+ */
+class HuffmanFormat {
+    static final byte[] MAGIC = { 'H', 'U', 'F', 'F' };
+    static final int VERSION = 10;
+    static final int BLOCK_HEADER_SIZE = 3 * Integer.BYTES; // symbol count, payload length, CRC32C
+    static final int FLAG_ADAPTIVE = 1;
+    static final int FLAG_ARCHIVE = 2;
+    static final int FLAG_BYTES = 4;
+    static final int FLAG_CONTEXT = 8;
+    static final int FLAG_INTERLEAVED = 16;
+    static final int FLAG_TANS = 32;
+    static final int FLAG_LZ = 64;
+    static final int FLAG_BLOCK_CODES = 128;
+
+    /**
+     * Writes the container header.
+     *
+     * @param out         the stream to write the header to
+     * @param codeLengths the code length of every character, indexed by
+     *                    character
+     * @throws IOException if an I/O error occurs while writing
+     */
+    static void writeHeader(OutputStream out, int[] codeLengths) throws IOException {
+        writeHeader(out, codeLengths, 0);
+    }
+
+    /**
+     * Writes the container header with the given flags.
+     *
+     * @param out         the stream to write the header to
+     * @param codeLengths the code length of every character, indexed by
+     *                    character
+     * @param flags       the flags byte
+     * @throws IOException if an I/O error occurs while writing
+     */
+    static void writeHeader(OutputStream out, int[] codeLengths, int flags) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(flags);
+        out.write(codeLengths.length >>> 8);
+        out.write(codeLengths.length);
+        for (int length : codeLengths) {
+            out.write(length);
+        }
+    }
+
+    /**
+     * Reads and checks the container header of a file with a single Huffman
+     * codebook, as written by HuffmanOutputStream. The streams decode text
+     * blocks of one stream only, so files in any other mode are left to
+     * Decode, which maps the whole file.
+     *
+     * @param in the stream to read the header from
+     * @return the code length of every character, indexed by character
+     * @throws IOException if the stream does not start with a supported header
+     */
+    static int[] readHeader(InputStream in) throws IOException {
+        int flags = readBinaryFlags(in);
+        String mode = (flags & FLAG_LZ) != 0 ? "LZ77 file"
+                : (flags & FLAG_TANS) != 0 ? "tANS-coded file"
+                        : (flags & FLAG_CONTEXT) != 0 ? "Context-modeled Huffman file"
+                                : (flags & FLAG_BYTES) != 0 ? "Byte-mode Huffman file"
+                                        : (flags & FLAG_INTERLEAVED) != 0 ? "Interleaved Huffman file"
+                                                : (flags & FLAG_BLOCK_CODES) != 0 ? "File with block codes" : null;
+        if (mode != null) {
+            throw new IOException(mode + " (decode it with Decode, from a file)");
+        }
+        return readCodeLengths(in, false);
+    }
+
+    /**
+     * Reads the flags of a binary container and checks that they describe a
+     * mode Encode writes: a single Huffman codebook, alone or with FLAG_BYTES,
+     * FLAG_INTERLEAVED and FLAG_BLOCK_CODES; FLAG_CONTEXT alone; FLAG_TANS,
+     * alone or with FLAG_BYTES; or FLAG_LZ with FLAG_BYTES. The codebook
+     * follows; see readCodeLengths, readContextCodebooks and readTansCoder.
+     *
+     * @param in the stream to read the header from
+     * @return the flags byte
+     * @throws IOException if the stream does not start with a supported header
+     */
+    static int readBinaryFlags(InputStream in) throws IOException {
+        int flags = readFlags(in);
+        if ((flags & FLAG_ADAPTIVE) != 0) {
+            throw new IOException("Adaptive Huffman file (use -adaptive to decode it)");
+        }
+        if ((flags & FLAG_ARCHIVE) != 0) {
+            throw new IOException("Huffman archive (use -archive to extract it)");
+        }
+        boolean valid;
+        if ((flags & FLAG_CONTEXT) != 0) {
+            valid = flags == FLAG_CONTEXT;
+        } else if ((flags & FLAG_TANS) != 0) {
+            valid = (flags & ~FLAG_BYTES) == FLAG_TANS;
+        } else if ((flags & FLAG_LZ) != 0) {
+            valid = flags == (FLAG_LZ | FLAG_BYTES);
+        } else {
+            valid = (flags & ~(FLAG_BYTES | FLAG_INTERLEAVED | FLAG_BLOCK_CODES)) == 0;
+        }
+        if (!valid) {
+            throw new IOException("Invalid flags in encoded file");
+        }
+        return flags;
+    }
+
+    /**
+     * Reads and checks the header of an archive.
+     *
+     * @param in the stream to read the header from
+     * @return the code length of every character, indexed by character
+     * @throws IOException if the stream does not start with an archive header
+     */
+    static int[] readArchiveHeader(InputStream in) throws IOException {
+        if ((readFlags(in) & FLAG_ARCHIVE) == 0) {
+            throw new IOException("Not a Huffman archive (decode it without -archive)");
+        }
+        return readCodeLengths(in, false);
+    }
+
+    /**
+     * Writes the header of a file written with the context model.
+     *
+     * @param out         the stream to write the header to
+     * @param codeLengths the code lengths of every context, indexed by context
+     *                    and then by character, with null for contexts that
+     *                    never occur
+     * @throws IOException if an I/O error occurs while writing
+     */
+    static void writeContextHeader(OutputStream out, int[][] codeLengths) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(FLAG_CONTEXT);
+        int contextCount = 0;
+        for (int[] lengths : codeLengths) {
+            contextCount += lengths == null ? 0 : 1;
+        }
+        out.write(contextCount >>> 8);
+        out.write(contextCount);
+        for (int context = 0; context < codeLengths.length; context++) {
+            int[] lengths = codeLengths[context];
+            if (lengths == null) {
+                continue;
+            }
+            int characterCount = 0;
+            for (int length : lengths) {
+                characterCount += length == 0 ? 0 : 1;
+            }
+            out.write(context);
+            out.write(characterCount >>> 8);
+            out.write(characterCount);
+            for (int character = 0; character < lengths.length; character++) {
+                if (lengths[character] != 0) {
+                    out.write(character);
+                    out.write(lengths[character]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads and checks the codebooks of a file written with the context model,
+     * which follow its flags.
+     *
+     * @param in the stream to read the codebooks from
+     * @return the code lengths of every context, indexed by context and then by
+     *         character, with null for contexts that do not occur
+     * @throws IOException if the codebooks are missing or invalid
+     */
+    static int[][] readContextCodebooks(InputStream in) throws IOException {
+        int[][] codeLengths = new int[ContextModel.CONTEXT_COUNT][];
+        int contextCount = readUnsignedShort(in);
+        for (int i = 0; i < contextCount; i++) {
+            int context = readUnsignedByte(in);
+            if (codeLengths[context] != null) {
+                throw new IOException("Invalid context codebook in encoded file");
+            }
+            int[] lengths = new int[ContextModel.CONTEXT_COUNT];
+            int characterCount = readUnsignedShort(in);
+            for (int j = 0; j < characterCount; j++) {
+                int character = readUnsignedByte(in);
+                lengths[character] = readUnsignedByte(in);
+            }
+            checkCodeLengths(lengths);
+            codeLengths[context] = lengths;
+        }
+        return codeLengths;
+    }
+
+    /**
+     * Reads one byte of a header.
+     *
+     * @param in the stream to read from
+     * @return the byte, from 0 to 255
+     * @throws IOException if the stream ends
+     */
+    private static int readUnsignedByte(InputStream in) throws IOException {
+        int value = in.read();
+        if (value < 0) {
+            throw new IOException("Unexpected end of encoded file");
+        }
+        return value;
+    }
+
+    /**
+     * Reads a two byte count of a header.
+     *
+     * @param in the stream to read from
+     * @return the count, from 0 to 65535
+     * @throws IOException if the stream ends
+     */
+    private static int readUnsignedShort(InputStream in) throws IOException {
+        return (readUnsignedByte(in) << 8) | readUnsignedByte(in);
+    }
+
+    /**
+     * Reads and checks the codebook part of a header, which follows the flags.
+     * A text codebook has no code for a character above LAST_CHARACTER, which
+     * the decoder could not write as UTF-8 in one or two bytes.
+     *
+     * @param in       the stream to read the codebook from
+     * @param byteMode whether the codebook has one code length per byte value
+     * @return the code length of every symbol, indexed by symbol
+     * @throws IOException if the codebook is missing or invalid
+     */
+    static int[] readCodeLengths(InputStream in, boolean byteMode) throws IOException {
+        byte[] size = in.readNBytes(2);
+        if (size.length != 2) {
+            throw new IOException("Unexpected end of encoded file");
+        }
+        int characterCount = ((size[0] & 0xFF) << 8) | (size[1] & 0xFF);
+        if (characterCount > (byteMode ? CodebookBuilder.BYTE_ALPHABET_SIZE : CodebookBuilder.LAST_CHARACTER + 1)) {
+            throw new IOException("Invalid codebook in encoded file");
+        }
+        byte[] lengthBytes = in.readNBytes(characterCount);
+        if (lengthBytes.length != characterCount) {
+            throw new IOException("Unexpected end of encoded file");
+        }
+        int[] codeLengths = new int[lengthBytes.length];
+        for (int i = 0; i < lengthBytes.length; i++) {
+            codeLengths[i] = lengthBytes[i] & 0xFF;
+        }
+        checkCodeLengths(codeLengths);
+        return codeLengths;
+    }
+
+    /**
+     * Writes the header of an adaptive-mode file.
+     *
+     * @param out the stream to write the header to
+     * @throws IOException if an I/O error occurs while writing
+     */
+    static void writeAdaptiveHeader(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(FLAG_ADAPTIVE);
+    }
+
+    /**
+     * Reads and checks the header of an adaptive-mode file.
+     *
+     * @param in the stream to read the header from
+     * @throws IOException if the stream does not start with an adaptive header
+     */
+    static void readAdaptiveHeader(InputStream in) throws IOException {
+        if ((readFlags(in) & FLAG_ADAPTIVE) == 0) {
+            throw new IOException("Not an adaptive Huffman file (decode it without -adaptive)");
+        }
+    }
+
+    /**
+     * Writes the header of an LZ77-mode file.
+     *
+     * @param out the stream to write the header to
+     * @throws IOException if an I/O error occurs while writing
+     */
+    static void writeLzHeader(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(FLAG_LZ | FLAG_BYTES);
+    }
+
+    /**
+     * Writes the header of a tANS-coded file.
+     *
+     * @param out      the stream to write the header to
+     * @param tableLog the log2 of the number of states
+     * @param counts   the normalized count of every symbol, indexed by symbol
+     * @param flags    the mode flags, to which FLAG_TANS is added
+     * @throws IOException if an I/O error occurs while writing
+     */
+    static void writeTansHeader(OutputStream out, int tableLog, int[] counts, int flags) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(flags | FLAG_TANS);
+        out.write(tableLog);
+        int symbolCount = 0;
+        for (int count : counts) {
+            symbolCount += count == 0 ? 0 : 1;
+        }
+        out.write(symbolCount >>> 8);
+        out.write(symbolCount);
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            if (counts[symbol] != 0) {
+                out.write(symbol);
+                out.write(counts[symbol] >>> 8);
+                out.write(counts[symbol]);
+            }
+        }
+    }
+
+    /**
+     * Reads and checks the table of a tANS-coded file, which follows its flags,
+     * and builds the coder from it. The normalized counts must add up to the
+     * number of states, unless there are none.
+     *
+     * @param in       the stream to read the table from
+     * @param byteMode whether the symbols are raw bytes
+     * @return the coder
+     * @throws IOException if the table is missing or invalid
+     */
+    static TansCoder readTansCoder(InputStream in, boolean byteMode) throws IOException {
+        int tableLog = readUnsignedByte(in);
+        if (tableLog < TansCoder.MIN_TABLE_LOG || tableLog > TansCoder.MAX_TABLE_LOG) {
+            throw new IOException("Invalid tANS table in encoded file");
+        }
+        int[] counts = new int[byteMode ? CodebookBuilder.BYTE_ALPHABET_SIZE : CodebookBuilder.LAST_CHARACTER + 1];
+        int symbolCount = readUnsignedShort(in);
+        long sum = 0;
+        for (int i = 0; i < symbolCount; i++) {
+            int symbol = readUnsignedByte(in);
+            int count = readUnsignedShort(in);
+            if (symbol >= counts.length || counts[symbol] != 0 || count == 0) {
+                throw new IOException("Invalid tANS table in encoded file");
+            }
+            counts[symbol] = count;
+            sum += count;
+        }
+        if (symbolCount > 0 && sum != 1 << tableLog) {
+            throw new IOException("Invalid tANS table in encoded file");
+        }
+        return new TansCoder(tableLog, counts, byteMode);
+    }
+
+    /**
+     * Reads and checks the magic number and version, and returns the flags.
+     *
+     * @param in the stream to read from
+     * @return the flags byte
+     * @throws IOException if the stream does not start with a supported header
+     */
+    private static int readFlags(InputStream in) throws IOException {
+        byte[] magic = in.readNBytes(MAGIC.length);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a binary Huffman file (use -text for text-mode files)");
+        }
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported Huffman file version " + version);
+        }
+        int flags = in.read();
+        if (flags < 0) {
+            throw new IOException("Unexpected end of encoded file");
+        }
+        return flags;
+    }
+
+    /**
+     * Checks that the code lengths describe a valid prefix code, i.e. that the
+     * Kraft sum of 2^-length over all codes is at most one.
+     *
+     * @param codeLengths the code lengths to check
+     * @throws IOException if the code lengths are invalid
+     */
+    static void checkCodeLengths(int[] codeLengths) throws IOException {
+        long kraftSum = 0;
+        for (int length : codeLengths) {
+            if (length > CodebookBuilder.MAX_CODE_LENGTH) {
+                throw new IOException("Invalid code length " + length + " in encoded file");
+            }
+            if (length > 0) {
+                kraftSum += 1L << (CodebookBuilder.MAX_CODE_LENGTH - length);
+            }
+        }
+        if (kraftSum > 1L << CodebookBuilder.MAX_CODE_LENGTH) {
+            throw new IOException("Invalid codebook in encoded file");
+        }
+    }
+}
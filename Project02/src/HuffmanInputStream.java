@@ -0,0 +1,195 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * HuffmanInputStream reads a binary container, as written by Encode or
+ * HuffmanOutputStream, from the underlying stream and returns the decoded UTF-8
+ * text. Blocks are read and decoded one at a time, in order, so the stream does
+ * not need to be seekable and memory use is bounded by the block size. The
+ * block index at the end is not needed and is never read.
+ */
+class HuffmanInputStream extends InputStream {
+    static final int MAX_SYMBOL_COUNT = 4 * BlockCodec.BLOCK_SIZE; // more than any block of a valid stream
+
+    private final InputStream in;
+    private final HuffmanTree huffmanTree;
+    private final int maxLength;
+    private ByteBuffer payload;
+    private ByteBuffer decoded;
+    private boolean endOfData;
+
+    /**
+     * Constructor for creating a new HuffmanInputStream. The container header is
+     * read right away.
+     *
+     * @param in the stream that holds the encoded data
+     * @throws IOException if an I/O error occurs or the header is invalid
+     */
+    HuffmanInputStream(InputStream in) throws IOException {
+        this.in = in;
+        int[] codeLengths = HuffmanFormat.readHeader(in);
+        CodeTable codeTable = new CodeTable(codeLengths);
+        this.huffmanTree = new HuffmanTree(codeTable);
+        this.maxLength = codeTable.maxLength();
+        this.payload = ByteBuffer.allocate(0);
+        this.decoded = ByteBuffer.allocate(0);
+        this.endOfData = false;
+    }
+
+    /**
+     * Constructor for creating a new HuffmanInputStream that reads blocks right
+     * away, with no container header, and decodes them with a tree that may be
+     * shared with other streams. The tree is only read while decoding, so
+     * sharing it is safe. This reads one file of an archive.
+     *
+     * @param in          the stream positioned at the first block
+     * @param huffmanTree the tree built from the shared codebook
+     * @param maxLength   the longest code length in the codebook
+     */
+    HuffmanInputStream(InputStream in, HuffmanTree huffmanTree, int maxLength) {
+        this.in = in;
+        this.huffmanTree = huffmanTree;
+        this.maxLength = maxLength;
+        this.payload = ByteBuffer.allocate(0);
+        this.decoded = ByteBuffer.allocate(0);
+        this.endOfData = false;
+    }
+
+    /**
+     * Returns a channel that decodes the binary container read from the given
+     * channel.
+     *
+     * @param channel the channel that holds the encoded data
+     * @return the decoding channel
+     * @throws IOException if an I/O error occurs or the header is invalid
+     */
+    static ReadableByteChannel newChannel(ReadableByteChannel channel) throws IOException {
+        return Channels.newChannel(new HuffmanInputStream(Channels.newInputStream(channel)));
+    }
+
+    /**
+     * Reads one byte of decoded text.
+     *
+     * @return the byte, or -1 at the end of the data
+     * @throws IOException if an I/O error occurs or the data is malformed
+     */
+    @Override
+    public int read() throws IOException {
+        if (!decoded.hasRemaining() && !nextBlock()) {
+            return -1;
+        }
+        return decoded.get() & 0xFF;
+    }
+
+    /**
+     * Reads decoded text into a range of an array.
+     *
+     * @param b   the array that receives the bytes
+     * @param off the index of the first byte to fill
+     * @param len the largest number of bytes to read
+     * @return the number of bytes read, or -1 at the end of the data
+     * @throws IOException if an I/O error occurs or the data is malformed
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!decoded.hasRemaining() && !nextBlock()) {
+            return -1;
+        }
+        int count = Math.min(len, decoded.remaining());
+        decoded.get(b, off, count);
+        return count;
+    }
+
+    /**
+     * Returns the number of decoded bytes that can be read without decoding
+     * another block.
+     *
+     * @return the number of bytes available
+     */
+    @Override
+    public int available() {
+        return decoded.remaining();
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException if an I/O error occurs while closing
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Reads and decodes the next non-empty block.
+     *
+     * @return false if the end-of-data marker was reached
+     * @throws IOException if an I/O error occurs or the data is malformed
+     */
+    private boolean nextBlock() throws IOException {
+        while (!endOfData) {
+            ByteBuffer blockHeader = ByteBuffer.wrap(readFully(HuffmanFormat.BLOCK_HEADER_SIZE));
+            int symbolCount = blockHeader.getInt();
+            int payloadLength = blockHeader.getInt();
+            int checksum = blockHeader.getInt();
+            if (symbolCount == 0) {
+                endOfData = true;
+                break;
+            }
+            if (symbolCount < 0 || symbolCount > MAX_SYMBOL_COUNT || payloadLength < 0
+                    || payloadLength > BlockCodec.maxEncodedSize(symbolCount, maxLength)) {
+                throw new IOException("Invalid block header in encoded data");
+            }
+
+            if (payload.capacity() < payloadLength) {
+                payload = ByteBuffer.allocate(payloadLength);
+            }
+            payload.clear().limit(payloadLength);
+            readFully(payload.array(), payloadLength);
+            if (decoded.capacity() < 2 * symbolCount) {
+                decoded = ByteBuffer.allocate(2 * symbolCount);
+            }
+            decoded.clear();
+            BlockCodec.decodeBlock(payload, symbolCount, huffmanTree, decoded);
+            BlockCodec.verifyChecksum(decoded, 0, checksum);
+            decoded.flip();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads exactly n bytes from the underlying stream into a new array.
+     *
+     * @param n the number of bytes to read
+     * @return the bytes
+     * @throws IOException if an I/O error occurs or the stream ends early
+     */
+    private byte[] readFully(int n) throws IOException {
+        byte[] bytes = new byte[n];
+        readFully(bytes, n);
+        return bytes;
+    }
+
+    /**
+     * Reads exactly n bytes from the underlying stream into the start of an
+     * array.
+     *
+     * @param bytes the array that receives the bytes
+     * @param n     the number of bytes to read
+     * @throws IOException if an I/O error occurs or the stream ends early
+     */
+    private void readFully(byte[] bytes, int n) throws IOException {
+        if (in.readNBytes(bytes, 0, n) != n) {
+            throw new EOFException("Unexpected end of encoded data");
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * HuffmanOutputStream compresses the UTF-8 text written to it and writes the
+ * binary container, in the same format as Encode, to the underlying stream.
+ * Input is collected into blocks of at most BlockCodec.BLOCK_SIZE bytes, so
+ * memory use does not depend on the length of the stream; only the block index
+ * grows, by twenty bytes per block plus sixteen per sync point. The index and
+ * trailer are written when the stream is closed.
+ */
+class HuffmanOutputStream extends FilterOutputStream {
+    private final CodeTable codeTable;
+    private final ByteBuffer inputBuffer;
+    private final ByteBuffer outputBuffer;
+    private final BlockIndex index;
+    private final int syncInterval;
+    private long bytesWritten;
+    private boolean closed;
+
+    /**
+     * Constructor for creating a new HuffmanOutputStream. The container header is
+     * written right away.
+     *
+     * @param out         the stream that receives the encoded data
+     * @param codeLengths the code length of every character, indexed by
+     *                    character
+     * @throws IOException if an I/O error occurs while writing the header
+     */
+    HuffmanOutputStream(OutputStream out, int[] codeLengths) throws IOException {
+        this(out, codeLengths, 0);
+    }
+
+    /**
+     * Constructor for creating a new HuffmanOutputStream that also records a
+     * sync point in the block index every syncInterval bytes of decoded text.
+     * The container header is written right away.
+     *
+     * @param out          the stream that receives the encoded data
+     * @param codeLengths  the code length of every character, indexed by
+     *                     character
+     * @param syncInterval the distance between sync points in bytes of decoded
+     *                     text, or 0 for none
+     * @throws IOException if an I/O error occurs while writing the header
+     */
+    HuffmanOutputStream(OutputStream out, int[] codeLengths, int syncInterval) throws IOException {
+        super(out);
+        this.codeTable = new CodeTable(codeLengths);
+        this.inputBuffer = ByteBuffer.allocate(BlockCodec.BLOCK_SIZE);
+        this.outputBuffer = ByteBuffer.allocate(
+                BlockCodec.maxEncodedSize(BlockCodec.BLOCK_SIZE, codeTable.maxLength()));
+        this.index = new BlockIndex();
+        this.syncInterval = syncInterval;
+        this.closed = false;
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        HuffmanFormat.writeHeader(header, codeLengths);
+        out.write(header.toByteArray());
+        this.bytesWritten = header.size();
+    }
+
+    /**
+     * Returns a channel that compresses everything written to it into the given
+     * channel.
+     *
+     * @param channel     the channel that receives the encoded data
+     * @param codeLengths the code length of every character, indexed by
+     *                    character
+     * @return the compressing channel
+     * @throws IOException if an I/O error occurs while writing the header
+     */
+    static WritableByteChannel newChannel(WritableByteChannel channel, int[] codeLengths) throws IOException {
+        return Channels.newChannel(new HuffmanOutputStream(Channels.newOutputStream(channel), codeLengths));
+    }
+
+    /**
+     * Writes one byte of UTF-8 text.
+     *
+     * @param b the byte to write
+     * @throws IOException if an I/O error occurs while writing
+     */
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!inputBuffer.hasRemaining()) {
+            encodeBuffered(false);
+        }
+        inputBuffer.put((byte) b);
+    }
+
+    /**
+     * Writes a range of UTF-8 text bytes.
+     *
+     * @param b   the bytes to write
+     * @param off the index of the first byte to write
+     * @param len the number of bytes to write
+     * @throws IOException if an I/O error occurs while writing
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (!inputBuffer.hasRemaining()) {
+                encodeBuffered(false);
+            }
+            int count = Math.min(len, inputBuffer.remaining());
+            inputBuffer.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Encodes all complete characters written so far as a block and flushes the
+     * underlying stream, so a reader can decode them without waiting for more
+     * input.
+     *
+     * @throws IOException if an I/O error occurs while writing
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        encodeBuffered(false);
+        out.flush();
+    }
+
+    /**
+     * Encodes the remaining input, writes the end-of-data marker, the block index
+     * and the trailer, and closes the underlying stream.
+     *
+     * @throws IOException if an I/O error occurs while writing
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            encodeBuffered(true);
+            out.write(new byte[HuffmanFormat.BLOCK_HEADER_SIZE]); // end of data
+            bytesWritten += HuffmanFormat.BLOCK_HEADER_SIZE;
+            ByteBuffer indexBytes = index.toByteBuffer(bytesWritten);
+            out.write(indexBytes.array(), 0, indexBytes.limit());
+            out.flush();
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * Encodes the buffered input as one block. Unless all is true, an incomplete
+     * character at the end of the buffer is kept for the next block.
+     *
+     * @param all whether to encode everything, including an incomplete character
+     * @throws IOException if an I/O error occurs while writing
+     */
+    private void encodeBuffered(boolean all) throws IOException {
+        inputBuffer.flip();
+        int end = all ? inputBuffer.limit() : Utf8.lastCharacterStart(inputBuffer);
+        if (end == 0) {
+            inputBuffer.compact();
+            return;
+        }
+
+        outputBuffer.clear();
+        SyncPoints syncPoints = new SyncPoints();
+        int symbolCount = BlockCodec.encodeBlock(inputBuffer.slice(0, end), codeTable, outputBuffer, syncInterval,
+                syncPoints);
+        if (symbolCount > 0) {
+            index.add((bytesWritten + HuffmanFormat.BLOCK_HEADER_SIZE) * 8, symbolCount, syncPoints);
+            out.write(outputBuffer.array(), 0, outputBuffer.position());
+            bytesWritten += outputBuffer.position();
+        }
+        inputBuffer.position(end);
+        inputBuffer.compact();
+    }
+
+    /**
+     * Checks that the stream has not been closed.
+     *
+     * @throws IOException if the stream has been closed
+     */
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * HuffmanTree is a class that represents a Huffman tree and provides
+ * functionality to build the tree and decode characters using the tree.
+ * Bit-packed input is decoded through lookup tables instead of the tree: the
+ * next PRIMARY_BITS bits index a primary table that gives the character and
+ * its code length at once, and codes longer than that continue in a small
+ * secondary table.
+ */
+class HuffmanTree implements HuffmanDecoder {
+    static final int PRIMARY_BITS = 11;
+    private static final int LINK_FLAG = 0x80000000; // entry points to a secondary table
+    static final int LENGTH_MASK = 0xFF;
+
+    /**
+     * Node is a class that represents a node in the Huffman tree.
+     */
+    class Node {
+        private static final char DEFAULT = (char) 0; // default character
+        private char character;
+        private Node left;
+        private Node right;
+
+        /**
+         * Constructor for creating a new Node with default values.
+         */
+        Node() {
+            this.character = DEFAULT;
+            this.left = null;
+            this.right = null;
+        }
+
+        /**
+         * Constructor for creating a new Node with the given character.
+         *
+         * @param character the character to be stored in the node
+         */
+        Node(char character) {
+            this.character = character;
+            this.left = null;
+            this.right = null;
+        }
+    }
+
+    Node root;
+    private int[] primaryTable; // (character << 8) | length, or a link to a secondary table
+    private int[] secondaryTable; // (character << 8) | remaining length
+
+    /**
+     * Constructor for creating a new HuffmanTree with default values.
+     */
+    HuffmanTree(HashMap<Character, String> codebook) {
+        root = new Node();
+        buildTree(codebook);
+    }
+
+    /**
+     * Constructor for creating a HuffmanTree straight from canonical codes,
+     * without building code strings first. The Node tree is not built, so only
+     * the table decoder, decodeNextCharacter(BitReader), can be used.
+     *
+     * @param codeTable the canonical codes
+     */
+    HuffmanTree(CodeTable codeTable) {
+        root = new Node();
+        buildTables(codeTable.codes, codeTable.lengths);
+    }
+
+    /**
+     * Builds the Huffman tree using the given codebook.
+     *
+     * @param codebook the codebook used to build the Huffman tree
+     */
+    void buildTree(HashMap<Character, String> codebook) {
+        for (HashMap.Entry<Character, String> entry : codebook.entrySet()) {
+            char character = entry.getKey();
+            String huffmanCode = entry.getValue();
+
+            Node currentNode = root;
+            for (char bit : huffmanCode.toCharArray()) {
+                if (bit == '0') {
+                    if (currentNode.left == null) {
+                        currentNode.left = new Node();
+                    }
+                    currentNode = currentNode.left;
+                } else if (bit == '1') {
+                    if (currentNode.right == null) {
+                        currentNode.right = new Node();
+                    }
+                    currentNode = currentNode.right;
+                }
+            }
+            currentNode.character = character;
+        }
+        buildTables(codebook);
+    }
+
+    /**
+     * Builds the primary and secondary decoding tables from the codebook.
+     *
+     * @param codebook the codebook used to build the tables
+     */
+    private void buildTables(HashMap<Character, String> codebook) {
+        int size = 0;
+        for (char character : codebook.keySet()) {
+            size = Math.max(size, character + 1);
+        }
+        int[] codes = new int[size];
+        byte[] lengths = new byte[size];
+        for (HashMap.Entry<Character, String> entry : codebook.entrySet()) {
+            String huffmanCode = entry.getValue();
+            if (!huffmanCode.isEmpty()) {
+                codes[entry.getKey()] = Integer.parseInt(huffmanCode, 2);
+                lengths[entry.getKey()] = (byte) huffmanCode.length();
+            }
+        }
+        buildTables(codes, lengths);
+    }
+
+    /**
+     * Builds the primary and secondary decoding tables from the code bits and
+     * lengths of every character. Every primary slot whose index starts with a
+     * short code holds that code's character and length. Slots that are a prefix
+     * of longer codes link to a secondary table indexed by the bits after the
+     * first PRIMARY_BITS.
+     *
+     * @param codes   the code bits of every character, indexed by character
+     * @param lengths the code length of every character, 0 for characters that
+     *                have no code
+     */
+    private void buildTables(int[] codes, byte[] lengths) {
+        primaryTable = new int[1 << PRIMARY_BITS];
+
+        // find how many extra bits each primary slot needs for its longer codes
+        int[] extraBits = new int[1 << PRIMARY_BITS];
+        for (int character = 0; character < lengths.length; character++) {
+            int length = lengths[character];
+            if (length > PRIMARY_BITS) {
+                int prefix = codes[character] >>> (length - PRIMARY_BITS);
+                extraBits[prefix] = Math.max(extraBits[prefix], length - PRIMARY_BITS);
+            }
+        }
+
+        int secondarySize = 0;
+        for (int prefix = 0; prefix < extraBits.length; prefix++) {
+            if (extraBits[prefix] > 0) {
+                primaryTable[prefix] = LINK_FLAG | (secondarySize << 8) | extraBits[prefix];
+                secondarySize += 1 << extraBits[prefix];
+            }
+        }
+        secondaryTable = new int[secondarySize];
+
+        for (int character = 0; character < lengths.length; character++) {
+            int length = lengths[character];
+            int code = codes[character];
+            if (length == 0) {
+                continue;
+            }
+            if (length <= PRIMARY_BITS) {
+                int first = code << (PRIMARY_BITS - length);
+                int count = 1 << (PRIMARY_BITS - length);
+                for (int i = 0; i < count; i++) {
+                    primaryTable[first + i] = (character << 8) | length;
+                }
+            } else {
+                int remaining = length - PRIMARY_BITS;
+                int link = primaryTable[code >>> remaining];
+                int offset = (link & ~LINK_FLAG) >>> 8;
+                int subBits = link & LENGTH_MASK;
+                int first = (code & ((1 << remaining) - 1)) << (subBits - remaining);
+                int count = 1 << (subBits - remaining);
+                for (int i = 0; i < count; i++) {
+                    secondaryTable[offset + first + i] = (character << 8) | remaining;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the next character in a text-mode input stream, where every bit is
+     * stored as a '0' or '1' character.
+     *
+     * @param reader the BufferedReader used to read the input stream
+     * @return the decoded character
+     * @throws IOException if an I/O error occurs while reading from the input
+     *                     stream
+     */
+    char decodeNextCharacter(BufferedReader reader) throws IOException {
+        Node currentNode = root;
+        int charAsInt;
+        while (currentNode.left != null || currentNode.right != null) {
+            charAsInt = reader.read();
+            if (charAsInt == -1) {
+                throw new IOException("Unexpected end of encoded file");
+            }
+            char bit = (char) charAsInt;
+            if (bit == '0') {
+                currentNode = currentNode.left;
+            } else if (bit == '1') {
+                currentNode = currentNode.right;
+            }
+            if (currentNode == null) {
+                throw new IOException("Invalid Huffman code in encoded file");
+            }
+        }
+        return currentNode.character;
+    }
+
+    /**
+     * Decodes the next character in a bit-packed input stream with one table
+     * lookup, or two for codes longer than PRIMARY_BITS.
+     *
+     * @param reader the BitReader used to read the packed bits
+     * @return the decoded character
+     * @throws IOException if an I/O error occurs while reading from the input
+     *                     stream
+     */
+    @Override
+    public char decodeNextCharacter(BitReader reader) throws IOException {
+        int entry = primaryTable[reader.peekBits(PRIMARY_BITS)];
+        if (entry < 0) {
+            reader.skipBits(PRIMARY_BITS);
+            int offset = (entry & ~LINK_FLAG) >>> 8;
+            entry = secondaryTable[offset + reader.peekBits(entry & LENGTH_MASK)];
+        }
+        if (entry == 0) {
+            throw new IOException("Invalid Huffman code in encoded file");
+        }
+        reader.skipBits(entry & LENGTH_MASK);
+        return (char) (entry >>> 8);
+    }
+
+    /**
+     * Looks up the code at the start of a window of bits, for decoders that keep
+     * their own bit position instead of using a BitReader.
+     *
+     * @param window the next bits, left-aligned, with at least the longest code
+     *               length of them valid
+     * @return (character << 8) | code length, or 0 if the bits are not a valid
+     *         code
+     */
+    int decodeEntry(long window) {
+        int entry = primaryTable[(int) (window >>> (Long.SIZE - PRIMARY_BITS))];
+        if (entry < 0) {
+            int offset = (entry & ~LINK_FLAG) >>> 8;
+            int subBits = entry & LENGTH_MASK;
+            entry = secondaryTable[offset + (int) ((window << PRIMARY_BITS) >>> (Long.SIZE - subBits))];
+            return entry == 0 ? 0 : entry + PRIMARY_BITS;
+        }
+        return entry;
+    }
+
+    /**
+     * Decodes the next character in a bit-packed input stream by following the
+     * Node pointers one bit at a time. This is slower than the table lookup and
+     * is kept for comparison.
+     *
+     * @param reader the BitReader used to read the packed bits
+     * @return the decoded character
+     * @throws IOException if an I/O error occurs while reading from the input
+     *                     stream
+     */
+    char decodeNextCharacterByTree(BitReader reader) throws IOException {
+        Node currentNode = root;
+        while (currentNode.left != null || currentNode.right != null) {
+            if (reader.readBit() == 0) {
+                currentNode = currentNode.left;
+            } else {
+                currentNode = currentNode.right;
+            }
+            if (currentNode == null) {
+                throw new IOException("Invalid Huffman code in encoded file");
+            }
+        }
+        return currentNode.character;
+    }
+}
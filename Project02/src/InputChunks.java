@@ -0,0 +1,87 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * InputChunks splits a UTF-8 file into byte ranges that can be processed
+ * independently. Every range starts at the first byte of a character, so no
+ * character is split between two ranges. Files read in byte mode are split at
+ * fixed sizes instead.
+ */
+class InputChunks {
+
+    /**
+     * Splits the file into ranges of about chunkSize bytes.
+     *
+     * @param input     the file to split
+     * @param chunkSize the preferred size of a range in bytes
+     * @return the ranges as {start, end} pairs, in file order
+     * @throws IOException if an I/O error occurs while reading the file
+     */
+    static List<long[]> split(MappedInput input, int chunkSize) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        long size = input.size();
+        long start = 0;
+        while (start < size) {
+            long end = nextCharacterStart(input, Math.min(start + chunkSize, size));
+            chunks.add(new long[] { start, end });
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Splits the file into ranges of exactly chunkSize bytes, the last one
+     * shorter, for data that is not UTF-8 text.
+     *
+     * @param input     the file to split
+     * @param chunkSize the size of a range in bytes
+     * @return the ranges as {start, end} pairs, in file order
+     */
+    static List<long[]> splitBytes(MappedInput input, int chunkSize) {
+        List<long[]> chunks = new ArrayList<>();
+        for (long start = 0; start < input.size(); start += chunkSize) {
+            chunks.add(new long[] { start, Math.min(start + chunkSize, input.size()) });
+        }
+        return chunks;
+    }
+
+    /**
+     * Moves a chunk boundary forward past UTF-8 continuation bytes.
+     *
+     * @param input    the file being split
+     * @param position the proposed boundary
+     * @return the position of the first byte of the next character
+     * @throws IOException if an I/O error occurs while reading the file
+     */
+    private static long nextCharacterStart(MappedInput input, long position) throws IOException {
+        while (position < input.size() && (input.get(position) & 0xC0) == 0x80) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Reads a small byte range of the file into a heap buffer. Positional reads
+     * do not move the channel's position, so several threads can read from the
+     * same channel.
+     *
+     * @param channel the file to read from
+     * @param start   the position of the first byte
+     * @param end     the position after the last byte
+     * @return a buffer holding the bytes, ready to be read
+     * @throws IOException if an I/O error occurs or the file ends early
+     */
+    static ByteBuffer read(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, start + bytes.position()) < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+        return bytes.flip();
+    }
+}
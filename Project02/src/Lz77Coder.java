@@ -0,0 +1,373 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Lz77Coder is the EntropyCoder of LZ77 mode, which codes raw bytes the way
+ * DEFLATE does. A MatchFinder first replaces every repeat of at least
+ * MIN_MATCH bytes within the last WINDOW_SIZE bytes by a length and a distance
+ * back to the earlier copy; the literals, lengths and distances that remain
+ * are then Huffman coded.
+ *
+ * Literals and lengths share one alphabet: symbols 0 to 255 are the bytes,
+ * END_OF_BLOCK ends the block, and 257 to 285 stand for ranges of lengths,
+ * followed by extra bits that pick the length within the range. Distances have
+ * an alphabet of their own, with extra bits in the same way. The ranges are
+ * those of DEFLATE, see LENGTH_BASE and DISTANCE_BASE.
+ *
+ * Every block is parsed and coded on its own, with Huffman codes of at most
+ * MAX_CODE_LENGTH bits built from its own symbol frequencies, so blocks can be
+ * encoded and decoded in parallel as in the other modes. The payload starts
+ * with the code length of every literal/length symbol and then of every
+ * distance symbol, in LENGTH_FIELD_BITS each; the codes follow, ending with the
+ * code of END_OF_BLOCK. Matches never reach back into an earlier block, and
+ * blocks have no sync points.
+ *
+ * The compression level, from MIN_LEVEL to MAX_LEVEL, sets how many
+ * candidates the MatchFinder compares and the match length at which it stops
+ * looking. From LAZY_LEVEL on, a match is only taken when the next byte does
+ * not start a longer one; otherwise the byte is coded as a literal and the
+ * longer match is taken instead.
+ */
+class Lz77Coder implements EntropyCoder {
+    static final int MIN_LEVEL = 1;
+    static final int MAX_LEVEL = 9;
+    static final int DEFAULT_LEVEL = 6;
+    private static final int[] MAX_CHAIN = { 0, 4, 8, 16, 16, 32, 128, 256, 1024, 4096 }; // by level
+    private static final int[] NICE_LENGTH = { 0, 8, 16, 32, 32, 64, 128, 258, 258, 258 }; // by level
+    private static final int LAZY_LEVEL = 4;
+    private static final int END_OF_BLOCK = 256;
+    private static final int FIRST_LENGTH_SYMBOL = 257;
+    private static final int LITERAL_LENGTH_SYMBOLS = 286;
+    private static final int DISTANCE_SYMBOLS = 30;
+    private static final int MAX_CODE_LENGTH = 15;
+    private static final int LENGTH_FIELD_BITS = 4; // holds every code length up to MAX_CODE_LENGTH
+    private static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51,
+            59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+    private static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4,
+            4, 5, 5, 5, 5, 0 };
+    private static final int[] DISTANCE_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257,
+            385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+    private static final int[] DISTANCE_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9,
+            10, 10, 11, 11, 12, 12, 13, 13 };
+    private static final byte[] LENGTH_CODE = new byte[MatchFinder.MAX_MATCH + 1]; // by match length
+    private static final byte[] DISTANCE_CODE = new byte[512]; // see distanceCode
+    private static final byte[] CODED_BYTES = new byte[CodebookBuilder.BYTE_ALPHABET_SIZE];
+
+    static {
+        for (int code = 0; code < LENGTH_BASE.length; code++) {
+            for (int length = LENGTH_BASE[code]; length < LENGTH_BASE[code] + (1 << LENGTH_EXTRA[code])
+                    && length <= MatchFinder.MAX_MATCH; length++) {
+                LENGTH_CODE[length] = (byte) code;
+            }
+        }
+        for (int code = 0; code < DISTANCE_BASE.length; code++) {
+            for (int n = DISTANCE_BASE[code] - 1; n < DISTANCE_BASE[code] - 1 + (1 << DISTANCE_EXTRA[code]); n++) {
+                DISTANCE_CODE[n < 256 ? n : 256 + (n >>> 7)] = (byte) code;
+            }
+        }
+        Arrays.fill(CODED_BYTES, (byte) 1);
+    }
+
+    private final int level;
+    private final String decoderName;
+
+    /**
+     * Constructor for creating an Lz77Coder.
+     *
+     * @param level       the compression level, from MIN_LEVEL to MAX_LEVEL; it
+     *                    only matters when encoding
+     * @param decoderName the decoder to decode the Huffman codes with: table,
+     *                    tree or flat, or null when only encoding
+     */
+    Lz77Coder(int level, String decoderName) {
+        this.level = level;
+        this.decoderName = decoderName;
+    }
+
+    /**
+     * Writes the container header, which holds no codebook: every block carries
+     * its own.
+     *
+     * @param out the stream to write the header to
+     * @throws IOException if an I/O error occurs while writing
+     */
+    @Override
+    public void writeHeader(OutputStream out) throws IOException {
+        HuffmanFormat.writeLzHeader(out);
+    }
+
+    /**
+     * Returns how large an output buffer must be to hold an encoded block. A
+     * literal takes at most MAX_CODE_LENGTH bits and a match of MIN_MATCH bytes
+     * at most 48, so no input byte takes more than 16 bits.
+     *
+     * @param inputBytes the number of input bytes in the block
+     * @return the buffer size in bytes
+     */
+    @Override
+    public int maxEncodedSize(int inputBytes) {
+        return HuffmanFormat.BLOCK_HEADER_SIZE
+                + (LITERAL_LENGTH_SYMBOLS + DISTANCE_SYMBOLS) * LENGTH_FIELD_BITS / 8 + 2 * inputBytes + 8;
+    }
+
+    /**
+     * Encodes one block: parses it into literals and matches, builds the
+     * Huffman codes of the block from the symbols of the parse, and writes the
+     * code lengths and the codes.
+     *
+     * @param bytes        the input bytes of the block
+     * @param outputBuffer the buffer that receives the encoded block
+     * @param syncPoints   receives the decoded length; LZ77 blocks have no sync
+     *                     points
+     * @return the number of bytes encoded
+     * @throws IOException if an I/O error occurs while writing
+     */
+    @Override
+    public int encodeBlock(ByteBuffer bytes, ByteBuffer outputBuffer, SyncPoints syncPoints) throws IOException {
+        ByteBuffer input = bytes.duplicate();
+        int byteCount = bytes.remaining();
+        byte[] data = new byte[byteCount];
+        bytes.get(data);
+
+        long[] literalFrequencies = new long[LITERAL_LENGTH_SYMBOLS];
+        long[] distanceFrequencies = new long[DISTANCE_SYMBOLS];
+        int[] tokens = new int[byteCount]; // a byte, or (length << 16) | distance for a match
+        int tokenCount = parse(data, tokens, literalFrequencies, distanceFrequencies);
+        literalFrequencies[END_OF_BLOCK]++;
+
+        int[] literalLengths = CodebookBuilder.limitedCodeLengths(literalFrequencies, MAX_CODE_LENGTH);
+        int[] distanceLengths = tokenCount < byteCount
+                ? CodebookBuilder.limitedCodeLengths(distanceFrequencies, MAX_CODE_LENGTH)
+                : new int[DISTANCE_SYMBOLS]; // no matches, so no distances
+        CodeTable literalTable = new CodeTable(literalLengths);
+        CodeTable distanceTable = new CodeTable(distanceLengths);
+
+        int blockStart = outputBuffer.position();
+        outputBuffer.position(blockStart + HuffmanFormat.BLOCK_HEADER_SIZE);
+        BitWriter writer = new BitWriter(outputBuffer);
+        for (int length : literalLengths) {
+            writer.writeBits(length, LENGTH_FIELD_BITS);
+        }
+        for (int length : distanceLengths) {
+            writer.writeBits(length, LENGTH_FIELD_BITS);
+        }
+        for (int i = 0; i < tokenCount; i++) {
+            int token = tokens[i];
+            if (token < END_OF_BLOCK) {
+                writer.writeBits(literalTable.codes[token], literalTable.lengths[token]);
+                continue;
+            }
+            int length = token >>> 16;
+            int lengthCode = LENGTH_CODE[length];
+            int symbol = FIRST_LENGTH_SYMBOL + lengthCode;
+            writer.writeBits(literalTable.codes[symbol], literalTable.lengths[symbol]);
+            writer.writeBits(length - LENGTH_BASE[lengthCode], LENGTH_EXTRA[lengthCode]);
+            int distance = token & 0xFFFF;
+            int distanceCode = distanceCode(distance);
+            writer.writeBits(distanceTable.codes[distanceCode], distanceTable.lengths[distanceCode]);
+            writer.writeBits(distance - DISTANCE_BASE[distanceCode], DISTANCE_EXTRA[distanceCode]);
+        }
+        writer.writeBits(literalTable.codes[END_OF_BLOCK], literalTable.lengths[END_OF_BLOCK]);
+        writer.flush();
+        syncPoints.setDecodedLength(byteCount);
+
+        BlockCodec.writeBlockHeader(outputBuffer, blockStart, byteCount, BlockCodec.checksum(input));
+        return byteCount;
+    }
+
+    /**
+     * Parses a block into literals and matches, and counts the symbols they are
+     * coded with.
+     *
+     * @param data                the bytes of the block
+     * @param tokens              receives the literals and matches, in order
+     * @param literalFrequencies  receives the frequency of every literal/length
+     *                            symbol
+     * @param distanceFrequencies receives the frequency of every distance symbol
+     * @return the number of tokens
+     */
+    private int parse(byte[] data, int[] tokens, long[] literalFrequencies, long[] distanceFrequencies) {
+        int niceLength = NICE_LENGTH[level];
+        boolean lazy = level >= LAZY_LEVEL;
+        MatchFinder finder = new MatchFinder(data, data.length, MAX_CHAIN[level], niceLength);
+        int tokenCount = 0;
+        int position = 0;
+        int length = finder.find(0, 0);
+        int distance = finder.getMatchDistance();
+        while (position < data.length) {
+            if (lazy && length >= MatchFinder.MIN_MATCH && length < niceLength) {
+                int nextLength = finder.find(position + 1, length);
+                if (nextLength > 0) {
+                    // the next byte starts a longer match: code this one as a literal
+                    tokens[tokenCount++] = data[position] & 0xFF;
+                    literalFrequencies[data[position] & 0xFF]++;
+                    position++;
+                    length = nextLength;
+                    distance = finder.getMatchDistance();
+                    continue;
+                }
+            }
+            if (length >= MatchFinder.MIN_MATCH) {
+                tokens[tokenCount++] = (length << 16) | distance;
+                literalFrequencies[FIRST_LENGTH_SYMBOL + LENGTH_CODE[length]]++;
+                distanceFrequencies[distanceCode(distance)]++;
+                position += length;
+            } else {
+                tokens[tokenCount++] = data[position] & 0xFF;
+                literalFrequencies[data[position] & 0xFF]++;
+                position++;
+            }
+            if (position < data.length) {
+                length = finder.find(position, 0);
+                distance = finder.getMatchDistance();
+            }
+        }
+        return tokenCount;
+    }
+
+    /**
+     * Decodes the payload of one block. The bytes are decoded into an array
+     * first, which the matches copy from, and then written out at once.
+     *
+     * @param payload      the code lengths and the codes of the block
+     * @param symbolCount  the number of bytes in the block
+     * @param outputBuffer the buffer that receives the decoded bytes
+     * @throws IOException if the payload is malformed
+     */
+    @Override
+    public void decodeBlock(ByteBuffer payload, int symbolCount, ByteBuffer outputBuffer) throws IOException {
+        BitReader reader = new BitReader(payload);
+        int[] literalLengths = readCodeLengths(reader, LITERAL_LENGTH_SYMBOLS);
+        int[] distanceLengths = readCodeLengths(reader, DISTANCE_SYMBOLS);
+        HuffmanDecoder literalDecoder = createDecoder(literalLengths);
+        HuffmanDecoder distanceDecoder = null;
+        for (int length : distanceLengths) {
+            if (length != 0) {
+                distanceDecoder = createDecoder(distanceLengths);
+                break;
+            }
+        }
+
+        byte[] decoded = new byte[symbolCount];
+        int position = 0;
+        int symbol;
+        while ((symbol = literalDecoder.decodeNextCharacter(reader)) != END_OF_BLOCK) {
+            if (symbol < END_OF_BLOCK) {
+                if (position == symbolCount) {
+                    throw new IOException("Invalid LZ77 block in encoded data");
+                }
+                decoded[position++] = (byte) symbol;
+                continue;
+            }
+            int lengthCode = symbol - FIRST_LENGTH_SYMBOL;
+            if (lengthCode >= LENGTH_BASE.length || distanceDecoder == null) {
+                throw new IOException("Invalid LZ77 block in encoded data");
+            }
+            int length = LENGTH_BASE[lengthCode] + readBits(reader, LENGTH_EXTRA[lengthCode]);
+            int distanceCode = distanceDecoder.decodeNextCharacter(reader);
+            int distance = DISTANCE_BASE[distanceCode] + readBits(reader, DISTANCE_EXTRA[distanceCode]);
+            if (distance > position || length > symbolCount - position) {
+                throw new IOException("Invalid LZ77 match in encoded data");
+            }
+            if (distance >= length) {
+                System.arraycopy(decoded, position - distance, decoded, position, length);
+                position += length;
+            } else {
+                // the copy overlaps the bytes it produces, repeating them
+                for (int end = position + length; position < end; position++) {
+                    decoded[position] = decoded[position - distance];
+                }
+            }
+        }
+        if (position != symbolCount) {
+            throw new IOException("Invalid LZ77 block in encoded data");
+        }
+        outputBuffer.put(decoded, 0, position);
+    }
+
+    /**
+     * Creates the decoder for one table of code lengths.
+     *
+     * @param codeLengths the code length of every symbol, indexed by symbol
+     * @return the decoder, ready for a block
+     */
+    private HuffmanDecoder createDecoder(int[] codeLengths) {
+        return Decode.createDecoder(decoderName, codeLengths).forBlock();
+    }
+
+    /**
+     * Reads and checks one table of code lengths from the start of a payload.
+     *
+     * @param reader      the reader positioned at the table
+     * @param symbolCount the number of symbols of the table
+     * @return the code length of every symbol, indexed by symbol
+     * @throws IOException if the lengths do not describe a prefix code
+     */
+    private static int[] readCodeLengths(BitReader reader, int symbolCount) throws IOException {
+        int[] lengths = new int[symbolCount];
+        long kraftSum = 0;
+        for (int symbol = 0; symbol < symbolCount; symbol++) {
+            lengths[symbol] = readBits(reader, LENGTH_FIELD_BITS);
+            if (lengths[symbol] > 0) {
+                kraftSum += 1L << (MAX_CODE_LENGTH - lengths[symbol]);
+            }
+        }
+        if (kraftSum > 1L << MAX_CODE_LENGTH) {
+            throw new IOException("Invalid LZ77 codebook in encoded data");
+        }
+        return lengths;
+    }
+
+    /**
+     * Reads a number of extra bits.
+     *
+     * @param reader the reader
+     * @param n      the number of bits, possibly 0
+     * @return the bits, right-aligned
+     * @throws IOException if the stream has fewer than n bits left
+     */
+    private static int readBits(BitReader reader, int n) throws IOException {
+        if (n == 0) {
+            return 0;
+        }
+        int bits = reader.peekBits(n);
+        reader.skipBits(n);
+        return bits;
+    }
+
+    /**
+     * Returns the distance symbol of a distance. Distances up to 256 are looked
+     * up directly; the ranges of longer ones all span a multiple of 128, so
+     * their distance divided by 128 picks the symbol.
+     *
+     * @param distance the distance, from 1 to WINDOW_SIZE
+     * @return the distance symbol
+     */
+    private static int distanceCode(int distance) {
+        int n = distance - 1;
+        return DISTANCE_CODE[n < 256 ? n : 256 + (n >>> 7)];
+    }
+
+    /**
+     * Returns whether every symbol is a raw byte, which it always is in LZ77
+     * mode.
+     *
+     * @return true
+     */
+    @Override
+    public boolean byteMode() {
+        return true;
+    }
+
+    /**
+     * Returns a mark for every byte value, as every byte can be coded.
+     *
+     * @return a non-zero value for every byte value
+     */
+    @Override
+    public byte[] codedSymbols() {
+        return CODED_BYTES;
+    }
+}
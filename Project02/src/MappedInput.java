@@ -0,0 +1,100 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * MappedInput gives read access to a file through memory-mapped windows. A
+ * single mapping is limited to 2 GB, so larger files are mapped one window at a
+ * time. Windows start at multiples of WINDOW_STEP and are twice that long, so
+ * any range of up to WINDOW_STEP bytes lies inside a single window.
+ */
+class MappedInput implements Closeable {
+    static final long WINDOW_STEP = 1L << 29;
+    private static final long WINDOW_SIZE = 2 * WINDOW_STEP;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    /**
+     * Constructor for opening a file for mapped reading.
+     *
+     * @param filename the name of the file
+     * @throws IOException if the file cannot be opened
+     */
+    MappedInput(String filename) throws IOException {
+        this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.window = null;
+        this.windowStart = 0;
+    }
+
+    /**
+     * Returns the size of the file.
+     *
+     * @return the size in bytes
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Returns the channel of the file, for positional reads of small ranges.
+     *
+     * @return the file channel
+     */
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns a buffer that views a range of the file. The buffer shares the
+     * mapped memory, so no bytes are copied.
+     *
+     * @param start the position of the first byte
+     * @param end   the position after the last byte (at most WINDOW_STEP bytes
+     *              after start)
+     * @return a buffer holding the range, ready to be read
+     * @throws IOException if the range cannot be mapped
+     */
+    synchronized ByteBuffer slice(long start, long end) throws IOException {
+        if (start < 0 || end > size || end - start > WINDOW_STEP) {
+            throw new IOException("Invalid file range " + start + "-" + end);
+        }
+        if (start == end) {
+            return ByteBuffer.allocate(0);
+        }
+        if (window == null || start < windowStart || end > windowStart + window.capacity()) {
+            windowStart = start - start % WINDOW_STEP;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+        }
+        return window.slice((int) (start - windowStart), (int) (end - start));
+    }
+
+    /**
+     * Returns a single byte of the file.
+     *
+     * @param position the position of the byte
+     * @return the byte
+     * @throws IOException if the byte cannot be mapped
+     */
+    byte get(long position) throws IOException {
+        return slice(position, position + 1).get(0);
+    }
+
+    /**
+     * Closes the file. Mapped windows stay valid until they are garbage
+     * collected.
+     *
+     * @throws IOException if an I/O error occurs while closing
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
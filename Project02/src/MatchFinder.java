@@ -0,0 +1,144 @@
+import java.util.Arrays;
+
+/**
+ * MatchFinder finds the longest earlier repeat of the bytes at a position,
+ * within a sliding window of WINDOW_SIZE bytes, for Lz77Coder. Every position
+ * is filed under a hash of its first MIN_MATCH bytes: head holds the latest
+ * position of every hash and prev links each position to the one before it
+ * with the same hash, so the candidates for a match are walked newest first.
+ * prev is a ring of WINDOW_SIZE entries, which is all the window needs.
+ *
+ * The walk stops after maxChain candidates or at a match of niceLength bytes,
+ * which is where the compression levels trade search effort for speed.
+ */
+class MatchFinder {
+    static final int MIN_MATCH = 3;
+    static final int MAX_MATCH = 258;
+    static final int WINDOW_SIZE = 1 << 15;
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+    private static final int HASH_BITS = 15;
+
+    private final byte[] data;
+    private final int length;
+    private final int maxChain;
+    private final int niceLength;
+    private final int[] head = new int[1 << HASH_BITS];
+    private final int[] prev = new int[WINDOW_SIZE];
+    private int inserted; // every position before this one has been filed
+    private int matchLength;
+    private int matchDistance;
+
+    /**
+     * Constructor for creating a MatchFinder over a block of bytes.
+     *
+     * @param data       the bytes to search
+     * @param length     the number of bytes of data to use
+     * @param maxChain   the most candidates to compare per search
+     * @param niceLength the match length at which a search stops early
+     */
+    MatchFinder(byte[] data, int length, int maxChain, int niceLength) {
+        this.data = data;
+        this.length = length;
+        this.maxChain = maxChain;
+        this.niceLength = niceLength;
+        Arrays.fill(head, -1);
+    }
+
+    /**
+     * Searches for a match at a position that is longer than minLength, files
+     * every position up to it that has not been filed yet, and returns the
+     * length of the match found. Positions must be searched in increasing
+     * order.
+     *
+     * @param position  the position to find a match for
+     * @param minLength the length a match must exceed to be taken
+     * @return the length of the match, or 0 if there is none longer than
+     *         minLength; its distance is then given by getMatchDistance
+     */
+    int find(int position, int minLength) {
+        insertUpTo(position);
+        matchLength = 0;
+        matchDistance = 0;
+        if (length - position < MIN_MATCH) {
+            return 0;
+        }
+        int maxLength = Math.min(MAX_MATCH, length - position);
+        int bestLength = Math.max(minLength, MIN_MATCH - 1);
+        if (bestLength >= maxLength) {
+            insert(position);
+            return 0;
+        }
+        int limit = position - WINDOW_SIZE;
+        int candidate = head[hash(position)];
+        for (int chain = maxChain; candidate >= 0 && candidate >= limit && chain > 0; chain--) {
+            // the byte that would make the match longer is the likeliest to differ
+            if (data[candidate + bestLength] == data[position + bestLength] && data[candidate] == data[position]) {
+                int matched = 1;
+                while (matched < maxLength && data[candidate + matched] == data[position + matched]) {
+                    matched++;
+                }
+                if (matched > bestLength) {
+                    bestLength = matched;
+                    matchLength = matched;
+                    matchDistance = position - candidate;
+                    if (matched >= Math.min(niceLength, maxLength)) {
+                        break;
+                    }
+                }
+            }
+            candidate = prev[candidate & WINDOW_MASK];
+        }
+        insert(position);
+        return matchLength;
+    }
+
+    /**
+     * Returns the distance of the match the last search found.
+     *
+     * @return the distance back to the earlier copy, from 1 to WINDOW_SIZE
+     */
+    int getMatchDistance() {
+        return matchDistance;
+    }
+
+    /**
+     * Files every position before the given one that has not been filed, such
+     * as the positions inside a match that was taken.
+     *
+     * @param position the first position not to file
+     */
+    void insertUpTo(int position) {
+        while (inserted < position) {
+            insert(inserted);
+        }
+    }
+
+    /**
+     * Files one position under the hash of its first bytes, if it has
+     * MIN_MATCH bytes, and moves past it.
+     *
+     * @param position the position, which must be the next one to file
+     */
+    private void insert(int position) {
+        if (position == inserted) {
+            if (length - position >= MIN_MATCH) {
+                int hash = hash(position);
+                prev[position & WINDOW_MASK] = head[hash];
+                head[hash] = position;
+            }
+            inserted++;
+        }
+    }
+
+    /**
+     * Returns the hash of the MIN_MATCH bytes at a position.
+     *
+     * @param position the position
+     * @return the hash, from 0 to 2^HASH_BITS - 1
+     */
+    private int hash(int position) {
+        int bytes = ((data[position] & 0xFF) << 16) | ((data[position + 1] & 0xFF) << 8)
+                | (data[position + 2] & 0xFF);
+        return (bytes * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+}
@@ -0,0 +1,28 @@
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * PoolTasks holds what the tools that run blocks in parallel on a
+ * ForkJoinPool share about the failure of a task.
+ */
+class PoolTasks {
+
+    /**
+     * Returns the IOException a failed task threw. ForkJoinPool.submit wraps the
+     * checked exception of a Callable in RuntimeExceptions, which are peeled off
+     * so that the message is the task's own.
+     *
+     * @param e the exception thrown by get
+     * @return an IOException with the message of the task's exception
+     */
+    static IOException failure(ExecutionException e) {
+        Throwable cause = e.getCause();
+        while (cause instanceof RuntimeException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException(cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SpscRing is a bounded ring buffer that hands elements from exactly one
+ * producer thread to exactly one consumer thread. Each side owns one counter,
+ * the producer the tail and the consumer the head, so neither put nor take
+ * takes a lock; a side that finds the ring full or empty spins briefly and
+ * then parks until the other side wakes it. A ring can be stopped from any
+ * thread, which makes every waiting or later put and take fail, so a pipeline
+ * stage that fails does not leave the others waiting forever.
+ *
+ * @param <T> the type of the elements
+ */
+class SpscRing<T> {
+    private static final int SPIN_COUNT = 100;
+    private static final long PARK_NANOS = 1_000_000; // upper bound on a missed wakeup
+
+    private final Object[] elements;
+    private final int mask;
+    private final AtomicLong head; // next element to take, written only by the consumer
+    private final AtomicLong tail; // next element to put, written only by the producer
+    private volatile Thread waitingProducer;
+    private volatile Thread waitingConsumer;
+    private volatile boolean stopped;
+
+    /**
+     * Constructor for creating a new, empty SpscRing.
+     *
+     * @param capacity the number of elements the ring holds, a power of two
+     */
+    SpscRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two: " + capacity);
+        }
+        this.elements = new Object[capacity];
+        this.mask = capacity - 1;
+        this.head = new AtomicLong();
+        this.tail = new AtomicLong();
+    }
+
+    /**
+     * Adds an element, waiting while the ring is full. Only the producer thread
+     * may call this.
+     *
+     * @param element the element to add
+     * @throws IOException if the ring has been stopped
+     */
+    void put(T element) throws IOException {
+        long position = tail.get();
+        int spins = 0;
+        while (position - head.get() == elements.length) {
+            checkRunning();
+            if (spins++ < SPIN_COUNT) {
+                Thread.onSpinWait();
+                continue;
+            }
+            waitingProducer = Thread.currentThread();
+            if (position - head.get() == elements.length) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waitingProducer = null;
+        }
+        elements[(int) position & mask] = element;
+        tail.set(position + 1);
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Removes the oldest element, waiting while the ring is empty. Only the
+     * consumer thread may call this.
+     *
+     * @return the element
+     * @throws IOException if the ring has been stopped
+     */
+    @SuppressWarnings("unchecked")
+    T take() throws IOException {
+        long position = head.get();
+        int spins = 0;
+        while (position == tail.get()) {
+            checkRunning();
+            if (spins++ < SPIN_COUNT) {
+                Thread.onSpinWait();
+                continue;
+            }
+            waitingConsumer = Thread.currentThread();
+            if (position == tail.get()) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waitingConsumer = null;
+        }
+        int slot = (int) position & mask;
+        T element = (T) elements[slot];
+        elements[slot] = null;
+        head.set(position + 1);
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        return element;
+    }
+
+    /**
+     * Stops the ring and wakes both sides. Safe to call from any thread.
+     */
+    void stop() {
+        stopped = true;
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Checks that the ring has not been stopped.
+     *
+     * @throws IOException if the ring has been stopped
+     */
+    private void checkRunning() throws IOException {
+        if (stopped) {
+            throw new IOException("Pipeline stopped");
+        }
+    }
+}
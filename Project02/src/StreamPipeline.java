@@ -0,0 +1,354 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * StreamPipeline encodes or decodes a stream in three stages that overlap: a
+ * reader thread fills input buffers from the stream, a coder thread encodes or
+ * decodes them into output buffers, and the calling thread writes those out.
+ * While one block is being coded the next one is already being read and the
+ * previous one written, so neither the CPU nor the I/O waits for the other.
+ *
+ * The stages hand blocks on through SpscRings, each with one producer and one
+ * consumer: reader to coder, coder to writer, and writer back to reader. The
+ * last ring recycles the slots, so SLOT_COUNT blocks are all that is ever
+ * allocated and a slow writer holds the reader back instead of letting input
+ * pile up. The output is the same as that of HuffmanOutputStream, and the
+ * input accepted the same as HuffmanInputStream's.
+ */
+class StreamPipeline {
+    private static final int SLOT_COUNT = 4; // blocks in flight, a power of two
+
+    private final SpscRing<Slot> free; // writer to reader
+    private final SpscRing<Slot> read; // reader to coder
+    private final SpscRing<Slot> coded; // coder to writer
+    private volatile Exception failure; // first failure of any stage
+
+    /**
+     * Slot holds one block on its way through the pipeline. Its buffers are
+     * reused for later blocks, and only grow.
+     */
+    private static class Slot {
+        ByteBuffer input; // text bytes or a block payload
+        ByteBuffer output; // an encoded block or decoded text bytes
+        int symbolCount;
+        int checksum; // CRC32C of the decoded block, from its header
+        SyncPoints syncPoints;
+        boolean last; // whether this is the last block of the stream
+
+        /**
+         * Constructor for creating a new Slot.
+         *
+         * @param inputSize  the initial capacity of the input buffer
+         * @param outputSize the initial capacity of the output buffer
+         */
+        Slot(int inputSize, int outputSize) {
+            this.input = ByteBuffer.allocate(inputSize);
+            this.output = ByteBuffer.allocate(outputSize);
+        }
+    }
+
+    /**
+     * A pipeline stage that runs on its own thread.
+     */
+    private interface Stage {
+        /**
+         * Runs the stage until it has passed on the last block.
+         *
+         * @throws IOException if an I/O error occurs or the data is malformed
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * Constructor for creating a new StreamPipeline with empty slots of the
+     * given sizes, all of them free.
+     *
+     * @param inputSize  the initial capacity of every input buffer
+     * @param outputSize the initial capacity of every output buffer
+     * @throws IOException never, since the rings are not stopped yet
+     */
+    private StreamPipeline(int inputSize, int outputSize) throws IOException {
+        this.free = new SpscRing<>(SLOT_COUNT);
+        this.read = new SpscRing<>(SLOT_COUNT);
+        this.coded = new SpscRing<>(SLOT_COUNT);
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            free.put(new Slot(inputSize, outputSize));
+        }
+    }
+
+    /**
+     * Encodes the UTF-8 text of a stream into the binary container, in the same
+     * format as HuffmanOutputStream. Neither stream is closed.
+     *
+     * @param in           the stream of text to encode
+     * @param out          the stream that receives the encoded data
+     * @param codeLengths  the code length of every character, indexed by
+     *                     character
+     * @param syncInterval the distance between sync points in bytes of decoded
+     *                     text, or 0 for none
+     * @throws IOException if an I/O error occurs while reading or writing
+     */
+    static void encode(InputStream in, OutputStream out, int[] codeLengths, int syncInterval) throws IOException {
+        CodeTable codeTable = new CodeTable(codeLengths);
+        StreamPipeline pipeline = new StreamPipeline(BlockCodec.BLOCK_SIZE,
+                BlockCodec.maxEncodedSize(BlockCodec.BLOCK_SIZE, codeTable.maxLength()));
+        Thread reader = pipeline.start("pipeline-reader", () -> pipeline.readText(in));
+        Thread encoder = pipeline.start("pipeline-encoder", () -> pipeline.encodeBlocks(codeTable, syncInterval));
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            HuffmanFormat.writeHeader(header, codeLengths);
+            out.write(header.toByteArray());
+            long bytesWritten = header.size();
+
+            BlockIndex index = new BlockIndex();
+            boolean last = false;
+            while (!last) {
+                Slot slot = pipeline.coded.take();
+                if (slot.symbolCount > 0) {
+                    index.add((bytesWritten + HuffmanFormat.BLOCK_HEADER_SIZE) * 8, slot.symbolCount,
+                            slot.syncPoints);
+                    out.write(slot.output.array(), 0, slot.output.position());
+                    bytesWritten += slot.output.position();
+                }
+                last = slot.last;
+                pipeline.free.put(slot);
+            }
+
+            out.write(new byte[HuffmanFormat.BLOCK_HEADER_SIZE]); // end of data
+            bytesWritten += HuffmanFormat.BLOCK_HEADER_SIZE;
+            ByteBuffer indexBytes = index.toByteBuffer(bytesWritten);
+            out.write(indexBytes.array(), 0, indexBytes.limit());
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            throw pipeline.fail(e);
+        }
+        pipeline.join(reader, encoder);
+    }
+
+    /**
+     * Decodes a binary container from a stream, as HuffmanInputStream does, and
+     * writes the UTF-8 text. The block index at the end is never read. Neither
+     * stream is closed.
+     *
+     * @param in  the stream that holds the encoded data
+     * @param out the stream that receives the decoded text
+     * @throws IOException if an I/O error occurs or the data is malformed
+     */
+    static void decode(InputStream in, OutputStream out) throws IOException {
+        int[] codeLengths = HuffmanFormat.readHeader(in);
+        CodeTable codeTable = new CodeTable(codeLengths);
+        HuffmanTree huffmanTree = new HuffmanTree(codeTable);
+        int maxLength = codeTable.maxLength();
+        StreamPipeline pipeline = new StreamPipeline(0, 0);
+        Thread reader = pipeline.start("pipeline-reader", () -> pipeline.readBlocks(in, maxLength));
+        Thread decoder = pipeline.start("pipeline-decoder", () -> pipeline.decodeBlocks(huffmanTree));
+        try {
+            boolean last = false;
+            while (!last) {
+                Slot slot = pipeline.coded.take();
+                if (!slot.last) {
+                    out.write(slot.output.array(), 0, slot.output.position());
+                }
+                last = slot.last;
+                pipeline.free.put(slot);
+            }
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            throw pipeline.fail(e);
+        }
+        pipeline.join(reader, decoder);
+    }
+
+    /**
+     * Reader stage of encoding: fills each free slot with up to BLOCK_SIZE bytes
+     * of text, ending at a character boundary. The bytes of a character cut off
+     * at the end of the buffer are carried over to the next block.
+     *
+     * @param in the stream of text to encode
+     * @throws IOException if an I/O error occurs while reading
+     */
+    private void readText(InputStream in) throws IOException {
+        byte[] carry = new byte[0];
+        boolean last = false;
+        while (!last) {
+            Slot slot = free.take();
+            ByteBuffer input = slot.input.clear();
+            input.put(carry);
+            int count = in.readNBytes(input.array(), input.position(), input.remaining());
+            input.position(input.position() + count);
+            last = input.hasRemaining(); // readNBytes stops short only at the end of the stream
+            input.flip();
+
+            int end = last ? input.limit() : Utf8.lastCharacterStart(input);
+            carry = new byte[input.limit() - end];
+            input.get(end, carry);
+            input.limit(end);
+            slot.last = last;
+            read.put(slot);
+        }
+    }
+
+    /**
+     * Coder stage of encoding: encodes the text of each slot into its output
+     * buffer as one block, block header included.
+     *
+     * @param codeTable    the canonical codes
+     * @param syncInterval the distance between sync points in bytes of decoded
+     *                     text, or 0 for none
+     * @throws IOException if an I/O error occurs while encoding
+     */
+    private void encodeBlocks(CodeTable codeTable, int syncInterval) throws IOException {
+        boolean last = false;
+        while (!last) {
+            Slot slot = read.take();
+            slot.output.clear();
+            slot.syncPoints = new SyncPoints();
+            slot.symbolCount = BlockCodec.encodeBlock(slot.input, codeTable, slot.output, syncInterval,
+                    slot.syncPoints);
+            last = slot.last;
+            coded.put(slot);
+        }
+    }
+
+    /**
+     * Reader stage of decoding: reads each block's header and payload into a
+     * free slot, until the end-of-data marker, which is passed on as the last
+     * slot.
+     *
+     * @param in        the stream positioned at the first block
+     * @param maxLength the longest code length in the codebook
+     * @throws IOException if an I/O error occurs or a block header is invalid
+     */
+    private void readBlocks(InputStream in, int maxLength) throws IOException {
+        byte[] header = new byte[HuffmanFormat.BLOCK_HEADER_SIZE];
+        boolean last = false;
+        while (!last) {
+            Slot slot = free.take();
+            readFully(in, header, header.length);
+            ByteBuffer blockHeader = ByteBuffer.wrap(header);
+            int symbolCount = blockHeader.getInt();
+            int payloadLength = blockHeader.getInt();
+            slot.checksum = blockHeader.getInt();
+            last = symbolCount == 0;
+            if (!last) {
+                if (symbolCount < 0 || symbolCount > HuffmanInputStream.MAX_SYMBOL_COUNT || payloadLength < 0
+                        || payloadLength > BlockCodec.maxEncodedSize(symbolCount, maxLength)) {
+                    throw new IOException("Invalid block header in encoded data");
+                }
+                if (slot.input.capacity() < payloadLength) {
+                    slot.input = ByteBuffer.allocate(payloadLength);
+                }
+                slot.input.clear().limit(payloadLength);
+                readFully(in, slot.input.array(), payloadLength);
+            }
+            slot.symbolCount = symbolCount;
+            slot.last = last;
+            read.put(slot);
+        }
+    }
+
+    /**
+     * Coder stage of decoding: decodes the payload of each slot into UTF-8 text
+     * in its output buffer, and checks it against the block's checksum.
+     *
+     * @param huffmanTree the tree used to decode the characters
+     * @throws IOException if a block is malformed
+     */
+    private void decodeBlocks(HuffmanTree huffmanTree) throws IOException {
+        boolean last = false;
+        while (!last) {
+            Slot slot = read.take();
+            if (!slot.last) {
+                // a character takes one or two UTF-8 bytes
+                if (slot.output.capacity() < 2 * slot.symbolCount) {
+                    slot.output = ByteBuffer.allocate(2 * slot.symbolCount);
+                }
+                slot.output.clear();
+                BlockCodec.decodeBlock(slot.input, slot.symbolCount, huffmanTree, slot.output);
+                BlockCodec.verifyChecksum(slot.output, 0, slot.checksum);
+            }
+            last = slot.last;
+            coded.put(slot);
+        }
+    }
+
+    /**
+     * Starts a stage on a new daemon thread. If the stage fails, the pipeline is
+     * stopped, so the other stages do not wait for it forever.
+     *
+     * @param name  the name of the thread
+     * @param stage the stage to run
+     * @return the started thread
+     */
+    private Thread start(String name, Stage stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }, name);
+        // a reader blocked on standard input must not keep the JVM alive
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Records the first failure of any stage and stops every ring.
+     *
+     * @param e the failure
+     * @return the first failure as an IOException, to be thrown by the writer
+     */
+    private IOException fail(Exception e) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        free.stop();
+        read.stop();
+        coded.stop();
+        return failure instanceof IOException ? (IOException) failure
+                : new IOException(failure.getMessage(), failure);
+    }
+
+    /**
+     * Waits for the reader and the coder, which have both passed on the last
+     * block by the time the writer is done with it.
+     *
+     * @param reader the reader thread
+     * @param coder  the coder thread
+     * @throws IOException if interrupted while waiting, or if a stage failed
+     */
+    private void join(Thread reader, Thread coder) throws IOException {
+        try {
+            reader.join();
+            coder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the pipeline");
+        }
+        if (failure != null) {
+            throw fail(failure);
+        }
+    }
+
+    /**
+     * Reads exactly n bytes from a stream into the start of an array.
+     *
+     * @param in    the stream to read from
+     * @param bytes the array that receives the bytes
+     * @param n     the number of bytes to read
+     * @throws IOException if an I/O error occurs or the stream ends early
+     */
+    private static void readFully(InputStream in, byte[] bytes, int n) throws IOException {
+        if (in.readNBytes(bytes, 0, n) != n) {
+            throw new EOFException("Unexpected end of encoded data");
+        }
+    }
+}
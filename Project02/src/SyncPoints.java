@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+/**
+ * SyncPoints lists places in the encoded data where decoding can start: the
+ * position of a code in bits, and the position of its character in the decoded
+ * text in bytes. The Huffman codes carry no state from one character to the
+ * next, so decoding can begin at any code boundary that is known.
+ */
+class SyncPoints {
+    private long[] bitOffsets;
+    private long[] decodedOffsets;
+    private int size;
+    private long decodedLength;
+
+    /**
+     * Constructor for creating a new, empty SyncPoints.
+     */
+    SyncPoints() {
+        this.bitOffsets = new long[16];
+        this.decodedOffsets = new long[16];
+        this.size = 0;
+        this.decodedLength = 0;
+    }
+
+    /**
+     * Adds a sync point. Points must be added in order.
+     *
+     * @param bitOffset     the position of the code, in bits
+     * @param decodedOffset the position of its character in the decoded text, in
+     *                      bytes
+     */
+    void add(long bitOffset, long decodedOffset) {
+        if (size == bitOffsets.length) {
+            bitOffsets = Arrays.copyOf(bitOffsets, size * 2);
+            decodedOffsets = Arrays.copyOf(decodedOffsets, size * 2);
+        }
+        bitOffsets[size] = bitOffset;
+        decodedOffsets[size] = decodedOffset;
+        size++;
+    }
+
+    /**
+     * Returns the number of sync points.
+     *
+     * @return the number of sync points
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the position of a sync point's code.
+     *
+     * @param point the sync point number
+     * @return the position in bits
+     */
+    long getBitOffset(int point) {
+        return bitOffsets[point];
+    }
+
+    /**
+     * Returns the position of a sync point's character in the decoded text.
+     *
+     * @param point the sync point number
+     * @return the position in bytes
+     */
+    long getDecodedOffset(int point) {
+        return decodedOffsets[point];
+    }
+
+    /**
+     * Returns the length of the decoded text the sync points cover.
+     *
+     * @return the length in bytes
+     */
+    long getDecodedLength() {
+        return decodedLength;
+    }
+
+    /**
+     * Sets the length of the decoded text the sync points cover.
+     *
+     * @param decodedLength the length in bytes
+     */
+    void setDecodedLength(long decodedLength) {
+        this.decodedLength = decodedLength;
+    }
+
+    /**
+     * Finds the last sync point at or before a position in the decoded text.
+     *
+     * @param decodedOffset the position in bytes
+     * @return the sync point number, or -1 if every point comes later
+     */
+    int find(long decodedOffset) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (decodedOffsets[middle] <= decodedOffset) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+}
@@ -0,0 +1,450 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * TansCoder is the EntropyCoder for table-based asymmetric numeral systems
+ * (tANS), in the layout of FSE. Every symbol gets a normalized count, its
+ * share of the 2^tableLog states of the coder. A symbol of probability p then
+ * costs close to -log2(p) bits, a fraction of a bit for frequent symbols,
+ * where a Huffman code spends at least one whole bit.
+ *
+ * The encoder codes a block backwards, from its last symbol to its first. For
+ * every symbol it writes the low bits of its state and moves to the state the
+ * symbol's entry of the encoding table gives; the decoder runs forwards and
+ * undoes each step with one lookup in the decoding table and one read of the
+ * bits. The encoder writes the bits from the end of the payload towards its
+ * start, so the decoder reads them in the usual order. The payload is one
+ * byte with the number of zero bits that pad its start, and then the stream,
+ * which opens with the encoder's last state in tableLog bits. Decoding ends
+ * in state zero, the encoder's first state, at the exact end of the payload.
+ *
+ * As for Huffman codes, blocks hold UTF-8 text, where characters without a
+ * count are skipped, or raw bytes in byte mode. tANS blocks have no sync
+ * points: the state carries over from symbol to symbol, so decoding can only
+ * start at the start of a block.
+ */
+class TansCoder implements EntropyCoder {
+    static final int MIN_TABLE_LOG = 9;
+    static final int MAX_TABLE_LOG = 14;
+    private static final double TABLE_LOG_TOLERANCE = 0.001; // extra coded size allowed to use a smaller table
+
+    private final int tableLog;
+    private final int[] counts; // normalized counts, indexed by symbol
+    private final boolean byteMode;
+    private final int[] decodeTable; // (base of next state << 16) | (bits to read << 8) | symbol, by state
+    private final char[] stateTable; // next encoder state, by symbol's first slot plus a state's high bits
+    private final int[] deltaNbBits; // by symbol, see encodeBlock
+    private final int[] deltaFindState; // by symbol, see encodeBlock
+    private final byte[] codedSymbols;
+
+    /**
+     * Constructor for creating a TansCoder from normalized counts, which must
+     * add up to 2^tableLog, or be all zero when there is nothing to code.
+     * Symbols are spread over the states with a fixed step, so that the states
+     * of each symbol lie far apart; the encoding and decoding tables follow from
+     * that spread alone, so the counts are all Decode needs.
+     *
+     * @param tableLog the log2 of the number of states
+     * @param counts   the normalized count of every symbol, indexed by symbol
+     * @param byteMode whether every symbol is a raw byte
+     */
+    TansCoder(int tableLog, int[] counts, boolean byteMode) {
+        this.tableLog = tableLog;
+        this.counts = counts;
+        this.byteMode = byteMode;
+        int size = 1 << tableLog;
+        int mask = size - 1;
+        int step = (size >>> 1) + (size >>> 3) + 3;
+
+        int[] symbols = new int[size];
+        int position = 0;
+        int spread = 0;
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            for (int i = 0; i < counts[symbol]; i++) {
+                symbols[position] = symbol;
+                position = (position + step) & mask;
+                spread++;
+            }
+        }
+        int states = spread == size ? size : 0; // no states at all when there is nothing to code
+
+        decodeTable = new int[size];
+        int[] next = counts.clone();
+        for (int state = 0; state < states; state++) {
+            int symbol = symbols[state];
+            int nextState = next[symbol]++;
+            int bits = tableLog - floorLog2(nextState);
+            decodeTable[state] = (((nextState << bits) - size) << 16) | (bits << 8) | symbol;
+        }
+
+        stateTable = new char[size];
+        deltaNbBits = new int[counts.length];
+        deltaFindState = new int[counts.length];
+        codedSymbols = new byte[counts.length];
+        int[] cumulative = new int[counts.length + 1];
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            cumulative[symbol + 1] = cumulative[symbol] + counts[symbol];
+        }
+        int[] slot = cumulative.clone();
+        for (int state = 0; state < states; state++) {
+            stateTable[slot[symbols[state]]++] = (char) (size + state);
+        }
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            int count = counts[symbol];
+            if (count == 0) {
+                continue;
+            }
+            codedSymbols[symbol] = 1;
+            if (count == 1) {
+                deltaNbBits[symbol] = (tableLog << 16) - size;
+                deltaFindState[symbol] = cumulative[symbol] - 1;
+            } else {
+                int maxBitsOut = tableLog - floorLog2(count - 1);
+                deltaNbBits[symbol] = (maxBitsOut << 16) - (count << maxBitsOut);
+                deltaFindState[symbol] = cumulative[symbol] - count;
+            }
+        }
+    }
+
+    /**
+     * Builds a TansCoder for the given symbol frequencies. Every symbol that
+     * occurs gets a count of at least one; the table size is the smallest from
+     * 2^MIN_TABLE_LOG to 2^MAX_TABLE_LOG whose counts code the frequencies
+     * within TABLE_LOG_TOLERANCE of the best of them, since larger tables take
+     * longer to build and fit the caches less well.
+     *
+     * @param frequencies the frequency of every symbol, indexed by symbol
+     * @param byteMode    whether every symbol is a raw byte
+     * @return the coder
+     */
+    static TansCoder build(long[] frequencies, boolean byteMode) {
+        int[][] candidates = new int[MAX_TABLE_LOG + 1][];
+        double[] bits = new double[MAX_TABLE_LOG + 1];
+        double bestBits = Double.MAX_VALUE;
+        for (int tableLog = MIN_TABLE_LOG; tableLog <= MAX_TABLE_LOG; tableLog++) {
+            candidates[tableLog] = normalizeCounts(frequencies, tableLog);
+            bits[tableLog] = codedBits(frequencies, candidates[tableLog], tableLog);
+            bestBits = Math.min(bestBits, bits[tableLog]);
+        }
+        int tableLog = MIN_TABLE_LOG;
+        while (bits[tableLog] > bestBits * (1 + TABLE_LOG_TOLERANCE)) {
+            tableLog++;
+        }
+        return new TansCoder(tableLog, candidates[tableLog], byteMode);
+    }
+
+    /**
+     * Scales the frequencies to counts that add up to 2^tableLog. Counts are
+     * rounded to the nearest integer, but no lower than one for a symbol that
+     * occurs; the difference to 2^tableLog is then made up one count at a time,
+     * each time at the symbol where it costs the fewest coded bits.
+     *
+     * @param frequencies the frequency of every symbol, indexed by symbol
+     * @param tableLog    the log2 of the number of states
+     * @return the normalized counts, all zero if no symbol occurs
+     */
+    private static int[] normalizeCounts(long[] frequencies, int tableLog) {
+        int size = 1 << tableLog;
+        long total = 0;
+        for (long frequency : frequencies) {
+            total += frequency;
+        }
+        int[] counts = new int[frequencies.length];
+        if (total == 0) {
+            return counts;
+        }
+        int sum = 0;
+        for (int symbol = 0; symbol < frequencies.length; symbol++) {
+            if (frequencies[symbol] > 0) {
+                counts[symbol] = (int) Math.max(1, Math.round((double) frequencies[symbol] * size / total));
+                sum += counts[symbol];
+            }
+        }
+        while (sum != size) {
+            int best = -1;
+            double bestCost = Double.MAX_VALUE;
+            for (int symbol = 0; symbol < frequencies.length; symbol++) {
+                int count = counts[symbol];
+                if (count == 0 || (sum > size && count == 1)) {
+                    continue;
+                }
+                // the extra bits of coding the symbol with the changed count
+                double cost = sum > size ? frequencies[symbol] * log2((double) count / (count - 1))
+                        : -frequencies[symbol] * log2((double) (count + 1) / count);
+                if (cost < bestCost) {
+                    best = symbol;
+                    bestCost = cost;
+                }
+            }
+            counts[best] += sum > size ? -1 : 1;
+            sum += sum > size ? -1 : 1;
+        }
+        return counts;
+    }
+
+    /**
+     * Returns how many bits the normalized counts code the frequencies in,
+     * leaving out the few bits of the final state and padding.
+     *
+     * @param frequencies the frequency of every symbol, indexed by symbol
+     * @param counts      the normalized counts
+     * @param tableLog    the log2 of the number of states
+     * @return the number of bits
+     */
+    private static double codedBits(long[] frequencies, int[] counts, int tableLog) {
+        double bits = 0;
+        for (int symbol = 0; symbol < frequencies.length; symbol++) {
+            if (frequencies[symbol] > 0) {
+                bits += frequencies[symbol] * (tableLog - log2(counts[symbol]));
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the log2 of the table size.
+     *
+     * @return the table log
+     */
+    int tableLog() {
+        return tableLog;
+    }
+
+    /**
+     * Writes the container header: the mode flags, the table log and the
+     * normalized counts.
+     *
+     * @param out the stream to write the header to
+     * @throws IOException if an I/O error occurs while writing
+     */
+    @Override
+    public void writeHeader(OutputStream out) throws IOException {
+        HuffmanFormat.writeTansHeader(out, tableLog, counts, byteMode ? HuffmanFormat.FLAG_BYTES : 0);
+    }
+
+    /**
+     * Returns how large an output buffer must be to hold an encoded block. No
+     * symbol takes more than tableLog bits, and the stream adds the final state
+     * and up to a byte of padding.
+     *
+     * @param inputBytes the number of input bytes in the block
+     * @return the buffer size in bytes
+     */
+    @Override
+    public int maxEncodedSize(int inputBytes) {
+        return HuffmanFormat.BLOCK_HEADER_SIZE + 2 + (int) (((long) inputBytes * tableLog + tableLog + 7) / 8);
+    }
+
+    /**
+     * Encodes one block, from its last symbol to its first. The state x always
+     * lies in [2^tableLog, 2^(tableLog+1)). For a symbol of count c, the encoder
+     * writes bits low bits of x until it lies in [c, 2c), where bits is either
+     * maxBitsOut or maxBitsOut - 1; adding deltaNbBits to x and keeping the top
+     * bits gives that number without a branch. The remaining high bits pick one
+     * of the symbol's c states in stateTable. The bits are gathered backwards in
+     * a long and stored from the end of a scratch array towards its start.
+     *
+     * @param bytes        the input bytes of the block
+     * @param outputBuffer the buffer that receives the encoded block
+     * @param syncPoints   receives the decoded length; tANS blocks have no sync
+     *                     points
+     * @return the number of symbols encoded
+     * @throws IOException if a byte has no count in byte mode
+     */
+    @Override
+    public int encodeBlock(ByteBuffer bytes, ByteBuffer outputBuffer, SyncPoints syncPoints) throws IOException {
+        ByteBuffer input = bytes.duplicate();
+        char[] symbols;
+        int symbolCount;
+        long decodedLength;
+        if (byteMode) {
+            symbolCount = bytes.remaining();
+            symbols = new char[symbolCount];
+            for (int i = 0; i < symbolCount; i++) {
+                int value = bytes.get() & 0xFF;
+                if (codedSymbols[value] == 0) {
+                    throw new IOException("No code for byte " + value);
+                }
+                symbols[i] = (char) value;
+            }
+            decodedLength = symbolCount;
+        } else {
+            symbols = new char[bytes.remaining()];
+            int count = Utf8.decode(bytes, symbols);
+            symbolCount = 0;
+            decodedLength = 0;
+            for (int i = 0; i < count; i++) {
+                char character = symbols[i];
+                if (character < codedSymbols.length && codedSymbols[character] != 0) {
+                    symbols[symbolCount++] = character;
+                    decodedLength += Utf8.encodedLength(character);
+                }
+            }
+        }
+
+        int size = 1 << tableLog;
+        byte[] stream = new byte[maxEncodedSize(symbolCount)];
+        int position = stream.length;
+        long pending = 0; // bits not yet stored; the lowest come last in the stream
+        int pendingBits = 0;
+        int state = size;
+        for (int i = symbolCount - 1; i >= 0; i--) {
+            char symbol = symbols[i];
+            int bits = (state + deltaNbBits[symbol]) >>> 16;
+            pending |= (long) (state & ((1 << bits) - 1)) << pendingBits;
+            pendingBits += bits;
+            state = stateTable[(state >>> bits) + deltaFindState[symbol]];
+            while (pendingBits >= 8) {
+                stream[--position] = (byte) pending;
+                pending >>>= 8;
+                pendingBits -= 8;
+            }
+        }
+        pending |= (long) (state - size) << pendingBits;
+        pendingBits += tableLog;
+        while (pendingBits > 0) {
+            stream[--position] = (byte) pending;
+            pending >>>= 8;
+            pendingBits -= 8;
+        }
+
+        int blockStart = outputBuffer.position();
+        outputBuffer.position(blockStart + HuffmanFormat.BLOCK_HEADER_SIZE);
+        outputBuffer.put((byte) -pendingBits); // the zero bits before the stream, in its first byte
+        outputBuffer.put(stream, position, stream.length - position);
+        syncPoints.setDecodedLength(decodedLength);
+        BlockCodec.writeBlockHeader(outputBuffer, blockStart, symbolCount, byteMode ? BlockCodec.checksum(input)
+                : BlockCodec.textChecksum(input, symbols, symbolCount, decodedLength));
+        return symbolCount;
+    }
+
+    /**
+     * Decodes the payload of one block. While eight bytes of payload are left
+     * after the current position, one long read from the payload holds the bits
+     * of the next four symbols, as no symbol takes more than tableLog, at most
+     * 14, bits; the symbols near the end are read a byte at a time.
+     *
+     * @param payload      the payload of the block
+     * @param symbolCount  the number of symbols in the block
+     * @param outputBuffer the buffer that receives the decoded bytes
+     * @throws IOException if the payload is malformed
+     */
+    @Override
+    public void decodeBlock(ByteBuffer payload, int symbolCount, ByteBuffer outputBuffer) throws IOException {
+        int base = payload.position();
+        int limit = payload.limit() - base;
+        if (limit < 1 || payload.get(base) < 0 || payload.get(base) > 7) {
+            throw new IOException("Invalid tANS stream in encoded data");
+        }
+        long bitPosition = 8 + payload.get(base);
+        long end = 8L * limit;
+        int[] table = decodeTable;
+        long window = window(payload, base, limit, bitPosition);
+        int state = (int) (window >>> (64 - tableLog));
+        bitPosition += tableLog;
+
+        int i = 0;
+        while (i + 4 <= symbolCount && (bitPosition >>> 3) + Long.BYTES <= limit) {
+            window = payload.getLong(base + (int) (bitPosition >>> 3)) << (bitPosition & 7);
+            for (int k = 0; k < 4; k++) {
+                int entry = table[state];
+                int bits = (entry >>> 8) & 0xFF;
+                state = (entry >>> 16) + (int) ((window >>> 1) >>> (63 - bits));
+                window <<= bits;
+                bitPosition += bits;
+                put((char) (entry & 0xFF), outputBuffer);
+            }
+            i += 4;
+        }
+        for (; i < symbolCount; i++) {
+            int entry = table[state];
+            int bits = (entry >>> 8) & 0xFF;
+            window = window(payload, base, limit, bitPosition);
+            state = (entry >>> 16) + (int) ((window >>> 1) >>> (63 - bits));
+            bitPosition += bits;
+            if (bitPosition > end) {
+                throw new EOFException("Unexpected end of encoded data");
+            }
+            put((char) (entry & 0xFF), outputBuffer);
+        }
+        if (bitPosition != end || state != 0) {
+            throw new IOException("Invalid tANS stream in encoded data");
+        }
+    }
+
+    /**
+     * Returns the payload's bits from a bit position on, as the top bits of a
+     * long, with zero bits past the end of the payload.
+     *
+     * @param payload     the payload
+     * @param base        the position of the payload's first byte
+     * @param limit       the length of the payload in bytes
+     * @param bitPosition the position of the first bit
+     * @return the bits
+     */
+    private static long window(ByteBuffer payload, int base, int limit, long bitPosition) {
+        int first = (int) (bitPosition >>> 3);
+        long window = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            window = (window << 8) | (first + i < limit ? payload.get(base + first + i) & 0xFF : 0);
+        }
+        return window << (bitPosition & 7);
+    }
+
+    /**
+     * Writes one decoded symbol, as a raw byte in byte mode and as UTF-8
+     * otherwise.
+     *
+     * @param symbol       the symbol
+     * @param outputBuffer the buffer that receives the decoded bytes
+     */
+    private void put(char symbol, ByteBuffer outputBuffer) {
+        if (byteMode) {
+            outputBuffer.put((byte) symbol);
+        } else {
+            Utf8.encode(symbol, outputBuffer);
+        }
+    }
+
+    /**
+     * Returns whether every symbol is a raw byte.
+     *
+     * @return true in byte mode
+     */
+    @Override
+    public boolean byteMode() {
+        return byteMode;
+    }
+
+    /**
+     * Returns a mark for every symbol that has a normalized count.
+     *
+     * @return a non-zero value for every symbol that can be coded
+     */
+    @Override
+    public byte[] codedSymbols() {
+        return codedSymbols;
+    }
+
+    /**
+     * Returns the position of the highest set bit of a positive number.
+     *
+     * @param value the number
+     * @return floor(log2(value))
+     */
+    private static int floorLog2(int value) {
+        return 31 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Returns the binary logarithm of a number.
+     *
+     * @param value the number
+     * @return log2(value)
+     */
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+}
@@ -0,0 +1,124 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Utf8 converts between UTF-8 bytes and chars with plain loops over buffers,
+ * without going through a Charset decoder or encoder. Malformed bytes decode to
+ * the replacement character, which is never encoded, so they are skipped like
+ * any other character outside the codebook.
+ */
+class Utf8 {
+    static final char REPLACEMENT = '\uFFFD';
+
+    /**
+     * Decodes all remaining bytes of the buffer. The buffer should start at a
+     * character boundary and end at one.
+     *
+     * @param bytes the bytes to decode; its position is moved to its limit
+     * @param chars the array that receives the characters, at least as long as
+     *              the number of remaining bytes
+     * @return the number of characters decoded
+     */
+    static int decode(ByteBuffer bytes, char[] chars) {
+        int count = 0;
+        int position = bytes.position();
+        int limit = bytes.limit();
+        while (position < limit) {
+            int first = bytes.get(position) & 0xFF;
+            if (first < 0x80) {
+                chars[count++] = (char) first;
+                position++;
+                continue;
+            }
+
+            int length;
+            int codePoint;
+            int minimum;
+            if (first >= 0xC2 && first <= 0xDF) {
+                length = 2;
+                codePoint = first & 0x1F;
+                minimum = 0x80;
+            } else if (first >= 0xE0 && first <= 0xEF) {
+                length = 3;
+                codePoint = first & 0x0F;
+                minimum = 0x800;
+            } else if (first >= 0xF0 && first <= 0xF4) {
+                length = 4;
+                codePoint = first & 0x07;
+                minimum = 0x10000;
+            } else {
+                chars[count++] = REPLACEMENT;
+                position++;
+                continue;
+            }
+
+            boolean valid = position + length <= limit;
+            for (int i = 1; valid && i < length; i++) {
+                int next = bytes.get(position + i) & 0xFF;
+                valid = (next & 0xC0) == 0x80;
+                codePoint = (codePoint << 6) | (next & 0x3F);
+            }
+            if (!valid || codePoint < minimum || codePoint > Character.MAX_CODE_POINT
+                    || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                chars[count++] = REPLACEMENT;
+                position++;
+                continue;
+            }
+
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                chars[count++] = (char) codePoint;
+            } else {
+                chars[count++] = Character.highSurrogate(codePoint);
+                chars[count++] = Character.lowSurrogate(codePoint);
+            }
+            position += length;
+        }
+        bytes.position(limit);
+        return count;
+    }
+
+    /**
+     * Encodes a character of at most 0xFF, which takes one or two bytes.
+     *
+     * @param character the character to encode
+     * @param bytes     the buffer that receives the bytes
+     */
+    static void encode(char character, ByteBuffer bytes) {
+        if (character < 0x80) {
+            bytes.put((byte) character);
+        } else {
+            bytes.put((byte) (0xC0 | (character >>> 6)));
+            bytes.put((byte) (0x80 | (character & 0x3F)));
+        }
+    }
+
+    /**
+     * Returns how many bytes encode writes for a character of at most 0xFF.
+     *
+     * @param character the character to measure
+     * @return one or two
+     */
+    static int encodedLength(char character) {
+        return character < 0x80 ? 1 : 2;
+    }
+
+    /**
+     * Finds where the last, possibly incomplete, character of the bytes from 0
+     * to the buffer's limit starts. Bytes that end in a complete character, or in
+     * bytes that cannot be the start of one, are used whole.
+     *
+     * @param bytes the bytes to search; its position is not used or moved
+     * @return the number of bytes that end at a character boundary
+     */
+    static int lastCharacterStart(ByteBuffer bytes) {
+        int limit = bytes.limit();
+        for (int i = limit - 1; i >= Math.max(0, limit - 4); i--) {
+            int b = bytes.get(i) & 0xFF;
+            if ((b & 0xC0) == 0x80) {
+                continue; // continuation byte
+            }
+            int length = b < 0x80 ? 1 : b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : 2;
+            return i + length > limit ? i : limit;
+        }
+        return limit;
+    }
+}